@@ -0,0 +1,498 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of every token issued, for compliance reconciliation.
+ * <p>
+ * Records are compact and never contain key material: a SHA-256 of the encoded token, digests of
+ * the KRD and KDH IssuerAndSerialNumber, the key block header if any and the issue time. They are
+ * written by a single thread with group commit, all records queued while the previous batch was
+ * being forced are written and forced together. A batch is forced once it holds the maximum number
+ * of records or its oldest record has waited the maximum latency, whichever comes first. Each
+ * record's future completes once the record is durable.
+ * <p>
+ * Record layout, big endian:
+ * <pre>
+ * length(2) | type(1) | issuedAt(8) | tokenDigest(32) | krdDigest(32) | kdhDigest(32)
+ *           | headerLength(1) | header | crc32(4)
+ * </pre>
+ * The length covers everything after itself, the CRC everything between length and CRC. Absent
+ * identities are stored as zeros. A torn record at the end of the file is discarded when the journal
+ * is reopened. A batch whose write or force fails is truncated away before the next batch is written,
+ * if that fails too the journal fails every later record.
+ */
+public final class Tr34AuditJournal implements Closeable {
+
+    public enum TokenType {
+        KDH_CREDENTIAL, TWO_PASS_KEY, ONE_PASS_KEY, KDH_REBIND, KDH_UNBIND, CA_REBIND, CA_UNBIND
+    }
+
+    private static final int DIGEST_LENGTH = 32;
+    private static final int FIXED_LENGTH = 1 + 8 + DIGEST_LENGTH * 3 + 1;
+    private static final int MAX_HEADER_LENGTH = 255;
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    /**
+     * One journal entry.
+     */
+    public static final class Record {
+        private final TokenType type;
+        private final long issuedAt;
+        private final byte[] tokenDigest;
+        private final byte[] krdDigest;
+        private final byte[] kdhDigest;
+        private final String keyHeader;
+
+        Record(TokenType type, long issuedAt, byte[] tokenDigest, byte[] krdDigest, byte[] kdhDigest,
+               String keyHeader) {
+            if (keyHeader != null && keyHeader.length() > MAX_HEADER_LENGTH) {
+                throw new IllegalArgumentException("Key header too long");
+            }
+            this.type = type;
+            this.issuedAt = issuedAt;
+            this.tokenDigest = tokenDigest;
+            this.krdDigest = krdDigest;
+            this.kdhDigest = kdhDigest;
+            this.keyHeader = keyHeader;
+        }
+
+        /**
+         * @param krdCert Recipient KRD or null for tokens not addressed to one KRD
+         * @param kdhCert KDH whose identity the token carries
+         * @param keyHeader Key block header or null for tokens without a key
+         */
+        public static Record create(TokenType type, Tr34Object token, X509Certificate krdCert,
+                                    X509Certificate kdhCert, String keyHeader) {
+            try {
+                return new Record(type, System.currentTimeMillis(), Tr34CryptoUtils.sha256(token.getEncoded()),
+                        identityDigest(krdCert), identityDigest(kdhCert), keyHeader);
+            } catch (IOException e) {
+                throw new Tr34Exception(e);
+            }
+        }
+
+        /**
+         * Same as {@link #create(TokenType, Tr34Object, X509Certificate, X509Certificate, String)} for
+         * a token given by the remaining bytes of its encoding, the buffer position is not changed.
+         */
+        public static Record create(TokenType type, ByteBuffer encodedToken, X509Certificate krdCert,
+                                    X509Certificate kdhCert, String keyHeader) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(encodedToken.duplicate());
+                return new Record(type, System.currentTimeMillis(), md.digest(),
+                        identityDigest(krdCert), identityDigest(kdhCert), keyHeader);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new Tr34Exception(e);
+            }
+        }
+
+        private static byte[] identityDigest(X509Certificate cert) throws IOException {
+            return cert == null ? new byte[DIGEST_LENGTH]
+                    : digestOf(Tr34CryptoUtils.getIssuerAndSerialNumber(cert));
+        }
+
+        public TokenType getType() {
+            return type;
+        }
+
+        /**
+         * Issue time in milliseconds since the epoch.
+         */
+        public long getIssuedAt() {
+            return issuedAt;
+        }
+
+        /**
+         * SHA-256 of the DER encoded token.
+         */
+        public byte[] getTokenDigest() {
+            return tokenDigest.clone();
+        }
+
+        /**
+         * SHA-256 of the KRD IssuerAndSerialNumber, all zeros if the token has no single recipient.
+         */
+        public byte[] getKrdDigest() {
+            return krdDigest.clone();
+        }
+
+        public byte[] getKdhDigest() {
+            return kdhDigest.clone();
+        }
+
+        public String getKeyHeader() {
+            return keyHeader;
+        }
+
+        int encodedLength() {
+            return 2 + FIXED_LENGTH + (keyHeader == null ? 0 : keyHeader.length()) + 4;
+        }
+
+        void encodeTo(ByteBuffer out) {
+            byte[] header = keyHeader == null ? new byte[0] : keyHeader.getBytes(StandardCharsets.US_ASCII);
+            int start = out.position();
+            out.putShort((short) (FIXED_LENGTH + header.length + 4));
+            out.put((byte) type.ordinal());
+            out.putLong(issuedAt);
+            out.put(tokenDigest);
+            out.put(krdDigest);
+            out.put(kdhDigest);
+            out.put((byte) header.length);
+            out.put(header);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer covered = out.duplicate();
+            covered.position(start + 2).limit(out.position());
+            crc.update(covered);
+            out.putInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * Reads a journal file sequentially from the start.
+     */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private long validLength;
+
+        public Reader(Path file) throws IOException {
+            this(Files.newInputStream(file));
+        }
+
+        Reader(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        }
+
+        /**
+         * Returns the next record or null at the end of the journal. A torn or corrupt record ends
+         * the journal.
+         */
+        public Record next() throws IOException {
+            int length;
+            byte[] body;
+            try {
+                length = in.readUnsignedShort();
+                if (length < FIXED_LENGTH + 4 || length > FIXED_LENGTH + MAX_HEADER_LENGTH + 4) {
+                    return null;
+                }
+                body = new byte[length];
+                in.readFully(body);
+            } catch (EOFException e) {
+                return null;
+            }
+
+            ByteBuffer b = ByteBuffer.wrap(body);
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, length - 4);
+            if (b.getInt(length - 4) != (int) crc.getValue()) {
+                return null;
+            }
+
+            int type = b.get() & 0xff;
+            if (type >= TOKEN_TYPES.length) {
+                return null;
+            }
+            long issuedAt = b.getLong();
+            byte[] tokenDigest = new byte[DIGEST_LENGTH];
+            byte[] krdDigest = new byte[DIGEST_LENGTH];
+            byte[] kdhDigest = new byte[DIGEST_LENGTH];
+            b.get(tokenDigest).get(krdDigest).get(kdhDigest);
+            int headerLength = b.get() & 0xff;
+            if (headerLength != length - FIXED_LENGTH - 4) {
+                return null;
+            }
+            String header = headerLength == 0 ? null
+                    : new String(body, b.position(), headerLength, StandardCharsets.US_ASCII);
+
+            validLength += 2 + length;
+            return new Record(TOKEN_TYPES[type], issuedAt, tokenDigest, krdDigest, kdhDigest, header);
+        }
+
+        /**
+         * Number of bytes of complete records read so far.
+         */
+        public long getValidLength() {
+            return validLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private final FileChannel channel;
+    private final long maxLatencyNanos;
+    private final int maxBatchRecords;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private volatile boolean closed;
+    private long committedLength;
+    private Tr34Exception failure;
+    private volatile long batchCount;
+    private volatile long recordCount;
+
+    /**
+     * Opens the journal for appending, creating it if needed.
+     *
+     * @param maxLatencyMillis Longest time a record waits for more records before its batch is forced
+     * @param maxBatchRecords Batch size at which a batch is forced immediately
+     */
+    public Tr34AuditJournal(Path file, long maxLatencyMillis, int maxBatchRecords) {
+        this(file, maxLatencyMillis, maxBatchRecords, UnaryOperator.identity());
+    }
+
+    /**
+     * @param channelWrapper Applied to the opened file channel, lets tests inject I/O failures
+     */
+    Tr34AuditJournal(Path file, long maxLatencyMillis, int maxBatchRecords,
+                     UnaryOperator<FileChannel> channelWrapper) {
+        if (maxLatencyMillis < 0 || maxBatchRecords <= 0) {
+            throw new IllegalArgumentException("Invalid latency or batch size");
+        }
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        this.maxBatchRecords = maxBatchRecords;
+
+        try {
+            long validLength = 0;
+            if (Files.exists(file)) {
+                try (Reader reader = new Reader(file)) {
+                    while (reader.next() != null) {
+                        // Scan to the end of the last complete record
+                    }
+                    validLength = reader.getValidLength();
+                }
+            }
+
+            channel = channelWrapper.apply(
+                    FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+            channel.position(validLength);
+            committedLength = validLength;
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+
+        writer = new Thread(this::writeLoop, "tr34-audit-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record. The returned future completes once the record is forced to disk, or
+     * completes exceptionally if the write failed or the journal was closed first.
+     */
+    public CompletableFuture<Void> append(Record record) {
+        Pending pending = new Pending(record);
+        synchronized (queue) {
+            if (!closed) {
+                queue.add(pending);
+                return pending.future;
+            }
+        }
+        pending.future.completeExceptionally(new Tr34Exception("Audit journal closed"));
+        return pending.future;
+    }
+
+    /**
+     * Appends a record and waits until it is durable.
+     */
+    public void appendAndWait(Record record) {
+        try {
+            append(record).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Tr34Exception ? (Tr34Exception) e.getCause() : new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Number of forced batches, comparing it with {@link #getRecordCount()} shows how well records
+     * are grouped.
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Forces all queued records and stops the writer.
+     */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatchRecords + 1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        boolean stopping = false;
+
+        while (!stopping) {
+            try {
+                Pending first = queue.take();
+                batch.add(first);
+
+                // The close marker is always the last element ever queued
+                long deadline = first.queuedNanos + maxLatencyNanos;
+                while (batch.get(batch.size() - 1) != CLOSE && batch.size() < maxBatchRecords) {
+                    queue.drainTo(batch, maxBatchRecords - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.get(batch.size() - 1) == CLOSE || batch.size() >= maxBatchRecords || remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Not expected, the writer is only stopped through the close marker
+                continue;
+            }
+
+            if (batch.get(batch.size() - 1) == CLOSE) {
+                batch.remove(batch.size() - 1);
+                stopping = true;
+            }
+            buffer = writeBatch(batch, buffer);
+            batch.clear();
+        }
+    }
+
+    private ByteBuffer writeBatch(List<Pending> batch, ByteBuffer buffer) {
+        if (batch.isEmpty()) {
+            return buffer;
+        }
+        if (failure != null) {
+            for (Pending pending : batch) {
+                pending.future.completeExceptionally(failure);
+            }
+            return buffer;
+        }
+
+        try {
+            buffer.clear();
+            for (Pending pending : batch) {
+                if (buffer.remaining() < pending.record.encodedLength()) {
+                    buffer.flip();
+                    writeFully(buffer);
+                    buffer.clear();
+                }
+                pending.record.encodeTo(buffer);
+            }
+            buffer.flip();
+            writeFully(buffer);
+            channel.force(false);
+            committedLength = channel.position();
+
+            batchCount++;
+            recordCount += batch.size();
+            for (Pending pending : batch) {
+                pending.future.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            Tr34Exception batchFailure = new Tr34Exception(e);
+            for (Pending pending : batch) {
+                pending.future.completeExceptionally(batchFailure);
+            }
+            rollback();
+        }
+        return buffer;
+    }
+
+    /**
+     * Removes whatever part of a failed batch reached the file, so later batches directly follow the
+     * last durable one. Otherwise reopening would stop at the torn batch and drop every later record.
+     */
+    private void rollback() {
+        try {
+            channel.truncate(committedLength);
+            channel.position(committedLength);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            failure = new Tr34Exception("Audit journal failed, cannot roll back a failed batch", e);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] digestOf(IssuerAndSerialNumber issuerAndSerialNumber) throws IOException {
+        return Tr34CryptoUtils.sha256(issuerAndSerialNumber.getEncoded());
+    }
+
+    private static final Pending CLOSE = new Pending(null);
+
+    private static final class Pending {
+        final Record record;
+        final long queuedNanos = System.nanoTime();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(Record record) {
+            this.record = record;
+        }
+    }
+
+}
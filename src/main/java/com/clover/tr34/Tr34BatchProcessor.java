@@ -0,0 +1,404 @@
+package com.clover.tr34;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Generates two-pass key tokens for a file of KRD requests, e.g. for factory line or depot
+ * provisioning. The input file is memory-mapped in windows and split into records without being
+ * decoded, the records of each chunk are handed to {@link Tr34TokenFactory#generateTwoPassKeyToken(
+ * ByteBuffer, ByteBuffer, Tr34KeyMaterial, ByteBuffer)} on the executor and written in input order.
+ * <p>
+ * After each chunk the output and index are forced to disk and a checkpoint is replaced atomically.
+ * Processing the same input again resumes after the last checkpoint, records of a chunk that was
+ * interrupted are generated again. The checkpoint holds a SHA-256 of the input processed so far, a
+ * resume checks that the input still starts with exactly those bytes, records may only have been
+ * appended.
+ * <p>
+ * File layout:
+ * <pre>
+ * input       randomToken(DER) | krdCredentialToken(DER), repeated
+ * output      length(4) | twoPassKeyToken(DER), repeated in input order
+ * index       offset(8) of each output record
+ * checkpoint  magic(4) | version(4) | records(8) | inputOffset(8) | outputLength(8) | inputDigest(32) | crc32(4)
+ * </pre>
+ * The index and checkpoint are written next to the output with the suffixes {@code .idx} and
+ * {@code .ckpt}.
+ */
+public final class Tr34BatchProcessor {
+
+    private static final int MAGIC = 0x54523443;
+    private static final int FORMAT_VERSION = 2;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int CHECKPOINT_SIZE = 36 + DIGEST_LENGTH;
+
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int RESULT_BUFFER_SIZE = 8192;
+
+    private final Tr34TokenFactory factory;
+    private final Executor executor;
+    private final LongFunction<Tr34KeyMaterial> keySupplier;
+    private int chunkSize = 256;
+    private int mapWindowSize = 64 * 1024 * 1024;
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Result {
+        private final long recordCount;
+        private final long resumedRecordCount;
+        private final long outputLength;
+
+        Result(long recordCount, long resumedRecordCount, long outputLength) {
+            this.recordCount = recordCount;
+            this.resumedRecordCount = resumedRecordCount;
+            this.outputLength = outputLength;
+        }
+
+        /**
+         * Number of records in the output, including those of earlier runs.
+         */
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Number of records found complete at the last checkpoint when the run started.
+         */
+        public long getResumedRecordCount() {
+            return resumedRecordCount;
+        }
+
+        public long getOutputLength() {
+            return outputLength;
+        }
+    }
+
+    /**
+     * @param keySupplier Supplies the key for each record index, called on the executor. It must
+     * record which key went to which record, the output holds the keys only encrypted for the KRDs.
+     * A record of an interrupted chunk is generated again after a resume, with the key then
+     * supplied. The processor closes the key material once the token is generated.
+     */
+    public Tr34BatchProcessor(Tr34TokenFactory factory, Executor executor,
+                              LongFunction<Tr34KeyMaterial> keySupplier) {
+        this.factory = factory;
+        this.executor = executor;
+        this.keySupplier = keySupplier;
+    }
+
+    /**
+     * Number of records generated in parallel and committed by each checkpoint, defaults to 256.
+     */
+    public Tr34BatchProcessor withChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Largest part of the input mapped at once, defaults to 64MB. Must hold at least one record.
+     */
+    public Tr34BatchProcessor withMapWindowSize(int mapWindowSize) {
+        if (mapWindowSize <= 0) {
+            throw new IllegalArgumentException("mapWindowSize must be positive");
+        }
+        this.mapWindowSize = mapWindowSize;
+        return this;
+    }
+
+    public static Path indexFile(Path output) {
+        return output.resolveSibling(output.getFileName() + ".idx");
+    }
+
+    public static Path checkpointFile(Path output) {
+        return output.resolveSibling(output.getFileName() + ".ckpt");
+    }
+
+    /**
+     * Processes the input, resuming after the last checkpoint of an earlier run on the same input.
+     *
+     * @throws Tr34Exception If a record is malformed or its token cannot be generated, naming the
+     * record. Chunks completed before it stay committed.
+     */
+    public Result process(Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE);
+             FileChannel index = FileChannel.open(indexFile(output), StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            long inputSize = in.size();
+            MessageDigest inputDigest = newDigest();
+            long[] checkpoint = readCheckpoint(checkpointFile(output), in, inputSize, inputDigest);
+            long records = checkpoint[0];
+            long inputOffset = checkpoint[1];
+            long outputLength = checkpoint[2];
+            long resumed = records;
+
+            // Drop whatever an interrupted chunk left behind
+            out.truncate(outputLength);
+            index.truncate(records * 8);
+
+            List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(chunkSize);
+            ByteBuffer[] results = new ByteBuffer[chunkSize];
+            ByteBuffer offsets = ByteBuffer.allocate(chunkSize * 8);
+            MappedByteBuffer window = null;
+            long windowStart = 0;
+
+            while (inputOffset < inputSize) {
+                int n = 0;
+                while (n < chunkSize && inputOffset < inputSize) {
+                    if (window == null || inputOffset >= windowStart + window.limit()) {
+                        windowStart = inputOffset;
+                        window = map(in, windowStart, inputSize);
+                    }
+                    int pos = (int) (inputOffset - windowStart);
+                    int randomTokenEnd = tlvEnd(window, pos, records + n);
+                    int credentialEnd = randomTokenEnd < 0 ? -1 : tlvEnd(window, randomTokenEnd, records + n);
+                    if (credentialEnd < 0) {
+                        if (windowStart + window.limit() == inputSize) {
+                            throw new Tr34Exception("Truncated record " + (records + n) + " at offset " + inputOffset);
+                        }
+                        if (pos == 0) {
+                            throw new Tr34Exception("Record " + (records + n) + " larger than the map window");
+                        }
+                        windowStart = inputOffset;
+                        window = map(in, windowStart, inputSize);
+                        continue;
+                    }
+
+                    ByteBuffer randomToken = slice(window, pos, randomTokenEnd);
+                    ByteBuffer credential = slice(window, randomTokenEnd, credentialEnd);
+                    inputDigest.update(slice(window, pos, credentialEnd));
+                    long record = records + n;
+                    ByteBuffer result = results[n] != null ? results[n] : ByteBuffer.allocate(RESULT_BUFFER_SIZE);
+                    futures.add(CompletableFuture.supplyAsync(
+                            () -> generate(record, randomToken, credential, result), executor));
+                    inputOffset = windowStart + credentialEnd;
+                    n++;
+                }
+
+                Throwable failure = null;
+                long failed = -1;
+                for (int i = 0; i < n; i++) {
+                    try {
+                        results[i] = futures.get(i).join();
+                    } catch (CompletionException e) {
+                        if (failure == null) {
+                            failure = e.getCause();
+                            failed = records + i;
+                        }
+                    }
+                }
+                futures.clear();
+                if (failure != null) {
+                    throw new Tr34Exception("Failed to generate record " + failed, failure);
+                }
+
+                offsets.clear();
+                for (int i = 0; i < n; i++) {
+                    offsets.putLong(outputLength);
+                    outputLength += writeFully(out, results[i], outputLength);
+                }
+                offsets.flip();
+                writeFully(index, offsets, records * 8);
+                records += n;
+
+                out.force(false);
+                index.force(false);
+                writeCheckpoint(checkpointFile(output), records, inputOffset, outputLength, digestSoFar(inputDigest));
+            }
+
+            return new Result(records, resumed, outputLength);
+        }
+    }
+
+    /**
+     * Reads the DER of an output record.
+     */
+    public static ByteBuffer readRecord(FileChannel output, FileChannel index, long record) throws IOException {
+        ByteBuffer offset = ByteBuffer.allocate(8);
+        readFully(index, offset, record * 8);
+        long position = offset.getLong(0);
+
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(output, length, position);
+        ByteBuffer der = ByteBuffer.allocate(length.getInt(0));
+        readFully(output, der, position + 4);
+        der.flip();
+        return der;
+    }
+
+    private ByteBuffer generate(long record, ByteBuffer randomToken, ByteBuffer credential, ByteBuffer result) {
+        try (Tr34KeyMaterial key = keySupplier.apply(record)) {
+            while (true) {
+                result.clear().position(4);
+                try {
+                    int length = factory.generateTwoPassKeyToken(randomToken.duplicate(), credential.duplicate(),
+                            key, result);
+                    result.putInt(0, length).flip();
+                    return result;
+                } catch (BufferOverflowException e) {
+                    result = ByteBuffer.allocate(result.capacity() * 2);
+                }
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Digest of the input so far, the running digest keeps its state.
+     */
+    private static byte[] digestSoFar(MessageDigest inputDigest) {
+        try {
+            return ((MessageDigest) inputDigest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private MappedByteBuffer map(FileChannel in, long position, long inputSize) throws IOException {
+        return in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(mapWindowSize, inputSize - position));
+    }
+
+    private static ByteBuffer slice(ByteBuffer window, int start, int end) {
+        ByteBuffer view = window.duplicate();
+        view.limit(end).position(start);
+        return view.slice();
+    }
+
+    /**
+     * Returns the end of the DER sequence at pos, or -1 if it extends beyond the window.
+     */
+    private static int tlvEnd(ByteBuffer window, int pos, long record) {
+        int limit = window.limit();
+        if (pos + 2 > limit) {
+            return -1;
+        }
+        if ((window.get(pos) & 0xff) != TAG_SEQUENCE) {
+            throw new Tr34Exception("Record " + record + " is not DER");
+        }
+        int first = window.get(pos + 1) & 0xff;
+        pos += 2;
+        long length;
+        if (first < 0x80) {
+            length = first;
+        } else {
+            int octets = first & 0x7f;
+            if (octets == 0 || octets > 3) {
+                throw new Tr34Exception("Unsupported length in record " + record);
+            }
+            if (pos + octets > limit) {
+                return -1;
+            }
+            length = 0;
+            for (int i = 0; i < octets; i++) {
+                length = length << 8 | (window.get(pos++) & 0xff);
+            }
+        }
+        return pos + length > limit ? -1 : (int) (pos + length);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new Tr34Exception("Truncated batch output at offset " + position);
+            }
+        }
+    }
+
+    /**
+     * Reads the checkpoint and updates the digest with the input it covers.
+     *
+     * @return records, inputOffset and outputLength, all zero without a checkpoint
+     * @throws Tr34Exception If the input does not start with the bytes the checkpoint covers
+     */
+    private long[] readCheckpoint(Path file, FileChannel in, long inputSize, MessageDigest inputDigest)
+            throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return new long[3];
+        }
+
+        ByteBuffer checkpoint = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(0, bytes.length - 4));
+        if (bytes.length != CHECKPOINT_SIZE || checkpoint.getInt(0) != MAGIC
+                || checkpoint.getInt(4) != FORMAT_VERSION
+                || checkpoint.getInt(CHECKPOINT_SIZE - 4) != (int) crc.getValue()) {
+            throw new Tr34Exception("Invalid batch checkpoint " + file);
+        }
+
+        long inputOffset = checkpoint.getLong(16);
+        byte[] expected = Arrays.copyOfRange(bytes, 32, 32 + DIGEST_LENGTH);
+        if (inputOffset > inputSize) {
+            throw new Tr34Exception("Batch checkpoint " + file + " belongs to a different input");
+        }
+        for (long position = 0; position < inputOffset; position += mapWindowSize) {
+            inputDigest.update(in.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(mapWindowSize, inputOffset - position)));
+        }
+        if (!MessageDigest.isEqual(expected, digestSoFar(inputDigest))) {
+            throw new Tr34Exception("Batch checkpoint " + file + " belongs to a different input");
+        }
+        return new long[] { checkpoint.getLong(8), inputOffset, checkpoint.getLong(24) };
+    }
+
+    private static void writeCheckpoint(Path file, long records, long inputOffset, long outputLength,
+                                        byte[] inputDigest) throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        checkpoint.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(records).putLong(inputOffset)
+                .putLong(outputLength).put(inputDigest);
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint.array(), 0, CHECKPOINT_SIZE - 4);
+        checkpoint.putInt((int) crc.getValue()).flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, checkpoint, 0);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
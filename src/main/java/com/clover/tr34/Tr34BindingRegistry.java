@@ -0,0 +1,489 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+/**
+ * Records which KDH each KRD is bound to, so key, rebind and unbind tokens are only issued by the
+ * KDH the device currently trusts.
+ * <p>
+ * Bindings are keyed by the SHA-256 digest of the KRD IssuerAndSerialNumber and live in a
+ * memory-mapped hash file of fixed size records with linear probing. Opening a registry maps the
+ * file without reading it, so startup time does not depend on the number of devices.
+ * <p>
+ * Every change is appended to a write-ahead journal and forced to disk before the mapped record is
+ * modified. Opening a registry replays the journal, so changes acknowledged before a crash are never
+ * lost even if the mapped pages were not yet written back. The journal is truncated at each
+ * checkpoint.
+ * <p>
+ * Lookups read records under an optimistic read of a per-stripe {@link StampedLock} and only take
+ * the read lock if a writer changed the stripe meanwhile. Writers are serialized.
+ * <p>
+ * File layout:
+ * <pre>
+ * header  magic(4) | version(4) | capacity(4) | count(4) | reserved(48)
+ * record  used(1) | state(1) | reserved(6) | updatedAt(8) | krdDigest(32) | kdhDigest(32)
+ * journal slot(4) | count(4) | record(80) | crc32(4)
+ * </pre>
+ */
+public final class Tr34BindingRegistry implements Closeable {
+
+    public enum State {
+        BOUND, UNBOUND
+    }
+
+    /**
+     * Snapshot of the binding of one KRD.
+     */
+    public static final class Binding {
+        private final State state;
+        private final long updatedAt;
+        private final byte[] kdhDigest;
+
+        Binding(State state, long updatedAt, byte[] kdhDigest) {
+            this.state = state;
+            this.updatedAt = updatedAt;
+            this.kdhDigest = kdhDigest;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Time of the last change in milliseconds since the epoch.
+         */
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        /**
+         * SHA-256 of the IssuerAndSerialNumber of the KDH last bound to the KRD.
+         */
+        public byte[] getKdhDigest() {
+            return kdhDigest.clone();
+        }
+
+        public boolean isBoundTo(IssuerAndSerialNumber kdh) {
+            return state == State.BOUND && Arrays.equals(kdhDigest, digest(kdh));
+        }
+    }
+
+    private static final int MAGIC = 0x54523442;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int COUNT_OFFSET = 12;
+
+    private static final int RECORD_SIZE = 80;
+    private static final int USED_OFFSET = 0;
+    private static final int STATE_OFFSET = 1;
+    private static final int UPDATED_AT_OFFSET = 8;
+    private static final int KRD_DIGEST_OFFSET = 16;
+    private static final int KDH_DIGEST_OFFSET = 48;
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final int JOURNAL_ENTRY_SIZE = 4 + 4 + RECORD_SIZE + 4;
+    private static final int MAX_CAPACITY = 1 << 24;
+    private static final int STRIPES = 64;
+    private static final State[] STATES = State.values();
+
+    private final FileChannel dataChannel;
+    private final FileChannel journalChannel;
+    private final MappedByteBuffer mapped;
+    private final int capacity;
+    private final int mask;
+    private final int checkpointInterval;
+    private final StampedLock[] stripeLocks = new StampedLock[STRIPES];
+
+    private volatile int count;
+    private int journalEntries;
+    private boolean closed;
+
+    /**
+     * Opens the registry stored in the given file, creating it if needed. The journal is kept next to
+     * it with a ".journal" suffix.
+     *
+     * @param capacity Number of records of a new file, rounded up to a power of two. Ignored when
+     * the file already exists. The registry accepts up to three quarters of its capacity.
+     */
+    public Tr34BindingRegistry(Path file, int capacity) {
+        this(file, capacity, 4096);
+    }
+
+    /**
+     * @param checkpointInterval Number of journaled changes after which the mapped file is forced and
+     * the journal truncated
+     */
+    public Tr34BindingRegistry(Path file, int capacity, int checkpointInterval) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY);
+        }
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be positive");
+        }
+        this.checkpointInterval = checkpointInterval;
+        for (int i = 0; i < STRIPES; i++) {
+            stripeLocks[i] = new StampedLock();
+        }
+
+        FileChannel data = null;
+        FileChannel journal = null;
+        try {
+            data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            journal = FileChannel.open(file.resolveSibling(file.getFileName() + ".journal"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            if (data.size() == 0) {
+                int rounded = 1;
+                while (rounded < capacity) {
+                    rounded <<= 1;
+                }
+                this.capacity = rounded;
+                this.mapped = data.map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + (long) this.capacity * RECORD_SIZE);
+                mapped.putInt(0, MAGIC);
+                mapped.putInt(4, FORMAT_VERSION);
+                mapped.putInt(8, this.capacity);
+                mapped.putInt(COUNT_OFFSET, 0);
+                mapped.force();
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                data.read(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                    throw new Tr34Exception("Not a binding registry file: " + file);
+                }
+                this.capacity = header.getInt(8);
+                if (Integer.bitCount(this.capacity) != 1 || this.capacity > MAX_CAPACITY
+                        || data.size() != HEADER_SIZE + (long) this.capacity * RECORD_SIZE) {
+                    throw new Tr34Exception("Corrupt binding registry header: " + file);
+                }
+                this.mapped = data.map(FileChannel.MapMode.READ_WRITE, 0, data.size());
+            }
+        } catch (IOException e) {
+            closeQuietly(data);
+            closeQuietly(journal);
+            throw new Tr34Exception(e);
+        } catch (RuntimeException e) {
+            closeQuietly(data);
+            closeQuietly(journal);
+            throw e;
+        }
+
+        this.dataChannel = data;
+        this.journalChannel = journal;
+        this.mask = this.capacity - 1;
+        this.count = mapped.getInt(COUNT_OFFSET);
+
+        try {
+            replayJournal();
+        } catch (RuntimeException e) {
+            closeQuietly(data);
+            closeQuietly(journal);
+            throw e;
+        }
+    }
+
+    public Binding lookup(X509Certificate krdCert) {
+        return lookup(Tr34CryptoUtils.getIssuerAndSerialNumber(krdCert));
+    }
+
+    /**
+     * Returns the binding of the KRD or null if the KRD was never recorded.
+     */
+    public Binding lookup(IssuerAndSerialNumber krd) {
+        byte[] key = digest(krd);
+        byte[] record = new byte[RECORD_SIZE];
+
+        int slot = home(key);
+        for (int probes = 0; probes < capacity; probes++) {
+            readRecord(slot, record);
+            if (record[USED_OFFSET] == 0) {
+                return null;
+            }
+            if (keyMatches(record, key)) {
+                ByteBuffer r = ByteBuffer.wrap(record);
+                return new Binding(STATES[record[STATE_OFFSET]], r.getLong(UPDATED_AT_OFFSET),
+                        Arrays.copyOfRange(record, KDH_DIGEST_OFFSET, KDH_DIGEST_OFFSET + DIGEST_LENGTH));
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Throws unless the KRD is currently bound to the given KDH.
+     *
+     * @throws SecurityException If the KRD is unknown, unbound or bound to another KDH
+     */
+    public void checkBound(X509Certificate krdCert, X509Certificate kdhCert) {
+        Binding binding = lookup(krdCert);
+        if (binding == null || !binding.isBoundTo(Tr34CryptoUtils.getIssuerAndSerialNumber(kdhCert))) {
+            throw new SecurityException("KRD " + krdCert.getSubjectX500Principal() + " is not bound to KDH "
+                    + kdhCert.getSubjectX500Principal());
+        }
+    }
+
+    /**
+     * Records that the KRD is bound to the KDH, replacing any previous binding, for example after a
+     * bind or rebind completed.
+     */
+    public void bind(IssuerAndSerialNumber krd, IssuerAndSerialNumber kdh) {
+        update(krd, State.BOUND, digest(kdh));
+    }
+
+    public void bind(X509Certificate krdCert, X509Certificate kdhCert) {
+        bind(Tr34CryptoUtils.getIssuerAndSerialNumber(krdCert), Tr34CryptoUtils.getIssuerAndSerialNumber(kdhCert));
+    }
+
+    /**
+     * Records that the KRD was unbound. The digest of the last KDH is kept.
+     */
+    public void unbind(IssuerAndSerialNumber krd) {
+        update(krd, State.UNBOUND, null);
+    }
+
+    public void unbind(X509Certificate krdCert) {
+        unbind(Tr34CryptoUtils.getIssuerAndSerialNumber(krdCert));
+    }
+
+    private synchronized void update(IssuerAndSerialNumber krd, State state, byte[] kdhDigest) {
+        checkOpen();
+        byte[] key = digest(krd);
+        byte[] record = new byte[RECORD_SIZE];
+
+        int slot = home(key);
+        int probes = 0;
+        int newCount = count;
+        while (true) {
+            readRecordUnchecked(slot, record);
+            if (record[USED_OFFSET] == 0) {
+                newCount++;
+                if (newCount * 4L > capacity * 3L) {
+                    throw new Tr34Exception("Binding registry full");
+                }
+                break;
+            }
+            if (keyMatches(record, key)) {
+                break;
+            }
+            if (++probes == capacity) {
+                throw new Tr34Exception("Binding registry full");
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        ByteBuffer r = ByteBuffer.wrap(record);
+        r.put(USED_OFFSET, (byte) 1);
+        r.put(STATE_OFFSET, (byte) state.ordinal());
+        r.putLong(UPDATED_AT_OFFSET, System.currentTimeMillis());
+        System.arraycopy(key, 0, record, KRD_DIGEST_OFFSET, DIGEST_LENGTH);
+        if (kdhDigest != null) {
+            System.arraycopy(kdhDigest, 0, record, KDH_DIGEST_OFFSET, DIGEST_LENGTH);
+        }
+
+        appendJournal(slot, newCount, record);
+        apply(slot, newCount, record);
+
+        if (++journalEntries >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Forces the mapped file to disk and truncates the journal.
+     */
+    public synchronized void checkpoint() {
+        checkOpen();
+        try {
+            mapped.force();
+            journalChannel.truncate(0);
+            journalChannel.force(true);
+            journalEntries = 0;
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Number of KRDs recorded, bound or unbound.
+     */
+    public int size() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            checkpoint();
+        } finally {
+            closed = true;
+            closeQuietly(journalChannel);
+            closeQuietly(dataChannel);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new Tr34Exception("Binding registry closed");
+        }
+    }
+
+    private void appendJournal(int slot, int newCount, byte[] record) {
+        ByteBuffer entry = ByteBuffer.allocate(JOURNAL_ENTRY_SIZE);
+        entry.putInt(slot);
+        entry.putInt(newCount);
+        entry.put(record);
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 0, JOURNAL_ENTRY_SIZE - 4);
+        entry.putInt((int) crc.getValue());
+        entry.flip();
+
+        try {
+            long position = journalChannel.size();
+            while (entry.hasRemaining()) {
+                position += journalChannel.write(entry, position);
+            }
+            journalChannel.force(false);
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Applies every complete journal entry, a torn entry at the end was never acknowledged and is
+     * dropped.
+     */
+    private void replayJournal() {
+        try {
+            long size = journalChannel.size();
+            ByteBuffer entry = ByteBuffer.allocate(JOURNAL_ENTRY_SIZE);
+            byte[] record = new byte[RECORD_SIZE];
+            CRC32 crc = new CRC32();
+
+            for (long position = 0; position + JOURNAL_ENTRY_SIZE <= size; position += JOURNAL_ENTRY_SIZE) {
+                entry.clear();
+                while (entry.hasRemaining()) {
+                    if (journalChannel.read(entry, position + entry.position()) < 0) {
+                        break;
+                    }
+                }
+
+                crc.reset();
+                crc.update(entry.array(), 0, JOURNAL_ENTRY_SIZE - 4);
+                if (entry.getInt(JOURNAL_ENTRY_SIZE - 4) != (int) crc.getValue()) {
+                    break;
+                }
+                int slot = entry.getInt(0);
+                if (slot < 0 || slot >= capacity) {
+                    break;
+                }
+                System.arraycopy(entry.array(), 8, record, 0, RECORD_SIZE);
+                apply(slot, entry.getInt(4), record);
+            }
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+        checkpoint();
+    }
+
+    /**
+     * Writes a record into its slot under the stripe's write lock. Idempotent so journal replay
+     * may repeat changes already present in the file, the journal carries the resulting count for
+     * the same reason.
+     */
+    private void apply(int slot, int newCount, byte[] record) {
+        StampedLock lock = stripeLocks[slot & (STRIPES - 1)];
+        int offset = offset(slot);
+
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < RECORD_SIZE; i++) {
+                mapped.put(offset + i, record[i]);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        count = newCount;
+        mapped.putInt(COUNT_OFFSET, newCount);
+    }
+
+    private void readRecord(int slot, byte[] record) {
+        StampedLock lock = stripeLocks[slot & (STRIPES - 1)];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            readRecordUnchecked(slot, record);
+            if (lock.validate(stamp)) {
+                return;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            readRecordUnchecked(slot, record);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void readRecordUnchecked(int slot, byte[] record) {
+        int offset = offset(slot);
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            record[i] = mapped.get(offset + i);
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private int home(byte[] key) {
+        return ((key[0] & 0xff) << 24 | (key[1] & 0xff) << 16 | (key[2] & 0xff) << 8 | (key[3] & 0xff)) & mask;
+    }
+
+    private static boolean keyMatches(byte[] record, byte[] key) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (record[KRD_DIGEST_OFFSET + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] digest(IssuerAndSerialNumber issuerAndSerialNumber) {
+        try {
+            return Tr34CryptoUtils.sha256(issuerAndSerialNumber.getEncoded());
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
@@ -82,9 +82,36 @@ public class Tr34CaRebindToken extends Tr34SignedObject {
         }
     }
 
+    /**
+     * Parts of the rebind tokens for every KRD moving from the same current KDH to the same new KDH,
+     * encoded once, see {@link Tr34CampaignEngine}.
+     */
+    static final class Prepared {
+        final X509Certificate currentKdhCert;
+        final X509Certificate newKdhCert;
+        final byte[] currentKdhIssuerAndSerial;
+        final ASN1Set newKdhCertSet;
+
+        Prepared(X509Certificate currentKdhCert, X509Certificate newKdhCert) {
+            try {
+                this.currentKdhCert = currentKdhCert;
+                this.newKdhCert = newKdhCert;
+                this.currentKdhIssuerAndSerial = new IssuerAndSerialNumber(
+                        Certificate.getInstance(currentKdhCert.getEncoded())).getEncoded();
+                this.newKdhCertSet = certificateSet(newKdhCert);
+            } catch (Exception e) {
+                throw new Tr34Exception(e);
+            }
+        }
+    }
+
     public static Tr34CaRebindToken create(X509Certificate krdCert,
                                            X509Certificate currentKdhCert, X509Certificate newKdhCert,
                                            Tr34ScdKeyStoreData krdKeyStore) {
+        return create(krdCert, new Prepared(currentKdhCert, newKdhCert), krdKeyStore);
+    }
+
+    static Tr34CaRebindToken create(X509Certificate krdCert, Prepared prepared, Tr34ScdKeyStoreData krdKeyStore) {
         try {
             ASN1EncodableVector attributes = new ASN1EncodableVector();
             AttributeTable at = new AttributeTable(attributes);
@@ -94,14 +121,11 @@ public class Tr34CaRebindToken extends Tr34SignedObject {
             IssuerAndSerialNumber krdIssuerAndSerial =
                     new IssuerAndSerialNumber(Certificate.getInstance(krdCert.getEncoded()));
 
-            IssuerAndSerialNumber currentKdhIssuerAndSerial =
-                    new IssuerAndSerialNumber(Certificate.getInstance(currentKdhCert.getEncoded()));
-
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             baos.write(krdIssuerAndSerial.getEncoded());
-            baos.write(currentKdhIssuerAndSerial.getEncoded());
+            baos.write(prepared.currentKdhIssuerAndSerial);
 
-            SignedData innerSignedData = createUnsignedSignedData(baos.toByteArray(), newKdhCert);
+            SignedData innerSignedData = createUnsignedSignedData(baos.toByteArray(), prepared.newKdhCertSet);
 
             CMSSignedData cmsSignedData = signCmsData(at, CMSObjectIdentifiers.signedData,
                     innerSignedData.getEncoded(), krdKeyStore);
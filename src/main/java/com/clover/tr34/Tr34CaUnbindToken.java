@@ -67,8 +67,31 @@ public class Tr34CaUnbindToken extends Tr34SignedObject {
         }
     }
 
+    /**
+     * Parts of the unbind tokens for every KRD bound to the same KDH, encoded once, see
+     * {@link Tr34CampaignEngine}.
+     */
+    static final class Prepared {
+        final X509Certificate kdhCert;
+        final byte[] kdhIssuerAndSerial;
+
+        Prepared(X509Certificate kdhCert) {
+            try {
+                this.kdhCert = kdhCert;
+                this.kdhIssuerAndSerial = new IssuerAndSerialNumber(
+                        Certificate.getInstance(kdhCert.getEncoded())).getEncoded();
+            } catch (Exception e) {
+                throw new Tr34Exception(e);
+            }
+        }
+    }
+
     public static Tr34CaUnbindToken create(X509Certificate krdCert,
                                            X509Certificate kdhCert, Tr34ScdKeyStoreData krdKeyStore) {
+        return create(krdCert, new Prepared(kdhCert), krdKeyStore);
+    }
+
+    static Tr34CaUnbindToken create(X509Certificate krdCert, Prepared prepared, Tr34ScdKeyStoreData krdKeyStore) {
         try {
             ASN1EncodableVector attributes = new ASN1EncodableVector();
             AttributeTable at = new AttributeTable(attributes);
@@ -77,12 +100,9 @@ public class Tr34CaUnbindToken extends Tr34SignedObject {
             IssuerAndSerialNumber krdIssuerAndSerial =
                     new IssuerAndSerialNumber(Certificate.getInstance(krdCert.getEncoded()));
 
-            IssuerAndSerialNumber kdhIssuerAndSerial =
-                    new IssuerAndSerialNumber(Certificate.getInstance(kdhCert.getEncoded()));
-
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             baos.write(krdIssuerAndSerial.getEncoded());
-            baos.write(kdhIssuerAndSerial.getEncoded());
+            baos.write(prepared.kdhIssuerAndSerial);
 
             byte[] encapDataBytes = baos.toByteArray();
 
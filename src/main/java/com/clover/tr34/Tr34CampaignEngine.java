@@ -0,0 +1,416 @@
+package com.clover.tr34;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Issues CA rebind or CA unbind tokens to every KRD of a fleet, e.g. after a KDH key was rotated or
+ * compromised. The parts shared by all tokens of a campaign, the current KDH identifier and the new
+ * KDH certificate, are encoded once. Devices are processed in chunks whose tokens are generated in
+ * parallel and appended in device order to a number of shard files, device i going to shard
+ * i modulo the shard count.
+ * <p>
+ * After each chunk the shards are forced to disk and a checkpoint is replaced atomically. Running
+ * the same campaign on the same device list and directory again resumes after the last checkpoint.
+ * The checkpoint holds a SHA-256 of the certificates of the devices completed so far, a resume checks
+ * that the device list still starts with exactly those devices, devices may only have been
+ * appended.
+ * <p>
+ * A governor keeps the campaign from starving interactive traffic: tokens are started at no more
+ * than the configured rate, and with a {@link Tr34SigningScheduler} they run as
+ * {@link Tr34SigningScheduler.Priority#BULK}, the scheduler's weights bound the share of the workers
+ * they take from interactive requests.
+ * <p>
+ * File layout:
+ * <pre>
+ * shard       length(4) | token(DER), repeated
+ * checkpoint  magic(4) | version(4) | campaign(32) | shards(4) | devices(8) | devicesDigest(32)
+ *             | shardLength(8) per shard | crc32(4)
+ * </pre>
+ */
+public final class Tr34CampaignEngine {
+
+    private static final int MAGIC = 0x5452344d;
+    private static final int FORMAT_VERSION = 2;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int CHECKPOINT_HEADER_SIZE = 52 + DIGEST_LENGTH;
+    private static final String CHECKPOINT_FILE = "campaign.ckpt";
+    private static final long BULK_DEADLINE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Tr34TokenFactory factory;
+    private final byte[] campaignId;
+    private final Function<List<X509Certificate>, Tr34Object> generator;
+
+    private Executor executor = ForkJoinPool.commonPool();
+    private Tr34SigningScheduler scheduler;
+    private int shards = 16;
+    private int chunkSize = 1024;
+    private long permitIntervalNanos;
+    private long nextPermitNanos;
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Result {
+        private final long deviceCount;
+        private final long resumedDeviceCount;
+
+        Result(long deviceCount, long resumedDeviceCount) {
+            this.deviceCount = deviceCount;
+            this.resumedDeviceCount = resumedDeviceCount;
+        }
+
+        /**
+         * Number of devices with a token in the shards, including those of earlier runs.
+         */
+        public long getDeviceCount() {
+            return deviceCount;
+        }
+
+        /**
+         * Number of devices found complete at the last checkpoint when the run started.
+         */
+        public long getResumedDeviceCount() {
+            return resumedDeviceCount;
+        }
+    }
+
+    private Tr34CampaignEngine(Tr34TokenFactory factory, byte[] campaignId,
+                               Function<List<X509Certificate>, Tr34Object> generator) {
+        this.factory = factory;
+        this.campaignId = campaignId;
+        this.generator = generator;
+    }
+
+    /**
+     * A campaign of {@link Tr34CaRebindToken}s moving every KRD from the current to the new KDH.
+     */
+    public static Tr34CampaignEngine rebind(Tr34TokenFactory factory, X509Certificate currentKdhCert,
+                                            X509Certificate newKdhCert) {
+        Tr34CaRebindToken.Prepared prepared = new Tr34CaRebindToken.Prepared(currentKdhCert, newKdhCert);
+        return new Tr34CampaignEngine(factory, campaignId("CA REBIND", currentKdhCert, newKdhCert),
+                krdChain -> factory.generateCaRebindToken(krdChain, prepared));
+    }
+
+    /**
+     * A campaign of {@link Tr34CaUnbindToken}s unbinding every KRD from the current KDH.
+     */
+    public static Tr34CampaignEngine unbind(Tr34TokenFactory factory, X509Certificate currentKdhCert) {
+        Tr34CaUnbindToken.Prepared prepared = new Tr34CaUnbindToken.Prepared(currentKdhCert);
+        return new Tr34CampaignEngine(factory, campaignId("CA UNBIND", currentKdhCert),
+                krdChain -> factory.generateCaUnbindToken(krdChain, prepared));
+    }
+
+    /**
+     * Runs token generation, defaults to the common pool. Ignored with a scheduler.
+     */
+    public Tr34CampaignEngine withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Runs token generation as bulk work on the scheduler, sharing its workers with interactive
+     * requests.
+     */
+    public Tr34CampaignEngine withScheduler(Tr34SigningScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Number of output files, defaults to 16. Must not change when resuming.
+     */
+    public Tr34CampaignEngine withShards(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive");
+        }
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * Number of devices generated in parallel and committed by each checkpoint, defaults to 1024.
+     */
+    public Tr34CampaignEngine withChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Upper bound on the rate at which tokens are started, unlimited by default.
+     */
+    public Tr34CampaignEngine withMaxTokensPerSecond(double maxTokensPerSecond) {
+        if (!(maxTokensPerSecond > 0)) {
+            throw new IllegalArgumentException("maxTokensPerSecond must be positive");
+        }
+        this.permitIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / maxTokensPerSecond);
+        return this;
+    }
+
+    public static Path shardFile(Path directory, int shard) {
+        return directory.resolve(String.format("shard-%03d.tokens", shard));
+    }
+
+    /**
+     * Issues tokens to the KRDs, whose certificates must be issued by the key store's KRD CA. Devices
+     * covered by the last checkpoint are skipped without being generated again.
+     *
+     * @param krdCerts The device list, iterated in the same order by every run of the campaign
+     * @throws Tr34Exception If a device fails, naming its index. Chunks completed before it stay
+     * committed. Also if the device list does not start with the devices the checkpoint covers.
+     */
+    public Result run(Iterable<X509Certificate> krdCerts, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+        long[] shardLengths = new long[shards];
+        byte[] devicesDigest = new byte[DIGEST_LENGTH];
+        long devices = readCheckpoint(checkpointFile, shardLengths, devicesDigest);
+        long resumed = devices;
+
+        FileChannel[] channels = new FileChannel[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                channels[i] = FileChannel.open(shardFile(directory, i), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                // Drop whatever an interrupted chunk left behind
+                channels[i].truncate(shardLengths[i]);
+            }
+
+            Iterator<X509Certificate> iterator = krdCerts.iterator();
+            MessageDigest deviceDigest = newDigest();
+            for (long skipped = 0; skipped < devices; skipped++) {
+                if (!iterator.hasNext()) {
+                    throw new Tr34Exception("Campaign checkpoint " + checkpointFile + " covers " + devices
+                            + " devices, the device list has " + skipped);
+                }
+                update(deviceDigest, iterator.next());
+            }
+            if (!MessageDigest.isEqual(devicesDigest, digestSoFar(deviceDigest))) {
+                throw new Tr34Exception("Campaign checkpoint " + checkpointFile + " belongs to a different device list");
+            }
+
+            X509Certificate krdCaCert = factory.getKeyStoreData().getKrdCaCert();
+            List<CompletableFuture<Tr34Object>> chunk = new ArrayList<>(chunkSize);
+            ByteBuffer staging = ByteBuffer.allocate(4096);
+            while (iterator.hasNext()) {
+                chunk.clear();
+                while (chunk.size() < chunkSize && iterator.hasNext()) {
+                    X509Certificate krdCert = iterator.next();
+                    update(deviceDigest, krdCert);
+                    chunk.add(submit(Arrays.asList(krdCert, krdCaCert)));
+                }
+
+                List<Tr34Object> tokens = new ArrayList<>(chunk.size());
+                for (int i = 0; i < chunk.size(); i++) {
+                    try {
+                        tokens.add(chunk.get(i).join());
+                    } catch (CompletionException e) {
+                        // Let the rest of the chunk finish before giving up on it
+                        CompletableFuture.allOf(chunk.toArray(new CompletableFuture<?>[0])).exceptionally(t -> null)
+                                .join();
+                        throw new Tr34Exception("Failed to generate token for device " + (devices + i), e.getCause());
+                    }
+                }
+
+                for (Tr34Object token : tokens) {
+                    int shard = (int) (devices % shards);
+                    int length = token.getEncodedLength();
+                    if (staging.capacity() < 4 + length) {
+                        staging = ByteBuffer.allocate(4 + length);
+                    }
+                    staging.clear();
+                    staging.putInt(length);
+                    token.encodeTo(staging);
+                    staging.flip();
+                    shardLengths[shard] += writeFully(channels[shard], staging, shardLengths[shard]);
+                    devices++;
+                }
+
+                for (FileChannel channel : channels) {
+                    channel.force(false);
+                }
+                writeCheckpoint(checkpointFile, devices, digestSoFar(deviceDigest), shardLengths);
+            }
+            return new Result(devices, resumed);
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    private CompletableFuture<Tr34Object> submit(List<X509Certificate> krdChain) {
+        awaitPermit();
+        if (scheduler == null) {
+            return CompletableFuture.supplyAsync(() -> generator.apply(krdChain), executor);
+        }
+
+        while (true) {
+            try {
+                return scheduler.submit(Tr34SigningScheduler.Priority.BULK,
+                        System.currentTimeMillis() + BULK_DEADLINE_MILLIS, f -> generator.apply(krdChain));
+            } catch (RejectedExecutionException e) {
+                // Bulk queue full, wait for it to drain
+                pause(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+    }
+
+    private void awaitPermit() {
+        if (permitIntervalNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (nextPermitNanos - now > 0) {
+            pause(nextPermitNanos - now);
+            now = nextPermitNanos;
+        }
+        // No credit is accumulated while idle, so a resumed campaign does not start with a burst
+        nextPermitNanos = Math.max(nextPermitNanos, now) + permitIntervalNanos;
+    }
+
+    private static void pause(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Tr34Exception("Campaign interrupted", e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, X509Certificate cert) {
+        try {
+            digest.update(cert.getEncoded());
+        } catch (CertificateEncodingException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Digest of the devices so far, the running digest keeps its state.
+     */
+    private static byte[] digestSoFar(MessageDigest digest) {
+        try {
+            return ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private static byte[] campaignId(String type, X509Certificate... kdhCerts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(type.getBytes(StandardCharsets.US_ASCII));
+            for (X509Certificate cert : kdhCerts) {
+                md.update(cert.getEncoded());
+            }
+            return md.digest();
+        } catch (CertificateEncodingException | NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * @param devicesDigest Receives the digest of the completed devices, that of no devices without a
+     * checkpoint
+     * @return Number of completed devices, zero without a checkpoint
+     */
+    private long readCheckpoint(Path file, long[] shardLengths, byte[] devicesDigest) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            System.arraycopy(newDigest().digest(), 0, devicesDigest, 0, DIGEST_LENGTH);
+            return 0;
+        }
+
+        ByteBuffer checkpoint = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(0, bytes.length - 4));
+        if (bytes.length < CHECKPOINT_HEADER_SIZE + 4 || checkpoint.getInt(0) != MAGIC
+                || checkpoint.getInt(4) != FORMAT_VERSION || checkpoint.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new Tr34Exception("Invalid campaign checkpoint " + file);
+        }
+        byte[] id = new byte[campaignId.length];
+        ((ByteBuffer) checkpoint.position(8)).get(id);
+        if (!MessageDigest.isEqual(id, campaignId)) {
+            throw new Tr34Exception("Campaign checkpoint " + file + " belongs to a different campaign");
+        }
+        if (checkpoint.getInt(40) != shards || bytes.length != CHECKPOINT_HEADER_SIZE + shards * 8 + 4) {
+            throw new Tr34Exception("Campaign checkpoint " + file + " has " + checkpoint.getInt(40) + " shards");
+        }
+
+        ((ByteBuffer) checkpoint.position(52)).get(devicesDigest);
+        for (int i = 0; i < shards; i++) {
+            shardLengths[i] = checkpoint.getLong();
+        }
+        return checkpoint.getLong(44);
+    }
+
+    private void writeCheckpoint(Path file, long devices, byte[] devicesDigest, long[] shardLengths)
+            throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_HEADER_SIZE + shards * 8 + 4);
+        checkpoint.putInt(MAGIC).putInt(FORMAT_VERSION).put(campaignId).putInt(shards).putLong(devices)
+                .put(devicesDigest);
+        for (long length : shardLengths) {
+            checkpoint.putLong(length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint.array(), 0, checkpoint.position());
+        checkpoint.putInt((int) crc.getValue()).flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, checkpoint, 0);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.x509.Certificate;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Interns certificates by the SHA-256 digest of their DER encoding so a certificate seen again,
+ * e.g. the KRD CA in every request or the new KDH certificate in rebind tokens, is neither parsed
+ * nor held twice. Least recently used entries are evicted once the cache is full, an evicted
+ * certificate is simply parsed again on its next use.
+ * <p>
+ * {@link Tr34CryptoUtils#parseCert(byte[])} interns through {@link #getDefault()}. Thread safe.
+ */
+public final class Tr34CertificateCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+    private static volatile Tr34CertificateCache defaultCache = new Tr34CertificateCache(DEFAULT_MAX_ENTRIES);
+
+    private final int maxEntries;
+    private final Map<ByteBuffer, Interned> entries;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * A shared, immutable certificate together with values derived from it once.
+     */
+    public static final class Interned {
+        private final X509Certificate certificate;
+        private final byte[] encoded;
+        private final byte[] fingerprint;
+        private final IssuerAndSerialNumber issuerAndSerialNumber;
+
+        private Interned(X509Certificate certificate, byte[] encoded, byte[] fingerprint) {
+            this.certificate = certificate;
+            this.encoded = encoded;
+            this.fingerprint = fingerprint;
+            this.issuerAndSerialNumber = new IssuerAndSerialNumber(Certificate.getInstance(encoded));
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        /**
+         * Read only view of the DER encoding, no copy is made.
+         */
+        public ByteBuffer getEncoded() {
+            return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+        }
+
+        /**
+         * Same as {@link Tr34CryptoUtils#sha256Fingerprint(X509Certificate)}.
+         */
+        public byte[] getFingerprint() {
+            return fingerprint.clone();
+        }
+
+        /**
+         * The fingerprint as a map key, without a copy.
+         */
+        ByteBuffer fingerprintKey() {
+            return ByteBuffer.wrap(fingerprint).asReadOnlyBuffer();
+        }
+
+        public PublicKey getPublicKey() {
+            return certificate.getPublicKey();
+        }
+
+        public IssuerAndSerialNumber getIssuerAndSerialNumber() {
+            return issuerAndSerialNumber;
+        }
+    }
+
+    public Tr34CertificateCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<ByteBuffer, Interned>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Interned> eldest) {
+                return size() > Tr34CertificateCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Holds up to 1024 certificates.
+     */
+    public static Tr34CertificateCache getDefault() {
+        return defaultCache;
+    }
+
+    public static void setDefault(Tr34CertificateCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("Certificate cache required");
+        }
+        defaultCache = cache;
+    }
+
+    /**
+     * Returns the shared instance for the DER encoded certificate, parsing it only if it is not cached.
+     * The array is not retained.
+     *
+     * @throws IllegalArgumentException If the certificate does not parse or is followed by other data
+     */
+    public Interned intern(byte[] der) {
+        checkSingleElement(der);
+        byte[] fingerprint = Tr34CryptoUtils.sha256(der);
+        ByteBuffer key = ByteBuffer.wrap(fingerprint);
+
+        synchronized (this) {
+            Interned interned = entries.get(key);
+            if (interned != null) {
+                hits++;
+                return interned;
+            }
+            misses++;
+        }
+
+        Interned parsed = new Interned(parse(der), der.clone(), fingerprint);
+        synchronized (this) {
+            // A racing thread may have interned it first, everyone shares the first one
+            Interned interned = entries.get(key);
+            if (interned != null) {
+                return interned;
+            }
+            entries.put(key, parsed);
+        }
+        return parsed;
+    }
+
+    public Interned intern(X509Certificate cert) {
+        try {
+            return intern(cert.getEncoded());
+        } catch (CertificateEncodingException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * The fingerprint and the held encoding must cover exactly the certificate.
+     */
+    private static void checkSingleElement(byte[] der) {
+        int end;
+        try {
+            end = new Tr34DerWalker().reset(ByteBuffer.wrap(der)).skip(0, der.length, Tr34DerWalker.TAG_SEQUENCE);
+        } catch (Tr34Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (end != der.length) {
+            throw new IllegalArgumentException("Unexpected data after certificate at offset " + end);
+        }
+    }
+
+    private static X509Certificate parse(byte[] der) {
+        try {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509", Tr34Provider.PROVIDER);
+            return (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(der));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+}
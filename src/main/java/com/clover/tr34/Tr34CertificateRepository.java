@@ -0,0 +1,671 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Principal;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Stores DER encoded certificates, typically KRD certificates of a whole device fleet together
+ * with their CA certificates, outside the Java heap.
+ * <p>
+ * Certificates are appended to a memory-mapped data file and indexed by the digest of their
+ * IssuerAndSerialNumber and by their SHA-256 fingerprint in a memory-mapped hash index kept next to
+ * it with an ".index" suffix. Each record links to the record of its issuer so a complete chain is
+ * rebuilt from the leaf alone, CA certificates shared by many devices are stored once.
+ * <p>
+ * Lookups return lightweight views which hold only the location of the encoding and parse the
+ * certificate the first time a method other than {@link X509Certificate#getEncoded()} is called.
+ * Views can be passed directly as the krdChain arguments of {@link Tr34TokenFactory}.
+ * <p>
+ * Additions become durable with {@link #flush()}. Lookups use optimistic reads and do not block
+ * each other.
+ * <p>
+ * Layout:
+ * <pre>
+ * data header  magic(4) | version(4) | end(8) | reserved(48)
+ * data record  length(4) | issuerOffset(8) | der
+ * index header magic(4) | version(4) | capacity(4) | entries(4) | end(8) | certificates(4) | reserved(36)
+ * index slot   digest(32) | offset(8)
+ * </pre>
+ */
+public final class Tr34CertificateRepository implements Closeable {
+
+    private static final int DATA_MAGIC = 0x54523443;
+    private static final int INDEX_MAGIC = 0x54523449;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int END_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int INDEX_END_OFFSET = 16;
+    private static final int CERTIFICATES_OFFSET = 24;
+
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int MAX_CERT_LENGTH = 64 * 1024;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int SLOT_SIZE = 40;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int MAX_INDEX_CAPACITY = 1 << 25;
+    private static final long NO_ISSUER = -1;
+
+    private final FileChannel dataChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final int capacity;
+    private final int mask;
+    private final StampedLock lock = new StampedLock();
+
+    private volatile MappedByteBuffer[] segments;
+    private long end;
+    private int count;
+    private int certificates;
+    private boolean closed;
+
+    /**
+     * Opens the repository stored in the given file, creating it if needed.
+     *
+     * @param maxCertificates Number of certificates a new repository is sized for, ignored when the
+     * repository already exists
+     */
+    public Tr34CertificateRepository(Path file, int maxCertificates) {
+        if (maxCertificates <= 0) {
+            throw new IllegalArgumentException("maxCertificates must be positive");
+        }
+
+        FileChannel data = null;
+        FileChannel idx = null;
+        try {
+            data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            idx = FileChannel.open(file.resolveSibling(file.getFileName() + ".index"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            // Two index entries per certificate at a load factor of one half
+            long wanted = 4L * maxCertificates;
+            if (idx.size() == 0) {
+                int slots = 1;
+                while (slots < wanted) {
+                    slots <<= 1;
+                }
+                if (slots > MAX_INDEX_CAPACITY) {
+                    throw new IllegalArgumentException("maxCertificates too large");
+                }
+                this.capacity = slots;
+                this.index = idx.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+                index.putInt(0, INDEX_MAGIC);
+                index.putInt(4, FORMAT_VERSION);
+                index.putInt(8, slots);
+                index.putInt(COUNT_OFFSET, 0);
+                index.putLong(INDEX_END_OFFSET, HEADER_SIZE);
+            } else {
+                this.index = idx.map(FileChannel.MapMode.READ_WRITE, 0, idx.size());
+                this.capacity = index.getInt(8);
+                if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != FORMAT_VERSION
+                        || Integer.bitCount(capacity) != 1 || capacity > MAX_INDEX_CAPACITY
+                        || idx.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                    throw new Tr34Exception("Corrupt certificate index: " + file);
+                }
+            }
+
+            if (data.size() == 0) {
+                this.segments = new MappedByteBuffer[] {data.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE)};
+                segments[0].putInt(0, DATA_MAGIC);
+                segments[0].putInt(4, FORMAT_VERSION);
+                segments[0].putLong(END_OFFSET, HEADER_SIZE);
+            } else {
+                int segmentCount = (int) ((data.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+                MappedByteBuffer[] mapped = new MappedByteBuffer[segmentCount];
+                for (int i = 0; i < segmentCount; i++) {
+                    mapped[i] = data.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+                }
+                this.segments = mapped;
+                if (mapped[0].getInt(0) != DATA_MAGIC || mapped[0].getInt(4) != FORMAT_VERSION) {
+                    throw new Tr34Exception("Not a certificate repository: " + file);
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly(data);
+            closeQuietly(idx);
+            throw new Tr34Exception(e);
+        } catch (RuntimeException e) {
+            closeQuietly(data);
+            closeQuietly(idx);
+            throw e;
+        }
+
+        this.dataChannel = data;
+        this.indexChannel = idx;
+        this.mask = capacity - 1;
+        this.end = segments[0].getLong(END_OFFSET);
+        this.count = index.getInt(COUNT_OFFSET);
+        this.certificates = index.getInt(CERTIFICATES_OFFSET);
+
+        if (index.getLong(INDEX_END_OFFSET) != end) {
+            // Files were not flushed together, drop index entries for data which did not survive
+            scrubIndex();
+        }
+    }
+
+    private void scrubIndex() {
+        List<byte[]> digests = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = index.getLong(position + DIGEST_LENGTH);
+            if (offset != 0) {
+                if (offset < end) {
+                    byte[] digest = new byte[DIGEST_LENGTH];
+                    for (int i = 0; i < DIGEST_LENGTH; i++) {
+                        digest[i] = index.get(position + i);
+                    }
+                    digests.add(digest);
+                    offsets.add(offset);
+                }
+                for (int i = 0; i < SLOT_SIZE; i++) {
+                    index.put(position + i, (byte) 0);
+                }
+            }
+        }
+
+        // Reinsert survivors so no probe sequence has a hole
+        count = 0;
+        for (int i = 0; i < digests.size(); i++) {
+            insert(digests.get(i), offsets.get(i));
+        }
+        certificates = Math.min(certificates, count);
+        index.putInt(CERTIFICATES_OFFSET, certificates);
+        index.putLong(INDEX_END_OFFSET, end);
+    }
+
+    /**
+     * Stores a certificate chain, leaf first, and returns a view of the stored leaf. Certificates
+     * already present are not stored again.
+     */
+    public X509Certificate add(List<X509Certificate> chain) {
+        if (chain.isEmpty()) {
+            throw new IllegalArgumentException("Empty chain");
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            if (closed) {
+                throw new Tr34Exception("Certificate repository closed");
+            }
+            long issuerOffset = NO_ISSUER;
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                issuerOffset = store(chain.get(i), issuerOffset);
+            }
+            segments[0].putLong(END_OFFSET, end);
+            index.putLong(INDEX_END_OFFSET, end);
+            return view(issuerOffset);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private long store(X509Certificate cert, long issuerOffset) {
+        byte[] der;
+        try {
+            der = cert.getEncoded();
+        } catch (CertificateEncodingException e) {
+            throw new Tr34Exception(e);
+        }
+        if (der.length > MAX_CERT_LENGTH) {
+            throw new Tr34Exception("Certificate too large");
+        }
+
+        byte[] fingerprint = Tr34CryptoUtils.sha256(der);
+        long existing = find(fingerprint);
+        if (existing != 0) {
+            return existing;
+        }
+        if ((count + 2) * 2L > capacity) {
+            throw new Tr34Exception("Certificate repository full");
+        }
+
+        int recordLength = RECORD_HEADER_SIZE + der.length;
+        long offset = end;
+        if (offset / SEGMENT_SIZE != (offset + recordLength - 1) / SEGMENT_SIZE) {
+            // Records never span segments
+            offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        }
+        MappedByteBuffer segment = segment(offset);
+        int position = (int) (offset % SEGMENT_SIZE);
+        segment.putInt(position, der.length);
+        segment.putLong(position + 4, issuerOffset);
+        ByteBuffer target = segment.duplicate();
+        target.position(position + RECORD_HEADER_SIZE);
+        target.put(der);
+        end = offset + recordLength;
+
+        insert(fingerprint, offset);
+        insert(isnDigest(Tr34CryptoUtils.getIssuerAndSerialNumber(cert)), offset);
+        certificates++;
+        index.putInt(CERTIFICATES_OFFSET, certificates);
+        return offset;
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        int i = (int) (offset / SEGMENT_SIZE);
+        if (i >= segments.length) {
+            MappedByteBuffer[] grown = new MappedByteBuffer[i + 1];
+            System.arraycopy(segments, 0, grown, 0, segments.length);
+            for (int s = segments.length; s <= i; s++) {
+                try {
+                    grown[s] = dataChannel.map(FileChannel.MapMode.READ_WRITE, (long) s * SEGMENT_SIZE, SEGMENT_SIZE);
+                } catch (IOException e) {
+                    throw new Tr34Exception(e);
+                }
+            }
+            segments = grown;
+        }
+        return segments[i];
+    }
+
+    /**
+     * Returns a view of the certificate or null if not stored.
+     */
+    public X509Certificate get(IssuerAndSerialNumber issuerAndSerialNumber) {
+        long offset = lookup(isnDigest(issuerAndSerialNumber));
+        return offset == 0 ? null : view(offset);
+    }
+
+    public X509Certificate getByFingerprint(byte[] sha256Fingerprint) {
+        long offset = lookup(sha256Fingerprint);
+        return offset == 0 ? null : view(offset);
+    }
+
+    /**
+     * Returns the stored chain of the certificate, leaf first, or null if the certificate is not
+     * stored. The chain contains the certificates that were passed to {@link #add(List)}.
+     */
+    public List<X509Certificate> getChain(IssuerAndSerialNumber issuerAndSerialNumber) {
+        long offset = lookup(isnDigest(issuerAndSerialNumber));
+        if (offset == 0) {
+            return null;
+        }
+
+        List<X509Certificate> chain = new ArrayList<>(3);
+        while (offset != NO_ISSUER) {
+            CertificateView view = view(offset);
+            chain.add(view);
+            offset = view.issuerOffset;
+            if (chain.size() > 16) {
+                throw new Tr34Exception("Certificate chain too long");
+            }
+        }
+        return chain;
+    }
+
+    public List<X509Certificate> getChain(X509Certificate leafCert) {
+        return getChain(Tr34CryptoUtils.getIssuerAndSerialNumber(leafCert));
+    }
+
+    /**
+     * Number of distinct certificates stored.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return certificates;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Forces stored certificates to disk.
+     */
+    public void flush() {
+        long stamp = lock.writeLock();
+        try {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            index.force();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        long stamp = lock.writeLock();
+        try {
+            closed = true;
+            closeQuietly(indexChannel);
+            closeQuietly(dataChannel);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private CertificateView view(long offset) {
+        MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+        int length = segment.getInt(position);
+        long issuerOffset = segment.getLong(position + 4);
+
+        ByteBuffer der = segment.duplicate();
+        der.position(position + RECORD_HEADER_SIZE);
+        der.limit(position + RECORD_HEADER_SIZE + length);
+        return new CertificateView(der.slice().asReadOnlyBuffer(), issuerOffset);
+    }
+
+    private long lookup(byte[] digest) {
+        long stamp = lock.tryOptimisticRead();
+        long offset = find(digest);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                offset = find(digest);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return offset;
+    }
+
+    private long find(byte[] digest) {
+        int slot = home(digest);
+        for (int probes = 0; probes < capacity; probes++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = index.getLong(position + DIGEST_LENGTH);
+            if (offset == 0) {
+                return 0;
+            }
+            if (digestMatches(position, digest)) {
+                return offset < end ? offset : 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private void insert(byte[] digest, long offset) {
+        int slot = home(digest);
+        while (true) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long existing = index.getLong(position + DIGEST_LENGTH);
+            if (existing == 0) {
+                for (int i = 0; i < DIGEST_LENGTH; i++) {
+                    index.put(position + i, digest[i]);
+                }
+                index.putLong(position + DIGEST_LENGTH, offset);
+                count++;
+                index.putInt(COUNT_OFFSET, count);
+                return;
+            }
+            if (digestMatches(position, digest)) {
+                // Keep the first certificate stored under an IssuerAndSerialNumber
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean digestMatches(int position, byte[] digest) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (index.get(position + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int home(byte[] digest) {
+        return ((digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8
+                | (digest[3] & 0xff)) & mask;
+    }
+
+    private static byte[] isnDigest(IssuerAndSerialNumber issuerAndSerialNumber) {
+        try {
+            byte[] encoded = issuerAndSerialNumber.getEncoded();
+            // Prefix keeps these digests apart from certificate fingerprints
+            byte[] prefixed = new byte[encoded.length + 1];
+            prefixed[0] = 'I';
+            System.arraycopy(encoded, 0, prefixed, 1, encoded.length);
+            return Tr34CryptoUtils.sha256(prefixed);
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Certificate backed by its encoding in the repository, parsed on first use.
+     */
+    private static final class CertificateView extends X509Certificate {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer der;
+        private final long issuerOffset;
+        private volatile X509Certificate parsed;
+
+        CertificateView(ByteBuffer der, long issuerOffset) {
+            this.der = der;
+            this.issuerOffset = issuerOffset;
+        }
+
+        private X509Certificate cert() {
+            X509Certificate cert = parsed;
+            if (cert == null) {
+                try {
+                    cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                            .generateCertificate(new ByteArrayInputStream(getEncoded()));
+                } catch (CertificateException e) {
+                    throw new Tr34Exception(e);
+                }
+                parsed = cert;
+            }
+            return cert;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            byte[] encoded = new byte[der.remaining()];
+            der.duplicate().get(encoded);
+            return encoded;
+        }
+
+        @Override
+        public void checkValidity() throws CertificateExpiredException, CertificateNotYetValidException {
+            cert().checkValidity();
+        }
+
+        @Override
+        public void checkValidity(Date date) throws CertificateExpiredException, CertificateNotYetValidException {
+            cert().checkValidity(date);
+        }
+
+        @Override
+        public int getVersion() {
+            return cert().getVersion();
+        }
+
+        @Override
+        public BigInteger getSerialNumber() {
+            return cert().getSerialNumber();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Principal getIssuerDN() {
+            return cert().getIssuerDN();
+        }
+
+        @Override
+        public X500Principal getIssuerX500Principal() {
+            return cert().getIssuerX500Principal();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Principal getSubjectDN() {
+            return cert().getSubjectDN();
+        }
+
+        @Override
+        public X500Principal getSubjectX500Principal() {
+            return cert().getSubjectX500Principal();
+        }
+
+        @Override
+        public Date getNotBefore() {
+            return cert().getNotBefore();
+        }
+
+        @Override
+        public Date getNotAfter() {
+            return cert().getNotAfter();
+        }
+
+        @Override
+        public byte[] getTBSCertificate() throws CertificateEncodingException {
+            return cert().getTBSCertificate();
+        }
+
+        @Override
+        public byte[] getSignature() {
+            return cert().getSignature();
+        }
+
+        @Override
+        public String getSigAlgName() {
+            return cert().getSigAlgName();
+        }
+
+        @Override
+        public String getSigAlgOID() {
+            return cert().getSigAlgOID();
+        }
+
+        @Override
+        public byte[] getSigAlgParams() {
+            return cert().getSigAlgParams();
+        }
+
+        @Override
+        public boolean[] getIssuerUniqueID() {
+            return cert().getIssuerUniqueID();
+        }
+
+        @Override
+        public boolean[] getSubjectUniqueID() {
+            return cert().getSubjectUniqueID();
+        }
+
+        @Override
+        public boolean[] getKeyUsage() {
+            return cert().getKeyUsage();
+        }
+
+        @Override
+        public List<String> getExtendedKeyUsage() throws CertificateParsingException {
+            return cert().getExtendedKeyUsage();
+        }
+
+        @Override
+        public int getBasicConstraints() {
+            return cert().getBasicConstraints();
+        }
+
+        @Override
+        public Collection<List<?>> getSubjectAlternativeNames() throws CertificateParsingException {
+            return cert().getSubjectAlternativeNames();
+        }
+
+        @Override
+        public Collection<List<?>> getIssuerAlternativeNames() throws CertificateParsingException {
+            return cert().getIssuerAlternativeNames();
+        }
+
+        @Override
+        public void verify(PublicKey key) throws CertificateException, NoSuchAlgorithmException,
+                InvalidKeyException, NoSuchProviderException, SignatureException {
+            cert().verify(key);
+        }
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) throws CertificateException,
+                NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, SignatureException {
+            cert().verify(key, sigProvider);
+        }
+
+        @Override
+        public void verify(PublicKey key, Provider sigProvider) throws CertificateException,
+                NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+            cert().verify(key, sigProvider);
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return cert().getPublicKey();
+        }
+
+        @Override
+        public boolean hasUnsupportedCriticalExtension() {
+            return cert().hasUnsupportedCriticalExtension();
+        }
+
+        @Override
+        public Set<String> getCriticalExtensionOIDs() {
+            return cert().getCriticalExtensionOIDs();
+        }
+
+        @Override
+        public Set<String> getNonCriticalExtensionOIDs() {
+            return cert().getNonCriticalExtensionOIDs();
+        }
+
+        @Override
+        public byte[] getExtensionValue(String oid) {
+            return cert().getExtensionValue(oid);
+        }
+
+        @Override
+        public String toString() {
+            return cert().toString();
+        }
+    }
+
+}
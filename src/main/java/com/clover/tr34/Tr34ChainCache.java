@@ -0,0 +1,98 @@
+package com.clover.tr34;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers certificate chains which already validated against one root certificate so that
+ * repeated requests from the same KRD skip path validation.
+ * <p>
+ * Only successful validations are remembered. Chain validation in this library ignores
+ * certificate dates and revocation, so a chain which validated once will always validate. A
+ * single instance may be shared by every {@link Tr34TokenFactory} trusting the same root.
+ */
+public final class Tr34ChainCache {
+
+    private final X509Certificate rootCert;
+    private final int maxEntries;
+    private final Map<ByteBuffer, Boolean> verified;
+
+    private long hits;
+    private long misses;
+
+    public Tr34ChainCache(X509Certificate rootCert, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.rootCert = rootCert;
+        this.maxEntries = maxEntries;
+        this.verified = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > Tr34ChainCache.this.maxEntries;
+            }
+        };
+    }
+
+    public X509Certificate getRootCert() {
+        return rootCert;
+    }
+
+    /**
+     * Same contract as {@link Tr34CryptoUtils#verifyCertificateChain(List, X509Certificate)} using
+     * this cache's root.
+     */
+    public void verify(List<X509Certificate> chain) {
+        ByteBuffer key = ByteBuffer.wrap(digestChain(chain));
+
+        synchronized (this) {
+            if (verified.get(key) != null) {
+                hits++;
+                return;
+            }
+            misses++;
+        }
+
+        Tr34CryptoUtils.verifyCertificateChain(chain, rootCert);
+
+        synchronized (this) {
+            verified.put(key, Boolean.TRUE);
+        }
+    }
+
+    private static byte[] digestChain(List<X509Certificate> chain) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (X509Certificate cert : chain) {
+                byte[] encoded = cert.getEncoded();
+                md.update((byte) (encoded.length >>> 24));
+                md.update((byte) (encoded.length >>> 16));
+                md.update((byte) (encoded.length >>> 8));
+                md.update((byte) encoded.length);
+                md.update(encoded);
+            }
+            return md.digest();
+        } catch (CertificateEncodingException | NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    public synchronized int size() {
+        return verified.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+}
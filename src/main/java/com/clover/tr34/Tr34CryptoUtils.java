@@ -1,6 +1,9 @@
 package com.clover.tr34;
 
+import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.x509.Certificate;
 import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v2CRLBuilder;
@@ -16,11 +19,16 @@ import org.bouncycastle.util.io.pem.PemReader;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.CertPath;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509CRL;
@@ -88,10 +96,19 @@ public final class Tr34CryptoUtils {
         return parseCert(pem.getBytes());
     }
 
+    /**
+     * Parses a DER or PEM encoded certificate. The result is interned in
+     * {@link Tr34CertificateCache#getDefault()} and may be shared with other callers.
+     */
     public static X509Certificate parseCert(byte[] der) {
+        if (der.length > 0 && der[0] == 0x30) {
+            return Tr34CertificateCache.getDefault().intern(der).getCertificate();
+        }
+
         try {
             CertificateFactory cf = CertificateFactory.getInstance("X.509", Tr34Provider.PROVIDER);
-            return (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(der));
+            X509Certificate cert = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(der));
+            return Tr34CertificateCache.getDefault().intern(cert.getEncoded()).getCertificate();
         } catch (Exception e) {
             throw new IllegalArgumentException(e);
         }
@@ -145,6 +162,33 @@ public final class Tr34CryptoUtils {
         }
     }
 
+    public static IssuerAndSerialNumber getIssuerAndSerialNumber(X509Certificate cert) {
+        try {
+            return new IssuerAndSerialNumber(Certificate.getInstance(cert.getEncoded()));
+        } catch (CertificateEncodingException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * SHA-256 digest of the DER encoded certificate.
+     */
+    public static byte[] sha256Fingerprint(X509Certificate cert) {
+        try {
+            return sha256(cert.getEncoded());
+        } catch (CertificateEncodingException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    public static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
     public static byte[] pemToDer(String pem) {
         try {
             return new PemReader(new StringReader(pem)).readPemObject().getContent();
@@ -153,9 +197,16 @@ public final class Tr34CryptoUtils {
         }
     }
 
+    /**
+     * Decodes a PEM String, DER byte[], ASN1Primitive or ByteBuffer. A ByteBuffer is read in place
+     * from its position, which is advanced past the decoded object so several objects may be decoded
+     * back to back from one buffer.
+     */
     public static ASN1Primitive decodeToAsn1(Object encoded) {
         try {
-            if (encoded instanceof String) {
+            if (encoded instanceof ByteBuffer) {
+                return decodeToAsn1((ByteBuffer) encoded);
+            } else if (encoded instanceof String) {
                 return ASN1Primitive.fromByteArray(pemToDer((String) encoded));
             } else if (encoded instanceof byte[]) {
                 return ASN1Primitive.fromByteArray((byte[]) encoded);
@@ -169,6 +220,51 @@ public final class Tr34CryptoUtils {
         throw new Tr34Exception("Unable to decode instances of " + encoded.getClass());
     }
 
+    private static ASN1Primitive decodeToAsn1(ByteBuffer buffer) throws IOException {
+        ByteBuffer view = buffer.duplicate();
+        ASN1Primitive primitive;
+        // ASN1InputStream reads exactly one object without reading ahead
+        try (ASN1InputStream in = new ASN1InputStream(new ByteBufferInputStream(view), view.remaining())) {
+            primitive = in.readObject();
+        }
+        if (primitive == null) {
+            throw new Tr34Exception("No ASN.1 object in buffer");
+        }
+        buffer.position(view.position());
+        return primitive;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     public static Date createHoursFromNowDate(long hoursFromNow) {
         long secs = System.currentTimeMillis() / 1000;
         return new Date((secs + (hoursFromNow * 60 * 60)) * 1000);
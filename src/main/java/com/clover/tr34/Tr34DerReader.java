@@ -0,0 +1,269 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.x500.X500Name;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads the fields of inbound KRD tokens directly from their DER encoding without building an
+ * ASN.1 object tree. A reader is reused for any number of tokens, each read method only records
+ * offsets into the caller's buffer, so nothing is allocated per token unless a field is copied
+ * out. Offsets are absolute positions in the buffer, which must not be modified while they are in
+ * use. Not thread safe, use one reader per thread.
+ * <p>
+ * The structural checks match {@link Tr34RandomToken#getRandomNumber()} and
+ * {@link Tr34KrdCredentialToken#decode(Object)}, except that the KRD certificate is only walked up to
+ * its issuer name and is not parsed as a whole. Only definite length encodings are accepted.
+ */
+public final class Tr34DerReader {
+
+    private static final byte[] RANDOM_NONCE_OID = encodedOid(Tr34ObjectIdentifiers.randomNonce);
+    private static final byte[] SIGNED_DATA_OID = encodedOid(CMSObjectIdentifiers.signedData);
+
+    private final Tr34DerWalker der = new Tr34DerWalker();
+    private ByteBuffer buffer;
+
+    private int nonceOffset;
+    private int nonceLength;
+
+    private int certOffset;
+    private int certLength;
+    private int issuerOffset;
+    private int issuerLength;
+    private int serialOffset;
+    private int serialLength;
+
+    /**
+     * Reads a KRD random token at the buffer's position and advances the position past it.
+     *
+     * @throws Tr34Exception If the token is malformed
+     */
+    public Tr34DerReader readRandomToken(ByteBuffer buffer) {
+        this.buffer = buffer;
+        der.reset(buffer);
+        int start = buffer.position();
+
+        int content = der.header(start, buffer.limit(), Tr34DerWalker.TAG_SEQUENCE);
+        int end = content + der.length();
+
+        int setOffset = expectBytes(content, end, RANDOM_NONCE_OID, "Invalid random token identifier");
+        int setContent = der.header(setOffset, end, Tr34DerWalker.TAG_SET);
+        int octets = der.header(setContent, setContent + der.length(), Tr34DerWalker.TAG_OCTET_STRING);
+
+        // ASC X9 TR 34 samples use either 8 or 16
+        if (der.length() < 8 || der.length() > 16) {
+            throw new Tr34Exception("Unsupported nonce length: " + der.length());
+        }
+        nonceOffset = octets;
+        nonceLength = der.length();
+
+        buffer.position(end);
+        return this;
+    }
+
+    /**
+     * Reads a KRD credential token at the buffer's position and advances the position past it.
+     *
+     * @throws Tr34Exception If the token is malformed
+     */
+    public Tr34DerReader readKrdCredentialToken(ByteBuffer buffer) {
+        this.buffer = buffer;
+        der.reset(buffer);
+        int start = buffer.position();
+
+        // ContentInfo
+        int content = der.header(start, buffer.limit(), Tr34DerWalker.TAG_SEQUENCE);
+        int end = content + der.length();
+        int explicit = expectBytes(content, end, SIGNED_DATA_OID, "Not a CMS signed data token");
+        int signedDataOffset = der.header(explicit, end, Tr34DerWalker.TAG_CONTEXT_0);
+
+        // SignedData
+        int pos = der.header(signedDataOffset, signedDataOffset + der.length(), Tr34DerWalker.TAG_SEQUENCE);
+        int signedDataEnd = pos + der.length();
+        pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_INTEGER);
+        pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_SET);
+        pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_SEQUENCE);
+
+        int certCount = 0;
+        if (der.tagAt(pos, signedDataEnd) == Tr34DerWalker.TAG_CONTEXT_0) {
+            int certs = der.header(pos, signedDataEnd, Tr34DerWalker.TAG_CONTEXT_0);
+            int certsEnd = certs + der.length();
+            for (int c = certs; c < certsEnd; certCount++) {
+                int next = der.skip(c, certsEnd, Tr34DerWalker.TAG_SEQUENCE);
+                certOffset = c;
+                certLength = next - c;
+                c = next;
+            }
+            pos = certsEnd;
+        }
+        if (certCount != 1) {
+            throw new Tr34Exception("Unexpected number of certificates");
+        }
+
+        if (der.tagAt(pos, signedDataEnd) == Tr34DerWalker.TAG_CONTEXT_1) {
+            der.header(pos, signedDataEnd, Tr34DerWalker.TAG_CONTEXT_1);
+            if (der.length() != 0) {
+                throw new Tr34Exception("CRLs not allowed");
+            }
+            pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_CONTEXT_1);
+        }
+        pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_SET);
+        if (pos != signedDataEnd) {
+            throw new Tr34Exception("Unexpected content after signer infos");
+        }
+
+        // Certificate and TBSCertificate up to the issuer
+        int certContent = der.header(certOffset, certOffset + certLength, Tr34DerWalker.TAG_SEQUENCE);
+        int tbs = der.header(certContent, certOffset + certLength, Tr34DerWalker.TAG_SEQUENCE);
+        int tbsEnd = tbs + der.length();
+        if (der.tagAt(tbs, tbsEnd) == Tr34DerWalker.TAG_CONTEXT_0) {
+            tbs = der.skip(tbs, tbsEnd, Tr34DerWalker.TAG_CONTEXT_0);
+        }
+        serialOffset = tbs;
+        tbs = der.skip(tbs, tbsEnd, Tr34DerWalker.TAG_INTEGER);
+        serialLength = tbs - serialOffset;
+        tbs = der.skip(tbs, tbsEnd, Tr34DerWalker.TAG_SEQUENCE);
+        issuerOffset = tbs;
+        tbs = der.skip(tbs, tbsEnd, Tr34DerWalker.TAG_SEQUENCE);
+        issuerLength = tbs - issuerOffset;
+
+        buffer.position(end);
+        return this;
+    }
+
+    public int getNonceOffset() {
+        return nonceOffset;
+    }
+
+    public int getNonceLength() {
+        return nonceLength;
+    }
+
+    /**
+     * Returns a read only view of the nonce contents of the last random token read.
+     */
+    public ByteBuffer getNonce() {
+        return slice(nonceOffset, nonceLength);
+    }
+
+    /**
+     * Offset of the complete DER encoded KRD certificate of the last credential token read.
+     */
+    public int getCertificateOffset() {
+        return certOffset;
+    }
+
+    public int getCertificateLength() {
+        return certLength;
+    }
+
+    public ByteBuffer getCertificate() {
+        return slice(certOffset, certLength);
+    }
+
+    /**
+     * Offset of the DER encoded issuer Name of the KRD certificate.
+     */
+    public int getIssuerOffset() {
+        return issuerOffset;
+    }
+
+    public int getIssuerLength() {
+        return issuerLength;
+    }
+
+    /**
+     * Offset of the DER encoded serial number INTEGER of the KRD certificate.
+     */
+    public int getSerialNumberOffset() {
+        return serialOffset;
+    }
+
+    public int getSerialNumberLength() {
+        return serialLength;
+    }
+
+    /**
+     * Builds the IssuerAndSerialNumber of the KRD certificate, this allocates ASN.1 objects.
+     */
+    public IssuerAndSerialNumber getIssuerAndSerialNumber() {
+        byte[] issuer = new byte[issuerLength];
+        byte[] serial = new byte[serialLength];
+        absoluteGet(issuerOffset, issuer);
+        absoluteGet(serialOffset, serial);
+        return new IssuerAndSerialNumber(X500Name.getInstance(issuer), ASN1Integer.getInstance(serial).getValue());
+    }
+
+    /**
+     * SHA-256 of the DER encoded IssuerAndSerialNumber of the KRD certificate, computed from the
+     * token bytes. Equal to the digest of {@link #getIssuerAndSerialNumber()} for DER encoded
+     * certificates, which makes it usable as key for {@link Tr34BindingRegistry} style lookups.
+     */
+    public byte[] digestIssuerAndSerialNumber() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            int contentLength = issuerLength + serialLength;
+            md.update((byte) Tr34DerWalker.TAG_SEQUENCE);
+            if (contentLength < 0x80) {
+                md.update((byte) contentLength);
+            } else if (contentLength < 0x100) {
+                md.update((byte) 0x81);
+                md.update((byte) contentLength);
+            } else if (contentLength < 0x10000) {
+                md.update((byte) 0x82);
+                md.update((byte) (contentLength >> 8));
+                md.update((byte) contentLength);
+            } else {
+                md.update((byte) 0x83);
+                md.update((byte) (contentLength >> 16));
+                md.update((byte) (contentLength >> 8));
+                md.update((byte) contentLength);
+            }
+            md.update(slice(issuerOffset, issuerLength));
+            md.update(slice(serialOffset, serialLength));
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private ByteBuffer slice(int offset, int len) {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.limit(offset + len).position(offset);
+        return view.slice();
+    }
+
+    private void absoluteGet(int offset, byte[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = buffer.get(offset + i);
+        }
+    }
+
+    private int expectBytes(int pos, int limit, byte[] expected, String message) {
+        if (pos + expected.length > limit || der.tagAt(pos, limit) != Tr34DerWalker.TAG_OID) {
+            throw new Tr34Exception(message);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(pos + i) != expected[i]) {
+                throw new Tr34Exception(message);
+            }
+        }
+        return pos + expected.length;
+    }
+
+    private static byte[] encodedOid(ASN1ObjectIdentifier oid) {
+        try {
+            return oid.getEncoded();
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+}
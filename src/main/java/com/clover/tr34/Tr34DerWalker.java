@@ -0,0 +1,120 @@
+package com.clover.tr34;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks definite length DER with absolute reads, shared by {@link Tr34DerReader} and
+ * {@link Tr34TokenCodec}. Every element is bounded by the end of its enclosing element, a length
+ * running past it is rejected as truncated. Not thread safe.
+ */
+final class Tr34DerWalker {
+
+    static final int TAG_INTEGER = 0x02;
+    static final int TAG_OCTET_STRING = 0x04;
+    static final int TAG_OID = 0x06;
+    static final int TAG_SEQUENCE = 0x30;
+    static final int TAG_SET = 0x31;
+    static final int TAG_CONTEXT_0 = 0xa0;
+    static final int TAG_CONTEXT_1 = 0xa1;
+
+    private ByteBuffer buffer;
+    private int length;
+
+    /**
+     * Starts walking another buffer, offsets are absolute positions in it.
+     */
+    Tr34DerWalker reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Contents length of the element of the last {@link #header(int, int, int)} call.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return The tag at pos, -1 if pos is at or past limit
+     */
+    int tagAt(int pos, int limit) {
+        return pos < limit ? buffer.get(pos) & 0xff : -1;
+    }
+
+    /**
+     * Checks the tag at pos and parses the length into {@link #length()}.
+     *
+     * @param limit End of the enclosing element
+     * @return Offset of the contents
+     * @throws Tr34Exception If the tag differs or the element does not fit before limit
+     */
+    int header(int pos, int limit, int tag) {
+        if (pos < 0 || pos + 2 > limit) {
+            throw new Tr34Exception("Truncated DER at offset " + pos);
+        }
+        int actual = buffer.get(pos) & 0xff;
+        if (actual != tag) {
+            throw new Tr34Exception(String.format("Unexpected tag 0x%02x at offset %d, expected 0x%02x",
+                    actual, pos, tag));
+        }
+
+        int first = buffer.get(pos + 1) & 0xff;
+        pos += 2;
+        int len;
+        if (first < 0x80) {
+            len = first;
+        } else if (first == 0x80) {
+            throw new Tr34Exception("Indefinite length not supported at offset " + (pos - 2));
+        } else {
+            int octets = first & 0x7f;
+            if (octets > 3 || pos + octets > limit) {
+                throw new Tr34Exception("Unsupported length at offset " + (pos - 2));
+            }
+            len = 0;
+            for (int i = 0; i < octets; i++) {
+                len = len << 8 | (buffer.get(pos++) & 0xff);
+            }
+        }
+
+        if (len > limit - pos) {
+            throw new Tr34Exception("Truncated DER at offset " + pos);
+        }
+        length = len;
+        return pos;
+    }
+
+    /**
+     * @return Offset after the element at pos
+     */
+    int skip(int pos, int limit, int tag) {
+        return header(pos, limit, tag) + length;
+    }
+
+    /**
+     * Skips the element at pos whatever its tag.
+     */
+    int skipAny(int pos, int limit) {
+        if (pos >= limit) {
+            throw new Tr34Exception("Truncated DER at offset " + pos);
+        }
+        return skip(pos, limit, tagAt(pos, limit));
+    }
+
+    /**
+     * Copies the complete encoding of the element at pos, e.g. an OID for parsing.
+     */
+    byte[] copyElement(int pos, int limit, int tag) {
+        int end = skip(pos, limit, tag);
+        byte[] encoded = new byte[end - pos];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = buffer.get(pos + i);
+        }
+        return encoded;
+    }
+
+}
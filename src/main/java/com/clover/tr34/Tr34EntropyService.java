@@ -0,0 +1,214 @@
+package com.clover.tr34;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of random nonces and symmetric keys shared by the token classes. Requests are spread over
+ * a power of two number of stripes by thread, each stripe is a SP 800-90A Hash DRBG (SHA-256)
+ * seeded from the entropy source, so concurrent threads rarely wait on each other. A stripe reseeds
+ * from the entropy source once its reseed interval has passed.
+ * <p>
+ * Nonces can optionally be served from a per-stripe prefetch buffer which is refilled with one
+ * DRBG call. Key material is never prefetched, it is generated on demand so no clear key bytes
+ * wait in a buffer.
+ * <p>
+ * {@link Tr34RandomToken#createNewRandom()} and key envelopes use {@link #getDefault()}, which can
+ * be replaced with {@link #setDefault(Tr34EntropyService)}. Thread safe.
+ */
+public final class Tr34EntropyService {
+
+    private static final Object DEFAULT_LOCK = new Object();
+    private static volatile Tr34EntropyService defaultService;
+
+    private final SecureRandom entropySource;
+    private final Stripe[] stripes;
+    private final long reseedIntervalMillis;
+    private final int prefetchBytes;
+    private final AtomicLong reseedCount = new AtomicLong();
+
+    /**
+     * Uses the platform {@link SecureRandom} as entropy source.
+     *
+     * @param stripes Number of independent DRBGs, rounded up to a power of two
+     * @param reseedIntervalMillis How long a DRBG runs before it reseeds, 0 reseeds only on request
+     * @param prefetchBytes Size of each stripe's nonce buffer, 0 disables prefetching
+     */
+    public Tr34EntropyService(int stripes, long reseedIntervalMillis, int prefetchBytes) {
+        this(new SecureRandom(), stripes, reseedIntervalMillis, prefetchBytes);
+    }
+
+    /**
+     * @param entropySource Seeds and reseeds the DRBGs, e.g. a provider backed by an HSM
+     */
+    public Tr34EntropyService(SecureRandom entropySource, int stripes, long reseedIntervalMillis, int prefetchBytes) {
+        if (stripes < 1 || stripes > 1 << 16) {
+            throw new IllegalArgumentException("Stripes must be between 1 and 65536");
+        }
+        if (reseedIntervalMillis < 0 || prefetchBytes < 0) {
+            throw new IllegalArgumentException("Reseed interval and prefetch size must not be negative");
+        }
+        this.entropySource = entropySource;
+        this.reseedIntervalMillis = reseedIntervalMillis;
+        this.prefetchBytes = prefetchBytes;
+
+        int n = Integer.highestOneBit(stripes);
+        if (n < stripes) {
+            n <<= 1;
+        }
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe(i);
+        }
+    }
+
+    /**
+     * One stripe per available processor, reseeding hourly, with a 1 KiB nonce buffer per stripe.
+     */
+    public static Tr34EntropyService getDefault() {
+        Tr34EntropyService service = defaultService;
+        if (service == null) {
+            synchronized (DEFAULT_LOCK) {
+                service = defaultService;
+                if (service == null) {
+                    service = new Tr34EntropyService(Runtime.getRuntime().availableProcessors(),
+                            60L * 60 * 1000, 1024);
+                    defaultService = service;
+                }
+            }
+        }
+        return service;
+    }
+
+    public static void setDefault(Tr34EntropyService service) {
+        if (service == null) {
+            throw new IllegalArgumentException("Entropy service required");
+        }
+        defaultService = service;
+    }
+
+    /**
+     * Fills the array straight from the calling thread's DRBG, bypassing the prefetch buffer.
+     */
+    public void nextBytes(byte[] bytes) {
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            stripe.checkReseed();
+            stripe.drbg.nextBytes(bytes);
+        }
+    }
+
+    /**
+     * Returns a new random nonce, taken from the prefetch buffer when enabled.
+     */
+    public byte[] nextNonce(int length) {
+        byte[] nonce = new byte[length];
+        if (length > prefetchBytes) {
+            nextBytes(nonce);
+            return nonce;
+        }
+
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            stripe.checkReseed();
+            if (stripe.prefetchPosition + length > prefetchBytes) {
+                stripe.drbg.nextBytes(stripe.prefetch);
+                stripe.prefetchPosition = 0;
+            }
+            System.arraycopy(stripe.prefetch, stripe.prefetchPosition, nonce, 0, length);
+            stripe.prefetchPosition += length;
+        }
+        return nonce;
+    }
+
+    /**
+     * Generates random key material of the given length. The bytes pass through a heap array that is
+     * zeroed before returning.
+     */
+    public Tr34KeyMaterial generateKey(int length) {
+        byte[] key = new byte[length];
+        try {
+            nextBytes(key);
+            return Tr34KeyMaterial.copyOf(key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * The calling thread's DRBG, for JCA APIs that take a {@link SecureRandom}. Do not cache the
+     * result across threads, that defeats the striping.
+     */
+    public SecureRandom getSecureRandom() {
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            stripe.checkReseed();
+        }
+        return stripe.drbg;
+    }
+
+    /**
+     * Reseeds every stripe from the entropy source now and drops prefetched nonces.
+     */
+    public void reseed() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.reseed();
+            }
+        }
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public long getReseedCount() {
+        return reseedCount.get();
+    }
+
+    private Stripe stripe() {
+        long id = Thread.currentThread().getId();
+        return stripes[(int) (id ^ (id >>> 16)) & (stripes.length - 1)];
+    }
+
+    private final class Stripe {
+        final SP800SecureRandom drbg;
+        final byte[] prefetch;
+        int prefetchPosition;
+        long seededAt;
+
+        Stripe(int index) {
+            // The nonce keeps DRBGs seeded in the same instant apart
+            byte[] nonce = ByteBuffer.allocate(20).putInt(index).putLong(System.nanoTime())
+                    .putLong(System.currentTimeMillis()).array();
+            drbg = new SP800SecureRandomBuilder(entropySource, false)
+                    .setPersonalizationString("TR-34 entropy stripe".getBytes(StandardCharsets.US_ASCII))
+                    .buildHash(new SHA256Digest(), nonce, false);
+            prefetch = new byte[prefetchBytes];
+            prefetchPosition = prefetchBytes;
+            seededAt = System.currentTimeMillis();
+        }
+
+        void checkReseed() {
+            if (reseedIntervalMillis > 0 && System.currentTimeMillis() - seededAt >= reseedIntervalMillis) {
+                reseed();
+            }
+        }
+
+        void reseed() {
+            drbg.reseed(ByteBuffer.allocate(8).putLong(System.nanoTime()).array());
+            Arrays.fill(prefetch, (byte) 0);
+            prefetchPosition = prefetchBytes;
+            seededAt = System.currentTimeMillis();
+            reseedCount.incrementAndGet();
+        }
+    }
+
+}
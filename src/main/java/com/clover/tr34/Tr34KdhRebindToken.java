@@ -122,6 +122,10 @@ public class Tr34KdhRebindToken extends Tr34SignedObject {
         return krdIssuerAndSerial;
     }
 
+    public X509Certificate getNewKdhCert() {
+        return newKdhCert;
+    }
+
     @Override
     public ASN1Primitive toASN1Primitive() {
         return rootNode.toASN1Structure().toASN1Primitive();
@@ -0,0 +1,541 @@
+package com.clover.tr34;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded KDH endpoint serving key tokens to terminals over TCP. A single I/O thread accepts and
+ * services every connection with a non-blocking selector, so idle terminals cost a few hundred bytes
+ * each. Requests are classified with a {@link Tr34TokenCodec}, routed by the type of their first
+ * token to a {@link Handler} and run on a bounded worker pool, private key operations never block
+ * the I/O thread.
+ * <p>
+ * Each connection has at most one request in flight, it is not read from again until the response
+ * was written. Connections beyond the connection limit are closed on accept, requests beyond the
+ * pending request limit are answered with {@link #STATUS_BUSY} without being queued.
+ * <p>
+ * Framing, all lengths big endian:
+ * <pre>
+ * request   length(4) | DER tokens
+ * response  length(4) | status(1) | DER token, or a UTF-8 message unless the status is OK
+ * </pre>
+ * Failed requests are answered with a fixed message, the cause is only logged on the host.
+ * Routed by default, with the key for each KRD from the key supplier:
+ * <pre>
+ * random token | KRD credential token   two-pass key token
+ * KRD credential token                  one-pass key token
+ * </pre>
+ */
+public final class Tr34KdhServer implements Closeable {
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_BUSY = 2;
+
+    private static final Logger LOG = Logger.getLogger(Tr34KdhServer.class.getName());
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final byte[] ERROR_MESSAGE = "Request failed".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Produces the response for a request.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * Called on a worker thread.
+         *
+         * @param request Contents of the request frame, positioned at its first token
+         * @return The DER encoded response from its position to its limit
+         */
+        ByteBuffer handle(ByteBuffer request) throws Exception;
+    }
+
+    private final Tr34TokenFactory factory;
+    private final Map<String, Handler> handlers = new HashMap<>();
+    private Tr34TokenCodec codec = Tr34TokenCodec.createDefault();
+    private Function<X509Certificate, Tr34KeyMaterial> keySupplier;
+    private final Handler twoPassRoute = this::twoPassKeyToken;
+    private final Handler onePassRoute = this::onePassKeyToken;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int maxConnections = 50000;
+    private int maxPendingRequests = 4096;
+    private int maxFrameLength = 64 * 1024;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ThreadPoolExecutor pool;
+    private Thread ioThread;
+    private volatile boolean closed;
+
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong responseCount = new AtomicLong();
+    private final AtomicLong busyCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * The default routes need a key supplier, see {@link #withKeySupplier(Function)}, unless both are
+     * replaced.
+     */
+    public Tr34KdhServer(Tr34TokenFactory factory) {
+        this.factory = factory;
+        handlers.put(Tr34PEMGenerator.TR34_RANDOM_TOKEN, twoPassRoute);
+        handlers.put(Tr34PEMGenerator.TR34_KRD_CREDENTIAL_TOKEN, onePassRoute);
+    }
+
+    /**
+     * Routes requests whose first token has the PEM label to the handler, replacing any earlier route.
+     */
+    public Tr34KdhServer withHandler(String pemLabel, Handler handler) {
+        handlers.put(pemLabel, handler);
+        return this;
+    }
+
+    /**
+     * Classifies requests, defaults to {@link Tr34TokenCodec#createDefault()}.
+     */
+    public Tr34KdhServer withCodec(Tr34TokenCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Keys injected by the default routes, called on a worker thread with the KRD certificate once
+     * its chain and binding are verified. The supplier must record which key went to which KRD, the
+     * host has no other way to learn it. The key reaches the terminal only if the response status is
+     * {@link #STATUS_OK}. The server closes the key material once the token is generated.
+     */
+    public Tr34KdhServer withKeySupplier(Function<X509Certificate, Tr34KeyMaterial> keySupplier) {
+        this.keySupplier = keySupplier;
+        return this;
+    }
+
+    /**
+     * Number of worker threads, defaults to the number of processors.
+     */
+    public Tr34KdhServer withWorkers(int workers) {
+        this.workers = positive(workers, "workers");
+        return this;
+    }
+
+    public Tr34KdhServer withMaxConnections(int maxConnections) {
+        this.maxConnections = positive(maxConnections, "maxConnections");
+        return this;
+    }
+
+    /**
+     * Requests running or waiting for a worker, across all connections.
+     */
+    public Tr34KdhServer withMaxPendingRequests(int maxPendingRequests) {
+        this.maxPendingRequests = positive(maxPendingRequests, "maxPendingRequests");
+        return this;
+    }
+
+    /**
+     * Longest accepted request, a connection sending a longer one is closed.
+     */
+    public Tr34KdhServer withMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = positive(maxFrameLength, "maxFrameLength");
+        return this;
+    }
+
+    /**
+     * Binds and starts serving.
+     *
+     * @return The bound address, useful with port 0
+     */
+    public synchronized InetSocketAddress start(InetSocketAddress address) throws IOException {
+        if (selector != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        if (keySupplier == null && (handlers.get(Tr34PEMGenerator.TR34_RANDOM_TOKEN) == twoPassRoute
+                || handlers.get(Tr34PEMGenerator.TR34_KRD_CREDENTIAL_TOKEN) == onePassRoute)) {
+            throw new IllegalStateException("Default routes need a key supplier");
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxPendingRequests), r -> {
+                    Thread t = new Thread(r, "tr34-kdh-worker-" + threadCount.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address, 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        ioThread = new Thread(this::ioLoop, "tr34-kdh-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Frames a request of the given tokens, e.g. a random token and a KRD credential token.
+     */
+    public static ByteBuffer encodeRequest(Tr34Object... tokens) {
+        int length = 0;
+        for (Tr34Object token : tokens) {
+            length += token.getEncodedLength();
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length);
+        for (Tr34Object token : tokens) {
+            token.encodeTo(frame);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Number of responses written, including errors and busy responses.
+     */
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    /**
+     * Number of requests answered with {@link #STATUS_BUSY}.
+     */
+    public long getBusyCount() {
+        return busyCount.get();
+    }
+
+    /**
+     * Number of requests answered with {@link #STATUS_ERROR}, their causes are logged at FINE.
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Number of connections closed on accept because of the connection limit.
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     * Closes every connection and stops the workers, running requests are abandoned.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed || selector == null) {
+            closed = true;
+            return;
+        }
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.shutdownNow();
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private ByteBuffer twoPassKeyToken(ByteBuffer request) {
+        ByteBuffer out = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+        // Reads the random token and then the KRD credential token following it
+        factory.generateTwoPassKeyToken(request, request, keySupplier, out);
+        out.flip();
+        return out;
+    }
+
+    private ByteBuffer onePassKeyToken(ByteBuffer request) {
+        Tr34KrdCredentialToken credential = Tr34KrdCredentialToken.decode(request);
+        List<X509Certificate> krdChain = Arrays.asList(credential.getKrdCertificate(),
+                factory.getKeyStoreData().getKrdCaCert());
+        Tr34OnePassKeyToken token = factory.generateOnePassKeyToken(krdChain, keySupplier);
+        ByteBuffer out = ByteBuffer.allocate(token.getEncodedLength());
+        token.encodeTo(out);
+        out.flip();
+        return out;
+    }
+
+    private ByteBuffer dispatch(ByteBuffer request) throws Exception {
+        String label = codec.classify(request);
+        Handler handler = handlers.get(label);
+        if (handler == null) {
+            throw new Tr34Exception("Unsupported request: " + label);
+        }
+        return handler.handle(request);
+    }
+
+    /**
+     * Runs until closed. A failure on one connection closes that connection only, the loop keeps
+     * serving the others.
+     */
+    private void ioLoop() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException | ClosedSelectorException e) {
+                if (!closed) {
+                    LOG.log(Level.WARNING, "Select failed", e);
+                }
+                continue;
+            }
+
+            Connection done;
+            while ((done = completed.poll()) != null) {
+                try {
+                    done.startWrite();
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Response failed, closing the connection", e);
+                    done.close();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    handle(key);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "I/O failed, closing the connection", e);
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        if (key.isReadable()) {
+            connection.read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            connection.write();
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+            } catch (IOException e) {
+                // E.g. out of file descriptors, retried on the next select
+                return;
+            }
+
+            try {
+                if (connectionCount.get() >= maxConnections) {
+                    refusedCount.incrementAndGet();
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connectionCount.incrementAndGet();
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private static int positive(int value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private SelectionKey key;
+        private ByteBuffer request;
+
+        // Set by a worker, then handed over through the completed queue
+        private volatile byte status;
+        private volatile ByteBuffer body;
+        private ByteBuffer[] response;
+        private boolean channelClosed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            try {
+                if (request == null) {
+                    if (channel.read(header) < 0) {
+                        close();
+                        return;
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    int length = header.getInt(0);
+                    if (length <= 0 || length > maxFrameLength) {
+                        close();
+                        return;
+                    }
+                    request = ByteBuffer.allocate(length);
+                }
+                if (channel.read(request) < 0) {
+                    close();
+                    return;
+                }
+                if (request.hasRemaining()) {
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            ByteBuffer frame = request;
+            frame.flip();
+            request = null;
+            header.clear();
+            key.interestOps(0);
+            submit(frame);
+        }
+
+        private void submit(ByteBuffer frame) {
+            if (pending.incrementAndGet() > maxPendingRequests) {
+                pending.decrementAndGet();
+                busyCount.incrementAndGet();
+                status = STATUS_BUSY;
+                body = EMPTY;
+                startWrite();
+                return;
+            }
+
+            try {
+                pool.execute(() -> {
+                    try {
+                        body = dispatch(frame);
+                        status = STATUS_OK;
+                    } catch (Throwable t) {
+                        // Terminals are not authenticated, the details stay on the host
+                        LOG.log(Level.FINE, "Request from " + remoteAddress() + " failed", t);
+                        errorCount.incrementAndGet();
+                        body = ByteBuffer.wrap(ERROR_MESSAGE);
+                        status = STATUS_ERROR;
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                    completed.add(this);
+                    selector.wakeup();
+                });
+            } catch (RejectedExecutionException e) {
+                pending.decrementAndGet();
+                close();
+            }
+        }
+
+        void startWrite() {
+            if (!key.isValid()) {
+                return;
+            }
+            ByteBuffer responseBody = body;
+            ByteBuffer responseHeader = ByteBuffer.allocate(5);
+            responseHeader.putInt(1 + responseBody.remaining()).put(status).flip();
+            response = new ByteBuffer[] { responseHeader, responseBody };
+            body = null;
+            write();
+        }
+
+        void write() {
+            try {
+                channel.write(response);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (response[0].hasRemaining() || response[1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            response = null;
+            responseCount.incrementAndGet();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private Object remoteAddress() {
+            try {
+                return channel.getRemoteAddress();
+            } catch (IOException e) {
+                return "unknown terminal";
+            }
+        }
+
+        void close() {
+            if (channelClosed) {
+                return;
+            }
+            channelClosed = true;
+            key.cancel();
+            closeQuietly(channel);
+            connectionCount.decrementAndGet();
+        }
+    }
+
+}
@@ -54,9 +54,7 @@ public final class Tr34KeyBlock extends Tr34Object {
             IssuerAndSerialNumber issuerAndSerialNumber =
                     new IssuerAndSerialNumber(Certificate.getInstance(kdhLeafCert.getEncoded()));
             ASN1OctetString clearKey = new DEROctetString(symmetricKey);
-            ASN1OctetString keyHeader = new DEROctetString(header.getBytes());
-            ASN1Set keyHeaderSet = new DLSet(keyHeader);
-            ASN1Sequence keyHeaderSeq = new DLSequence(new ASN1Encodable[] { CMSObjectIdentifiers.data, keyHeaderSet });
+            ASN1Sequence keyHeaderSeq = createFullKeyHeader(header);
 
             return new Tr34KeyBlock(new DLSequence(new ASN1Encodable[] { version, issuerAndSerialNumber, clearKey, keyHeaderSeq }));
         } catch (Exception e) {
@@ -64,6 +62,16 @@ public final class Tr34KeyBlock extends Tr34Object {
         }
     }
 
+    /**
+     * The key block header attribute as returned by {@link #getFullKeyHeader()}, signed as attribute
+     * of key tokens whose key block is only available encrypted.
+     */
+    static ASN1Sequence createFullKeyHeader(String header) {
+        ASN1OctetString keyHeader = new DEROctetString(header.getBytes());
+        ASN1Set keyHeaderSet = new DLSet(keyHeader);
+        return new DLSequence(new ASN1Encodable[] { CMSObjectIdentifiers.data, keyHeaderSet });
+    }
+
     public Tr34KeyBlock(ASN1Sequence asn1) {
         if (asn1.size() != 4) {
             throw new Tr34Exception("Invalid key block content");
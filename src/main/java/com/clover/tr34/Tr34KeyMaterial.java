@@ -0,0 +1,132 @@
+package com.clover.tr34;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Clear symmetric key material held outside the Java heap. The bytes live in a slot of a shared
+ * pool of direct buffers, so they are not moved or copied by the garbage collector and do not
+ * appear in heap dumps. {@link #close()} overwrites the slot with zeros and returns it to the pool,
+ * use try-with-resources so that happens as soon as the key is no longer needed.
+ * <p>
+ * Key blocks and envelopes built from key material read the bytes through small scratch arrays
+ * which are zeroed immediately, see {@link Tr34RecipientContext#encrypt(Tr34KeyMaterial)}.
+ * Thread safe, but closing while another thread reads the material yields zeros or an exception.
+ */
+public final class Tr34KeyMaterial implements Closeable {
+
+    /**
+     * Largest material served from the pool, enough for a key block with a long KDH issuer name.
+     * Larger material gets its own direct buffer which is zeroed the same way.
+     */
+    static final int SLOT_SIZE = 1024;
+    private static final int SLOTS_PER_SLAB = 64;
+
+    private static final Queue<ByteBuffer> FREE_SLOTS = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer slot;
+    private final int length;
+    private volatile boolean destroyed;
+
+    private Tr34KeyMaterial(ByteBuffer slot, int length) {
+        this.slot = slot;
+        this.length = length;
+    }
+
+    /**
+     * Copies the key into off-heap memory. The caller should zero its array afterwards.
+     */
+    public static Tr34KeyMaterial copyOf(byte[] key) {
+        Tr34KeyMaterial material = allocate(key.length);
+        material.slot.put(key, 0, key.length);
+        return material;
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer into off-heap memory and advances its position, this
+     * keeps material that already is in a direct buffer, e.g. one filled by an HSM, off the heap.
+     */
+    public static Tr34KeyMaterial copyOf(ByteBuffer key) {
+        Tr34KeyMaterial material = allocate(key.remaining());
+        material.slot.put(key);
+        return material;
+    }
+
+    static Tr34KeyMaterial allocate(int length) {
+        if (length <= 0) {
+            throw new Tr34Exception("Key material must not be empty");
+        }
+
+        ByteBuffer slot;
+        if (length > SLOT_SIZE) {
+            slot = ByteBuffer.allocateDirect(length);
+        } else {
+            slot = FREE_SLOTS.poll();
+            if (slot == null) {
+                slot = allocateSlab();
+            }
+        }
+        slot.clear().limit(length);
+        return new Tr34KeyMaterial(slot, length);
+    }
+
+    private static ByteBuffer allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLOT_SIZE * SLOTS_PER_SLAB);
+        for (int i = 1; i < SLOTS_PER_SLAB; i++) {
+            slab.limit((i + 1) * SLOT_SIZE).position(i * SLOT_SIZE);
+            FREE_SLOTS.add(slab.slice());
+        }
+        slab.limit(SLOT_SIZE).position(0);
+        return slab.slice();
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Independent view of the material from position 0 to its length. Writes through the view change
+     * the material.
+     */
+    ByteBuffer buffer() {
+        if (destroyed) {
+            throw new Tr34Exception("Key material destroyed");
+        }
+        ByteBuffer view = slot.duplicate();
+        view.clear().limit(length);
+        return view;
+    }
+
+    /**
+     * Zeroes the material and releases its memory, further use fails. Closing twice has no effect.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+        }
+
+        ByteBuffer wipe = slot.duplicate();
+        wipe.clear();
+        while (wipe.remaining() >= 8) {
+            wipe.putLong(0L);
+        }
+        while (wipe.hasRemaining()) {
+            wipe.put((byte) 0);
+        }
+
+        if (slot.capacity() == SLOT_SIZE) {
+            FREE_SLOTS.add(slot);
+        }
+    }
+
+}
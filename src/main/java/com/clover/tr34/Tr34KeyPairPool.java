@@ -0,0 +1,154 @@
+package com.clover.tr34;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps pregenerated RSA key pairs ready for KDH certificate rotation, see
+ * {@link Tr34TokenFactory#issueKdhCertificate}. Generating a 2048 or 3072 bit key pair takes hundreds
+ * of milliseconds, a background thread refills the pool whenever a pair is taken so rotation tooling
+ * does not wait for it. Every pair passes the same sign and verify self-test as
+ * {@link Tr34KeyStoreData} applies to its certificates before it is pooled, pairs failing it are
+ * discarded.
+ * <p>
+ * Private keys wait on the heap until taken, size the pool to the expected rotation burst. Thread
+ * safe.
+ */
+public final class Tr34KeyPairPool implements AutoCloseable {
+
+    private final int keySize;
+    private final Tr34EntropyService entropyService;
+    private final BlockingQueue<KeyPair> ready;
+    private final Thread generator;
+    private volatile boolean closed;
+
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong selfTestFailures = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Uses {@link Tr34EntropyService#getDefault()}.
+     */
+    public Tr34KeyPairPool(int keySize, int poolSize) {
+        this(keySize, poolSize, Tr34EntropyService.getDefault());
+    }
+
+    /**
+     * @param keySize RSA modulus length in bits, at least 2048
+     * @param poolSize Number of key pairs kept ready
+     */
+    public Tr34KeyPairPool(int keySize, int poolSize, Tr34EntropyService entropyService) {
+        if (keySize < 2048) {
+            throw new IllegalArgumentException("keySize must be at least 2048");
+        }
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize must be positive");
+        }
+
+        this.keySize = keySize;
+        this.entropyService = entropyService;
+        this.ready = new ArrayBlockingQueue<>(poolSize);
+        this.generator = new Thread(this::fillLoop, "tr34-keypair-pool");
+        this.generator.setDaemon(true);
+        this.generator.start();
+    }
+
+    /**
+     * Returns a pooled key pair, or generates one on the calling thread if the pool is empty. Each
+     * pair is handed out once.
+     */
+    public KeyPair take() {
+        KeyPair keyPair = ready.poll();
+        if (keyPair != null) {
+            return keyPair;
+        }
+        misses.incrementAndGet();
+        while (true) {
+            keyPair = generate();
+            if (keyPair != null) {
+                return keyPair;
+            }
+        }
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * Number of key pairs ready to be taken.
+     */
+    public int getAvailableCount() {
+        return ready.size();
+    }
+
+    /**
+     * Number of key pairs generated and self-tested, in the background or on a miss.
+     */
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    public long getSelfTestFailureCount() {
+        return selfTestFailures.get();
+    }
+
+    /**
+     * Number of takes which found the pool empty.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Stops the background thread and drops the pooled key pairs.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        generator.interrupt();
+        ready.clear();
+    }
+
+    private void fillLoop() {
+        try {
+            while (!closed) {
+                KeyPair keyPair = generate();
+                if (keyPair != null) {
+                    ready.put(keyPair);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+        ready.clear();
+    }
+
+    /**
+     * @return A self-tested key pair, or null if the self-test failed
+     */
+    private KeyPair generate() {
+        KeyPair keyPair;
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", Tr34Provider.PROVIDER);
+            kpg.initialize(keySize, entropyService.getSecureRandom());
+            keyPair = kpg.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+
+        try {
+            Tr34KeyStoreData.verifyKeyPairMatch(keyPair.getPublic(), keyPair.getPrivate());
+        } catch (RuntimeException e) {
+            selfTestFailures.incrementAndGet();
+            return null;
+        }
+        generated.incrementAndGet();
+        return keyPair;
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.clover.tr34;
 
 import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.Signature;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
@@ -16,11 +17,18 @@ import java.util.List;
  */
 public abstract class Tr34KeyStoreData {
 
-    private static void verifyCertKeyMatch(X509Certificate cert, PrivateKey privateKey) {
+    static void verifyCertKeyMatch(X509Certificate cert, PrivateKey privateKey) {
+        verifyKeyPairMatch(cert.getPublicKey(), privateKey);
+    }
+
+    /**
+     * Checks that the keys form an RSA key pair by signing and verifying a challenge.
+     */
+    static void verifyKeyPairMatch(PublicKey publicKey, PrivateKey privateKey) {
         RSAPrivateKey rsaPrivateKey = (RSAPrivateKey) privateKey;
-        RSAPublicKey certPublicKey = (RSAPublicKey) cert.getPublicKey();
+        RSAPublicKey rsaPublicKey = (RSAPublicKey) publicKey;
 
-        if (!rsaPrivateKey.getModulus().equals(certPublicKey.getModulus())) {
+        if (!rsaPrivateKey.getModulus().equals(rsaPublicKey.getModulus())) {
             throw new IllegalStateException("Cert and key mismatch");
         }
 
@@ -34,7 +42,7 @@ public abstract class Tr34KeyStoreData {
             sig.update(challenge);
             byte[] signature = sig.sign();
 
-            sig.initVerify(cert.getPublicKey());
+            sig.initVerify(publicKey);
             sig.update(challenge);
 
             keyPairMatches = sig.verify(signature);
@@ -0,0 +1,163 @@
+package com.clover.tr34;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Holder of a {@link Tr34TokenFactory} and {@link Tr34TokenClient} whose key store data can be
+ * replaced while requests are running, for example after a KDH certificate rotation performed with
+ * {@link Tr34KdhRebindToken}.
+ * <p>
+ * Each key store data gets a new generation: a factory and client built from scratch, including
+ * any caches the factory builder attaches, so nothing derived from the old identity leaks into the
+ * new one. A swap is a single atomic reference update. Requests run through
+ * {@link #execute(Function)} see exactly one generation from start to finish, so requests in flight
+ * during a swap finish on the old identity while later requests use the new identity.
+ */
+public final class Tr34LiveTokenFactory {
+
+    private final Function<Tr34KeyStoreData, Tr34TokenFactory> factoryBuilder;
+    private final AtomicReference<Generation> current;
+    // Retired generations with requests still running, each removes itself when its last one ends
+    private final ConcurrentMap<Long, Generation> retired = new ConcurrentHashMap<>();
+
+    public Tr34LiveTokenFactory(Tr34KeyStoreData keyStoreData) {
+        this(keyStoreData, Tr34TokenFactory::new);
+    }
+
+    /**
+     * @param factoryBuilder Creates and configures the factory for each generation, for example
+     * attaching a new {@link Tr34ResponseCache}
+     */
+    public Tr34LiveTokenFactory(Tr34KeyStoreData keyStoreData,
+                                Function<Tr34KeyStoreData, Tr34TokenFactory> factoryBuilder) {
+        this.factoryBuilder = factoryBuilder;
+        this.current = new AtomicReference<>(new Generation(0, keyStoreData, factoryBuilder.apply(keyStoreData)));
+    }
+
+    /**
+     * Runs a request against the current generation. The generation is pinned for the duration of
+     * the request.
+     */
+    public <T> T execute(Function<Tr34TokenFactory, T> request) {
+        Generation generation;
+        while (true) {
+            generation = current.get();
+            generation.inFlight.incrementAndGet();
+            // Re-check so a request never starts on a generation a drainer already saw as idle
+            if (current.get() == generation) {
+                break;
+            }
+            release(generation);
+        }
+
+        try {
+            return request.apply(generation.factory);
+        } finally {
+            release(generation);
+        }
+    }
+
+    private void release(Generation generation) {
+        if (generation.inFlight.decrementAndGet() == 0 && generation.retired) {
+            drained(generation);
+        }
+    }
+
+    private void drained(Generation generation) {
+        retired.remove(generation.number, generation);
+        generation.drained.countDown();
+    }
+
+    /**
+     * Returns the current factory. Callers which hold on to it keep using the identity current at
+     * the time of the call.
+     */
+    public Tr34TokenFactory getFactory() {
+        return current.get().factory;
+    }
+
+    public Tr34TokenClient getClient() {
+        return current.get().client;
+    }
+
+    public Tr34KeyStoreData getKeyStoreData() {
+        return current.get().keyStoreData;
+    }
+
+    public long getGeneration() {
+        return current.get().number;
+    }
+
+    /**
+     * Number of retired generations with requests still running.
+     */
+    public int getDrainingCount() {
+        return retired.size();
+    }
+
+    /**
+     * Atomically replaces the key store data. The new generation is fully built before it becomes
+     * visible.
+     *
+     * @return The previous generation number, usable with {@link #awaitDrained(long, long, TimeUnit)}
+     */
+    public long swap(Tr34KeyStoreData newKeyStoreData) {
+        Tr34TokenFactory factory = factoryBuilder.apply(newKeyStoreData);
+        while (true) {
+            Generation old = current.get();
+            Generation next = new Generation(old.number + 1, newKeyStoreData, factory);
+            if (current.compareAndSet(old, next)) {
+                retired.put(old.number, old);
+                old.retired = true;
+                // Requests ending before the flag was set left the cleanup to us
+                if (old.inFlight.get() == 0) {
+                    drained(old);
+                }
+                return old.number;
+            }
+        }
+    }
+
+    /**
+     * Waits until no request started through {@link #execute(Function)} is still running on the
+     * given retired generation.
+     *
+     * @return true if drained, false on timeout
+     */
+    public boolean awaitDrained(long generation, long timeout, TimeUnit unit) throws InterruptedException {
+        Generation old = retired.get(generation);
+        if (old == null) {
+            // Unknown generations are either current or already drained
+            return current.get().number != generation;
+        }
+
+        return old.drained.await(timeout, unit);
+    }
+
+    private static final class Generation {
+        final long number;
+        final Tr34KeyStoreData keyStoreData;
+        final Tr34TokenFactory factory;
+        final Tr34TokenClient client;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final CountDownLatch drained = new CountDownLatch(1);
+        volatile boolean retired;
+
+        Generation(long number, Tr34KeyStoreData keyStoreData, Tr34TokenFactory factory) {
+            if (factory.getKeyStoreData() != keyStoreData) {
+                throw new IllegalArgumentException("Factory built for different key store data");
+            }
+            this.number = number;
+            this.keyStoreData = keyStoreData;
+            this.factory = factory;
+            this.client = new Tr34TokenClient(keyStoreData);
+        }
+    }
+
+}
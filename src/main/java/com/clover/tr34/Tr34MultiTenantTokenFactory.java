@@ -0,0 +1,169 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509CRL;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serves many KDH identities, for example one per acquirer and region, from one instance.
+ * <p>
+ * Each tenant gets its own {@link Tr34TokenFactory}, selected per request by tenant id or by KDH
+ * IssuerAndSerialNumber with a hash lookup. State which depends only on the shared parts of the
+ * hierarchy is shared between tenants: tenants trusting the same root share one
+ * {@link Tr34ChainCache}, and tenants with the same KDH CA, revocation list and CRL update interval
+ * share one signed CRL for their KDH credential tokens. One CRL is kept for each such combination
+ * seen.
+ */
+public final class Tr34MultiTenantTokenFactory {
+
+    private final int chainCacheSize;
+
+    private final ConcurrentMap<String, Tenant> tenantsById = new ConcurrentHashMap<>();
+    private final ConcurrentMap<IssuerAndSerialNumber, Tenant> tenantsByKdh = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteBuffer, Tr34ChainCache> chainCachesByRoot = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteBuffer, SharedCrl> crlsByContent = new ConcurrentHashMap<>();
+
+    /**
+     * @param chainCacheSize Size of each per root {@link Tr34ChainCache}
+     */
+    public Tr34MultiTenantTokenFactory(int chainCacheSize) {
+        this.chainCacheSize = chainCacheSize;
+    }
+
+    /**
+     * Adds a tenant. The returned factory may be configured further, for example with a response
+     * cache, before use.
+     */
+    public Tr34TokenFactory register(String tenantId, Tr34KeyStoreData keyStoreData) {
+        ByteBuffer rootKey = ByteBuffer.wrap(Tr34CryptoUtils.sha256Fingerprint(keyStoreData.getRootCert()));
+        Tr34ChainCache chainCache = chainCachesByRoot.computeIfAbsent(rootKey,
+                k -> new Tr34ChainCache(keyStoreData.getRootCert(), chainCacheSize));
+
+        byte[] kdhCaFingerprint = Tr34CryptoUtils.sha256Fingerprint(keyStoreData.getKdhCaKeyStoreData().cert);
+
+        IssuerAndSerialNumber kdhIssuerAndSerial = Tr34CryptoUtils.getIssuerAndSerialNumber(keyStoreData.getKdhCert());
+        Tenant tenant = new Tenant(kdhIssuerAndSerial,
+                new Tr34TokenFactory(keyStoreData).withChainCache(chainCache), kdhCaFingerprint);
+
+        if (tenantsById.putIfAbsent(tenantId, tenant) != null) {
+            throw new IllegalArgumentException("Duplicate tenant: " + tenantId);
+        }
+        if (tenantsByKdh.putIfAbsent(kdhIssuerAndSerial, tenant) != null) {
+            tenantsById.remove(tenantId);
+            throw new IllegalArgumentException("KDH already registered to another tenant");
+        }
+
+        return tenant.factory;
+    }
+
+    public void unregister(String tenantId) {
+        Tenant tenant = tenantsById.remove(tenantId);
+        if (tenant != null) {
+            tenantsByKdh.remove(tenant.kdhIssuerAndSerial, tenant);
+        }
+    }
+
+    public Tr34TokenFactory forTenant(String tenantId) {
+        return require(tenantsById.get(tenantId), tenantId).factory;
+    }
+
+    public Tr34TokenFactory forKdh(IssuerAndSerialNumber kdhIssuerAndSerial) {
+        return require(tenantsByKdh.get(kdhIssuerAndSerial), kdhIssuerAndSerial).factory;
+    }
+
+    public Set<String> getTenantIds() {
+        return tenantsById.keySet();
+    }
+
+    /**
+     * Returns a KDH credential token for the tenant using the revocation list and CRL update
+     * interval from its key store data. The signed CRL is reused by all tenants with the same KDH
+     * CA, revocation list and update interval, and is only re-signed once half of its validity
+     * period has elapsed. The token is issued through the tenant's factory, and so audited by its
+     * journal if it has one.
+     */
+    public Tr34KdhCredentialToken getKdhCredentialToken(String tenantId) {
+        Tenant tenant = require(tenantsById.get(tenantId), tenantId);
+        Tr34KeyStoreData keyStoreData = tenant.factory.getKeyStoreData();
+        List<Tr34KdhRevocation> revocationList = keyStoreData.getKdhRevocationList();
+        int nextUpdateDays = keyStoreData.nextCrlUpdateDays();
+
+        SharedCrl crl = crlsByContent.computeIfAbsent(
+                crlKey(tenant.kdhCaFingerprint, revocationList, nextUpdateDays), k -> new SharedCrl());
+        return tenant.factory.generateKdhCredentialToken(
+                crl.get(keyStoreData.getKdhCaKeyStoreData(), revocationList, nextUpdateDays));
+    }
+
+    private static ByteBuffer crlKey(byte[] kdhCaFingerprint, List<Tr34KdhRevocation> revocationList,
+                                     int nextUpdateDays) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(kdhCaFingerprint);
+            ByteBuffer fields = ByteBuffer.allocate(4 + 8 + 4);
+            md.update(fields.putInt(nextUpdateDays).array(), 0, 4);
+            for (Tr34KdhRevocation revocation : revocationList) {
+                byte[] serial = revocation.serial.toByteArray();
+                fields.clear();
+                fields.putInt(serial.length).putLong(revocation.revocationDate.getTime())
+                        .putInt(revocation.revocationReason == null ? -1 : revocation.revocationReason.ordinal());
+                md.update(fields.array());
+                md.update(serial);
+            }
+            return ByteBuffer.wrap(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private static Tenant require(Tenant tenant, Object id) {
+        if (tenant == null) {
+            throw new Tr34Exception("Unknown tenant: " + id);
+        }
+        return tenant;
+    }
+
+    private static final class Tenant {
+        final IssuerAndSerialNumber kdhIssuerAndSerial;
+        final Tr34TokenFactory factory;
+        final byte[] kdhCaFingerprint;
+
+        Tenant(IssuerAndSerialNumber kdhIssuerAndSerial, Tr34TokenFactory factory, byte[] kdhCaFingerprint) {
+            this.kdhIssuerAndSerial = kdhIssuerAndSerial;
+            this.factory = factory;
+            this.kdhCaFingerprint = kdhCaFingerprint;
+        }
+    }
+
+    private static final class SharedCrl {
+        private volatile X509CRL crl;
+
+        X509CRL get(Tr34ScdKeyStoreData kdhCa, List<Tr34KdhRevocation> revocationList, int nextUpdateDays) {
+            X509CRL current = crl;
+            if (current != null && !needsRefresh(current)) {
+                return current;
+            }
+
+            synchronized (this) {
+                if (crl == null || needsRefresh(crl)) {
+                    crl = Tr34CryptoUtils.createCRL(kdhCa.privateKey, kdhCa.cert, revocationList,
+                            Tr34CryptoUtils.createHoursFromNowDate(24L * nextUpdateDays));
+                }
+                return crl;
+            }
+        }
+
+        private static boolean needsRefresh(X509CRL crl) {
+            long thisUpdate = crl.getThisUpdate().getTime();
+            long nextUpdate = crl.getNextUpdate().getTime();
+            return System.currentTimeMillis() >= thisUpdate + (nextUpdate - thisUpdate) / 2;
+        }
+    }
+
+}
@@ -2,8 +2,88 @@ package com.clover.tr34;
 
 import org.bouncycastle.asn1.ASN1Object;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
- * Marker class, all TR-34 ASN.1 objects extend from this class.
+ * Base class, all TR-34 ASN.1 objects extend from this class.
+ * <p>
+ * Besides {@link #getEncoded()} objects can be written straight into a heap or direct
+ * {@link ByteBuffer} with {@link #encodeTo(ByteBuffer)}, and every decode method also accepts a
+ * ByteBuffer, see {@link Tr34CryptoUtils#decodeToAsn1(Object)}.
  */
 public abstract class Tr34Object extends ASN1Object {
+
+    private volatile int encodedLength = -1;
+
+    /**
+     * Exact number of bytes {@link #encodeTo(ByteBuffer)} and {@link #getEncoded()} produce. Computed
+     * once without buffering the encoding, TR-34 objects are immutable.
+     */
+    public int getEncodedLength() {
+        int length = encodedLength;
+        if (length < 0) {
+            CountingOutputStream counter = new CountingOutputStream();
+            try {
+                encodeTo(counter);
+            } catch (IOException e) {
+                throw new Tr34Exception(e);
+            }
+            length = counter.count;
+            encodedLength = length;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the same bytes as {@link #getEncoded()} at the buffer's position and advances it.
+     *
+     * @throws BufferOverflowException If fewer than {@link #getEncodedLength()} bytes remain, in
+     * which case nothing is written
+     */
+    public void encodeTo(ByteBuffer buffer) {
+        if (buffer.remaining() < getEncodedLength()) {
+            throw new BufferOverflowException();
+        }
+        try {
+            encodeTo(new ByteBufferOutputStream(buffer));
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        int count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+
 }
@@ -0,0 +1,140 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.EnvelopedData;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cms.CMSSignedData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * See B.9 KTKDH – The KDH Key Token, one pass variant.
+ * <p>
+ * The one pass token is identical to the two pass token except the KRD random nonce is replaced
+ * by a signing time attribute, allowing the KDH to send a key without first fetching a random
+ * token from the KRD. The KRD relies on the signing time for freshness instead.
+ */
+public class Tr34OnePassKeyToken extends Tr34SignedObject {
+
+    private final ASN1Sequence rootNode;
+    private final SignedData signedData;
+    private final SignerInfo signerInfo;
+    private final EnvelopedData envelopedData;
+    private final Date signingTime;
+    private final String keyBlockHeader;
+
+    public static Tr34OnePassKeyToken decode(Object encoded) {
+        try {
+            return new Tr34OnePassKeyToken((ASN1Sequence) Tr34CryptoUtils.decodeToAsn1(encoded));
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Signs an envelope already holding the encrypted key block.
+     *
+     * @param fullKeyHeader Header attribute of the enveloped key block, see {@link Tr34KeyBlock#getFullKeyHeader()}
+     */
+    static Tr34OnePassKeyToken create(Date signingTime, ASN1Sequence fullKeyHeader, byte[] envelopedCryptData,
+                                      Tr34ScdKeyStoreData kdhKeyStore) {
+        try {
+            // Add SignedAttributes: key block header (KBH) and timestamp
+            ASN1EncodableVector attributes = new ASN1EncodableVector();
+            attributes.add(fullKeyHeader);
+            attributes.add(new Attribute(CMSAttributes.signingTime, new DERSet(new Time(signingTime))));
+            AttributeTable at = new AttributeTable(attributes);
+
+            CMSSignedData sd = signCmsData(at, CMSObjectIdentifiers.envelopedData, envelopedCryptData, kdhKeyStore);
+
+            return new Tr34OnePassKeyToken((ASN1Sequence) ASN1Sequence.fromByteArray(sd.getEncoded()));
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private Tr34OnePassKeyToken(ASN1Sequence rootAsn1) throws Exception {
+        CMSSignedData csd = new CMSSignedData(ContentInfo.getInstance(rootAsn1));
+        signedData = SignedData.getInstance(csd.toASN1Structure().getContent());
+
+        ASN1Set signerInfos = signedData.getSignerInfos();
+        if (signerInfos.size() != 1) {
+            throw new Tr34Exception("Invalid number of signer infos");
+        }
+
+        signerInfo = SignerInfo.getInstance(signerInfos.getObjectAt(0));
+        AttributeTable attrTable = new AttributeTable(signerInfo.getAuthenticatedAttributes());
+
+        if (attrTable.get(Tr34ObjectIdentifiers.randomNonce) != null) {
+            throw new Tr34Exception("Random nonce not allowed in one pass key token");
+        }
+
+        Attribute signingTimeAttr = attrTable.get(CMSAttributes.signingTime);
+        if (signingTimeAttr == null) {
+            throw new Tr34Exception("Missing signing time");
+        }
+        signingTime = Time.getInstance(signingTimeAttr.getAttributeValues()[0]).getDate();
+
+        Attribute kbhAttr = attrTable.get(PKCSObjectIdentifiers.data);
+        if (kbhAttr == null) {
+            throw new Tr34Exception("Missing key block header");
+        }
+        ASN1OctetString kbhOctets = (ASN1OctetString) kbhAttr.getAttributeValues()[0];
+        if (kbhOctets.getOctetsLength() != 16) {
+            throw new Tr34Exception("Key block header must be 16 octets");
+        }
+
+        keyBlockHeader = new String(kbhOctets.getOctets(), StandardCharsets.US_ASCII);
+
+        ContentInfo ci = signedData.getEncapContentInfo();
+        if (!PKCSObjectIdentifiers.envelopedData.equals(ci.getContentType())) {
+            throw new Tr34Exception("Invalid encapsulated content info identifier");
+        }
+
+        ASN1OctetString enveloped = (ASN1OctetString) ci.getContent();
+        envelopedData = EnvelopedData.getInstance(ASN1Sequence.getInstance(enveloped.getOctets()));
+
+        this.rootNode = rootAsn1;
+    }
+
+    public Date getSigningTime() {
+        return new Date(signingTime.getTime());
+    }
+
+    public String getKeyBlockHeader() {
+        return keyBlockHeader;
+    }
+
+    public EnvelopedData getEnvelopedData() {
+        return envelopedData;
+    }
+
+    @Override
+    public SignerInfo getSignerInfo() {
+        return signerInfo;
+    }
+
+    @Override
+    public SignedData getSignedData() {
+        return signedData;
+    }
+
+    @Override
+    public ASN1Primitive toASN1Primitive() {
+        return rootNode;
+    }
+}
@@ -18,6 +18,7 @@ public class Tr34PEMGenerator implements PemObjectGenerator {
 
     public static final String TR34_RANDOM_TOKEN = "TR34 RANDOM TOKEN";
     public static final String TR34_TWO_PASS_KEY_TOKEN = "TR34 TWO PASS KEY TOKEN";
+    public static final String TR34_ONE_PASS_KEY_TOKEN = "TR34 ONE PASS KEY TOKEN";
     public static final String TR34_KRD_CREDENTIAL_TOKEN = "TR34 KRD CREDENTIAL TOKEN";
     public static final String TR34_KDH_CREDENTIAL_TOKEN = "TR34 KDH CREDENTIAL TOKEN";
     public static final String TR34_KDH_UNBIND_TOKEN = "TR34 KDH UNBIND TOKEN";
@@ -33,35 +34,44 @@ public class Tr34PEMGenerator implements PemObjectGenerator {
 
     @Override
     public PemObject generate() throws PemGenerationException {
-        String  type;
+        String type = getType(obj);
+        if (type == null) {
+            throw new PemGenerationException("unknown object passed");
+        }
 
         try {
-            if (obj instanceof Tr34RandomToken) {
-                type = TR34_RANDOM_TOKEN;
-            } else if (obj instanceof Tr34TwoPassKeyToken) {
-                type = TR34_TWO_PASS_KEY_TOKEN;
-            } else if (obj instanceof Tr34KrdCredentialToken) {
-                type = TR34_KRD_CREDENTIAL_TOKEN;
-            } else if (obj instanceof Tr34KdhCredentialToken) {
-                type = TR34_KDH_CREDENTIAL_TOKEN;
-            } else if (obj instanceof Tr34KdhUnbindToken) {
-                type = TR34_KDH_UNBIND_TOKEN;
-            } else if (obj instanceof Tr34KdhRebindToken) {
-                type = TR34_KDH_REBIND_TOKEN;
-            } else if (obj instanceof Tr34CaUnbindToken) {
-                type = TR34_CA_UNBIND_TOKEN;
-            } else if (obj instanceof Tr34CaRebindToken) {
-                type = TR34_CA_REBIND_TOKEN;
-            } else {
-                throw new PemGenerationException("unknown object passed");
-            }
-
             return new PemObject(type, obj.getEncoded());
         } catch (IOException e) {
             throw new PemGenerationException("failure", e);
         }
     }
 
+    /**
+     * Returns the PEM label for a TR-34 object, or null for any other object.
+     */
+    public static String getType(Object obj) {
+        if (obj instanceof Tr34RandomToken) {
+            return TR34_RANDOM_TOKEN;
+        } else if (obj instanceof Tr34TwoPassKeyToken) {
+            return TR34_TWO_PASS_KEY_TOKEN;
+        } else if (obj instanceof Tr34OnePassKeyToken) {
+            return TR34_ONE_PASS_KEY_TOKEN;
+        } else if (obj instanceof Tr34KrdCredentialToken) {
+            return TR34_KRD_CREDENTIAL_TOKEN;
+        } else if (obj instanceof Tr34KdhCredentialToken) {
+            return TR34_KDH_CREDENTIAL_TOKEN;
+        } else if (obj instanceof Tr34KdhUnbindToken) {
+            return TR34_KDH_UNBIND_TOKEN;
+        } else if (obj instanceof Tr34KdhRebindToken) {
+            return TR34_KDH_REBIND_TOKEN;
+        } else if (obj instanceof Tr34CaUnbindToken) {
+            return TR34_CA_UNBIND_TOKEN;
+        } else if (obj instanceof Tr34CaRebindToken) {
+            return TR34_CA_REBIND_TOKEN;
+        }
+        return null;
+    }
+
     public static String encodeToPem(Object asn1) {
         try {
             StringWriter sw = new StringWriter();
@@ -0,0 +1,405 @@
+package com.clover.tr34;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Reads consecutive PEM objects from a stream or channel, e.g. bulk files of concatenated random
+ * and KRD credential tokens. Input is scanned in fixed size chunks, block boundaries are found on
+ * the raw bytes and the base64 body is decoded straight into pooled buffers, so no String is built
+ * for anything but the labels. Body lines of any length are accepted, e.g. a body that was not
+ * wrapped, they are decoded as they stream in. Text outside of PEM blocks and RFC 1421 header lines
+ * are skipped.
+ * <p>
+ * Blocks are read with {@link #next()}, or decoded in parallel with
+ * {@link #decodeAll(Tr34TokenCodec, Executor, int, Consumer)}. Reading is not thread safe, blocks may
+ * be released from any thread.
+ */
+public final class Tr34PemStreamReader implements Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int BLOCK_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private static final byte[] BEGIN = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "-----END ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DASHES = "-----".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BASE64 = new byte[128];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        byte[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < alphabet.length; i++) {
+            BASE64[alphabet[i]] = (byte) i;
+        }
+    }
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private int lineLength;
+    private boolean lineSpilled;
+    private boolean eof;
+    private long lineNumber;
+    private long blockCount;
+
+    // Base64 decoding state of the current block
+    private ByteBuffer out;
+    private int bits;
+    private int bitCount;
+    private boolean padded;
+
+    /**
+     * One PEM object. The contents are only valid until {@link #release()}.
+     */
+    public final class Block {
+        private final String label;
+        private final ByteBuffer contents;
+        private final long index;
+        private boolean released;
+
+        private Block(String label, ByteBuffer contents, long index) {
+            this.label = label;
+            this.contents = contents;
+            this.index = index;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * The decoded DER from position 0 to its length.
+         */
+        public ByteBuffer getContents() {
+            if (released) {
+                throw new IllegalStateException("Block released");
+            }
+            return contents;
+        }
+
+        /**
+         * Zero based position of the block in the input.
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the buffer to the reader's pool.
+         */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                recycle(contents);
+            }
+        }
+    }
+
+    public Tr34PemStreamReader(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    /**
+     * @param channel E.g. a {@link java.nio.channels.FileChannel}, read from its current position
+     */
+    public Tr34PemStreamReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        chunk.flip();
+    }
+
+    /**
+     * Reads the next PEM object.
+     *
+     * @return The block or null at the end of the input
+     * @throws Tr34Exception If a block is malformed or truncated
+     */
+    public Block next() throws IOException {
+        String label = null;
+        while (label == null) {
+            if (!readLine(null)) {
+                return null;
+            }
+            if (startsWith(BEGIN) && endsWith(DASHES) && lineLength > BEGIN.length + DASHES.length) {
+                label = new String(line, BEGIN.length, lineLength - BEGIN.length - DASHES.length,
+                        StandardCharsets.US_ASCII);
+            }
+        }
+
+        out = acquire(BLOCK_BUFFER_SIZE);
+        bits = 0;
+        bitCount = 0;
+        padded = false;
+        boolean complete = false;
+        try {
+            while (true) {
+                if (!readLine(label)) {
+                    throw new Tr34Exception("Missing end of " + label + " at line " + lineNumber);
+                }
+                if (!lineSpilled) {
+                    if (startsWith(END)) {
+                        if (!isEndOf(label)) {
+                            throw new Tr34Exception("Mismatched end of " + label + " at line " + lineNumber);
+                        }
+                        break;
+                    }
+                    if (indexOf((byte) ':') >= 0) {
+                        // RFC 1421 header
+                        continue;
+                    }
+                }
+                decodeLine(label, lineNumber);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                recycle(out);
+            }
+        }
+
+        ByteBuffer contents = out;
+        out = null;
+        contents.flip();
+        return new Block(label, contents, blockCount++);
+    }
+
+    /**
+     * Decodes the base64 in {@link #line} into {@link #out}.
+     */
+    private void decodeLine(String label, long number) {
+        for (int i = 0; i < lineLength; i++) {
+            byte c = line[i];
+            if (c == '=') {
+                padded = true;
+                continue;
+            }
+            if (c == ' ' || c == '\t') {
+                continue;
+            }
+            int value = c >= 0 ? BASE64[c] : -1;
+            if (value < 0 || padded) {
+                throw new Tr34Exception("Invalid base64 in " + label + " at line " + number);
+            }
+            bits = bits << 6 | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                if (!out.hasRemaining()) {
+                    out = grow(out);
+                }
+                out.put((byte) (bits >> bitCount));
+            }
+        }
+    }
+
+    /**
+     * Decodes every remaining block with the codec on the executor and hands the tokens to the sink in
+     * input order, on the calling thread. At most maxInFlight blocks are read ahead, which bounds the
+     * memory held regardless of the input size.
+     *
+     * @return Number of tokens decoded
+     * @throws Tr34Exception If a block does not decode, naming the block index
+     */
+    public long decodeAll(Tr34TokenCodec codec, Executor executor, int maxInFlight,
+                          Consumer<? super Tr34Object> sink) throws IOException {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        ArrayDeque<CompletableFuture<Tr34Object>> inFlight = new ArrayDeque<>();
+        ArrayDeque<Long> indexes = new ArrayDeque<>();
+        long count = 0;
+        try {
+            Block block;
+            while ((block = next()) != null) {
+                Block decoding = block;
+                inFlight.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return codec.decodeLabeled(decoding.getLabel(), decoding.getContents());
+                    } finally {
+                        decoding.release();
+                    }
+                }, executor));
+                indexes.add(decoding.getIndex());
+
+                if (inFlight.size() >= maxInFlight) {
+                    sink.accept(await(inFlight.poll(), indexes.poll()));
+                    count++;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                sink.accept(await(inFlight.poll(), indexes.poll()));
+                count++;
+            }
+            return count;
+        } finally {
+            for (CompletableFuture<Tr34Object> future : inFlight) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static Tr34Object await(CompletableFuture<Tr34Object> future, long index) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new Tr34Exception("Failed to decode block " + index, e.getCause());
+        }
+    }
+
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the next line without its terminator into {@link #line}. Outside of a block overlong
+     * lines are truncated. Inside one an overlong body line is decoded part by part as the buffer
+     * fills, {@link #lineSpilled} is then set and {@link #line} holds the rest of the line.
+     *
+     * @param bodyLabel Label of the block whose body is read, or null outside of a block
+     * @return False at the end of the input
+     * @throws Tr34Exception If a boundary or header line inside the block is overlong
+     */
+    private boolean readLine(String bodyLabel) throws IOException {
+        lineLength = 0;
+        lineSpilled = false;
+        boolean any = false;
+        while (true) {
+            if (!chunk.hasRemaining() && !fill()) {
+                if (any) {
+                    lineNumber++;
+                }
+                return any;
+            }
+            any = true;
+            byte b = chunk.get();
+            if (b == '\n') {
+                lineNumber++;
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+            if (lineLength == MAX_LINE_LENGTH && bodyLabel != null) {
+                if (!lineSpilled && (startsWith(END) || indexOf((byte) ':') >= 0)) {
+                    throw new Tr34Exception("Line too long in " + bodyLabel + " at line " + (lineNumber + 1));
+                }
+                decodeLine(bodyLabel, lineNumber + 1);
+                lineLength = 0;
+                lineSpilled = true;
+            }
+            if (lineLength < MAX_LINE_LENGTH) {
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        chunk.clear();
+        int n;
+        do {
+            n = channel.read(chunk);
+        } while (n == 0);
+        chunk.flip();
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (lineLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean endsWith(byte[] suffix) {
+        if (lineLength < suffix.length) {
+            return false;
+        }
+        int offset = lineLength - suffix.length;
+        for (int i = 0; i < suffix.length; i++) {
+            if (line[offset + i] != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEndOf(String label) {
+        byte[] expected = label.getBytes(StandardCharsets.US_ASCII);
+        if (lineLength != END.length + expected.length + DASHES.length || !endsWith(DASHES)) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (line[END.length + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte b) {
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer acquire(int minCapacity) {
+        ByteBuffer buffer = minCapacity <= BLOCK_BUFFER_SIZE ? pool.poll() : null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(Math.max(minCapacity, BLOCK_BUFFER_SIZE));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private ByteBuffer grow(ByteBuffer out) {
+        ByteBuffer larger = acquire(out.capacity() * 2);
+        out.flip();
+        larger.put(out);
+        recycle(out);
+        return larger;
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        // Oversized buffers of rare large blocks are left to the garbage collector
+        if (buffer.capacity() == BLOCK_BUFFER_SIZE) {
+            pool.add(buffer);
+        }
+    }
+
+}
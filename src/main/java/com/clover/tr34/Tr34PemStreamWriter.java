@@ -0,0 +1,186 @@
+package com.clover.tr34;
+
+import org.bouncycastle.util.Strings;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes TR-34 objects in PEM format straight to a stream, channel or buffer, for bulk export of
+ * generated tokens. Each object is encoded once into a reused DER buffer and base64 encoded from
+ * there into a reused output buffer, no String or per object array is created. The output is
+ * identical to {@link Tr34PEMGenerator#encodeToPem(Object)}: labels from {@link Tr34PEMGenerator},
+ * 64 character lines and the platform line separator.
+ * <p>
+ * Not thread safe.
+ */
+public final class Tr34PemStreamWriter implements Closeable, Flushable {
+
+    private static final int LINE_LENGTH = 64;
+    private static final int BYTES_PER_LINE = LINE_LENGTH / 4 * 3;
+    private static final int OUTPUT_SIZE = 64 * 1024;
+
+    private static final byte[] BEGIN = "-----BEGIN ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "-----END ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DASHES = "-----".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEW_LINE = Strings.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocate(OUTPUT_SIZE);
+    private ByteBuffer der = ByteBuffer.allocate(4096);
+    private long objectCount;
+
+    public Tr34PemStreamWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    public Tr34PemStreamWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Appends the object. Output is buffered until the buffer fills, {@link #flush()} or
+     * {@link #close()}.
+     *
+     * @throws Tr34Exception If the object has no PEM label
+     */
+    public void write(Tr34Object obj) throws IOException {
+        String label = label(obj);
+        int length = obj.getEncodedLength();
+        if (der.capacity() < length) {
+            der = ByteBuffer.allocate(Math.max(length, der.capacity() * 2));
+        }
+        der.clear();
+        obj.encodeTo(der);
+        der.flip();
+
+        encode(label.getBytes(StandardCharsets.US_ASCII), der, out, this);
+        objectCount++;
+    }
+
+    /**
+     * Writes the object in PEM format at the buffer's position and advances it.
+     *
+     * @return Number of bytes written, same as {@link #getPemLength(Tr34Object)}
+     * @throws BufferOverflowException If too few bytes remain, in which case nothing is written
+     */
+    public static int encodeTo(Tr34Object obj, ByteBuffer buffer) {
+        int pemLength = getPemLength(obj);
+        if (buffer.remaining() < pemLength) {
+            throw new BufferOverflowException();
+        }
+
+        // Encode the DER at the end of the space, base64 is longer than its input so the text written
+        // from the front never overtakes the DER still to be read
+        int start = buffer.position();
+        int derLength = obj.getEncodedLength();
+        ByteBuffer der = buffer.duplicate();
+        der.position(start + pemLength - derLength);
+        obj.encodeTo(der);
+        der.flip().position(start + pemLength - derLength);
+
+        try {
+            encode(label(obj).getBytes(StandardCharsets.US_ASCII), der, buffer, null);
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+        return pemLength;
+    }
+
+    /**
+     * Exact number of bytes {@link #write(Tr34Object)} and {@link #encodeTo(Tr34Object, ByteBuffer)}
+     * produce for the object.
+     */
+    public static int getPemLength(Tr34Object obj) {
+        int labelLength = label(obj).length();
+        int chars = (obj.getEncodedLength() + 2) / 3 * 4;
+        int lines = (chars + LINE_LENGTH - 1) / LINE_LENGTH;
+        return BEGIN.length + labelLength + DASHES.length + NEW_LINE.length
+                + chars + lines * NEW_LINE.length
+                + END.length + labelLength + DASHES.length + NEW_LINE.length;
+    }
+
+    public long getObjectCount() {
+        return objectCount;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String label(Tr34Object obj) {
+        String label = Tr34PEMGenerator.getType(obj);
+        if (label == null) {
+            throw new Tr34Exception("No PEM label for " + obj.getClass().getName());
+        }
+        return label;
+    }
+
+    /**
+     * Base64 encodes the remaining DER into out line by line. With a writer, out is flushed whenever
+     * the next line may not fit, without one the caller made sure everything fits.
+     */
+    private static void encode(byte[] label, ByteBuffer der, ByteBuffer out, Tr34PemStreamWriter writer)
+            throws IOException {
+        int boundary = BEGIN.length + label.length + DASHES.length + NEW_LINE.length;
+        reserve(out, boundary, writer);
+        out.put(BEGIN).put(label).put(DASHES).put(NEW_LINE);
+
+        int lineBytes = LINE_LENGTH + NEW_LINE.length;
+        while (der.hasRemaining()) {
+            reserve(out, lineBytes, writer);
+            int n = Math.min(BYTES_PER_LINE, der.remaining());
+            for (; n >= 3; n -= 3) {
+                int bits = (der.get() & 0xff) << 16 | (der.get() & 0xff) << 8 | der.get() & 0xff;
+                out.put(BASE64[bits >>> 18]).put(BASE64[bits >>> 12 & 0x3f])
+                        .put(BASE64[bits >>> 6 & 0x3f]).put(BASE64[bits & 0x3f]);
+            }
+            if (n == 2) {
+                int bits = (der.get() & 0xff) << 8 | der.get() & 0xff;
+                out.put(BASE64[bits >>> 10]).put(BASE64[bits >>> 4 & 0x3f])
+                        .put(BASE64[bits << 2 & 0x3f]).put((byte) '=');
+            } else if (n == 1) {
+                int bits = der.get() & 0xff;
+                out.put(BASE64[bits >>> 2]).put(BASE64[bits << 4 & 0x3f]).put((byte) '=').put((byte) '=');
+            }
+            out.put(NEW_LINE);
+        }
+
+        reserve(out, END.length + label.length + DASHES.length + NEW_LINE.length, writer);
+        out.put(END).put(label).put(DASHES).put(NEW_LINE);
+    }
+
+    private static void reserve(ByteBuffer out, int length, Tr34PemStreamWriter writer) throws IOException {
+        if (writer == null || out.remaining() >= length) {
+            return;
+        }
+        writer.flush();
+        if (out.remaining() < length) {
+            throw new Tr34Exception("PEM label too long");
+        }
+    }
+
+}
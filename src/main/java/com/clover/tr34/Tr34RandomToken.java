@@ -10,16 +10,12 @@ import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DLSequence;
 import org.bouncycastle.asn1.DLSet;
 
-import java.security.SecureRandom;
-
 
 /**
  * See B.12 RTKRD – KRD Random Number Token
  */
 public class Tr34RandomToken extends Tr34Object {
 
-    private static final SecureRandom sRand = new SecureRandom();
-
     private final ASN1Sequence rootNode;
 
     private Tr34RandomToken(ASN1Sequence asn1) {
@@ -36,10 +32,11 @@ public class Tr34RandomToken extends Tr34Object {
         return new Tr34RandomToken(new DLSequence(new ASN1Encodable[] { Tr34ObjectIdentifiers.randomNonce, set }));
     }
 
+    /**
+     * Creates a token with a 16 byte nonce from {@link Tr34EntropyService#getDefault()}.
+     */
     public static Tr34RandomToken createNewRandom() {
-        byte[] nonce = new byte[16];
-        sRand.nextBytes(nonce);
-        return create(nonce);
+        return create(Tr34EntropyService.getDefault().nextNonce(16));
     }
 
     public ASN1OctetString getRandomNumber() {
@@ -0,0 +1,81 @@
+package com.clover.tr34;
+
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps prepared envelope recipients for recently seen KRD certificates so repeated key injections
+ * to the same device skip the public key and identifier extraction. Keyed by the SHA-256 fingerprint
+ * of the certificate, taken from its {@link Tr34CertificateCache.Interned} entry, so there is one
+ * entry per KRD whichever instance is looked up. Least recently used entries are evicted once the
+ * cache is full.
+ * <p>
+ * A single instance may be shared by every {@link Tr34TokenFactory}, the entries hold only public
+ * KRD data.
+ */
+public final class Tr34RecipientCache {
+
+    private final int maxEntries;
+    private final Map<ByteBuffer, Tr34RecipientContext> contexts;
+
+    private long hits;
+    private long misses;
+
+    public Tr34RecipientCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.contexts = new LinkedHashMap<ByteBuffer, Tr34RecipientContext>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Tr34RecipientContext> eldest) {
+                return size() > Tr34RecipientCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Interns the certificate in {@link Tr34CertificateCache#getDefault()} for its fingerprint.
+     */
+    Tr34RecipientContext get(X509Certificate krdCert) {
+        return get(Tr34CertificateCache.getDefault().intern(krdCert));
+    }
+
+    /**
+     * Looks up an already interned certificate without digesting it again.
+     */
+    Tr34RecipientContext get(Tr34CertificateCache.Interned krdCert) {
+        ByteBuffer key = krdCert.fingerprintKey();
+
+        synchronized (this) {
+            Tr34RecipientContext context = contexts.get(key);
+            if (context != null) {
+                hits++;
+                return context;
+            }
+            misses++;
+        }
+
+        // Racing threads may each prepare one, they are equivalent
+        Tr34RecipientContext context = new Tr34RecipientContext(krdCert.getCertificate());
+        synchronized (this) {
+            contexts.put(key, context);
+        }
+        return context;
+    }
+
+    public synchronized int size() {
+        return contexts.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+}
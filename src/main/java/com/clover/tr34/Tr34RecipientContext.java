@@ -0,0 +1,114 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.EncryptedContentInfo;
+import org.bouncycastle.asn1.cms.EnvelopedData;
+import org.bouncycastle.asn1.cms.KeyTransRecipientInfo;
+import org.bouncycastle.asn1.cms.RecipientIdentifier;
+import org.bouncycastle.asn1.cms.RecipientInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.operator.jcajce.JcaAlgorithmParametersConverter;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.Arrays;
+
+/**
+ * Everything needed to envelope key blocks for one KRD that does not depend on the key block: the
+ * KRD public key, its recipient identifier and the RSA-OAEP algorithm identifier. Building an
+ * envelope from a prepared context costs one AES content encryption and one RSA-OAEP operation.
+ * See {@link Tr34RecipientCache}. Thread safe.
+ */
+final class Tr34RecipientContext {
+
+    private static final int AES_BLOCK_SIZE = 16;
+
+    static final OAEPParameterSpec OAEP_PARAMETERS = new OAEPParameterSpec("SHA-256", "MGF1",
+            MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+    static final AlgorithmIdentifier KEY_ENCRYPTION_ALGORITHM = oaepAlgorithm();
+
+    private final PublicKey publicKey;
+    private final RecipientIdentifier recipientIdentifier;
+
+    Tr34RecipientContext(X509Certificate recipientCert) {
+        this.publicKey = recipientCert.getPublicKey();
+        this.recipientIdentifier = new RecipientIdentifier(Tr34CryptoUtils.getIssuerAndSerialNumber(recipientCert));
+    }
+
+    /**
+     * Same envelope as {@link Tr34TwoPassKeyToken#encryptForRecipient(X509Certificate, byte[])} but
+     * built by hand so the key block is read straight from off-heap key material. The content is
+     * encrypted one block at a time through a scratch array that is zeroed afterwards, the ephemeral
+     * content encryption key only exists inside the provider.
+     */
+    byte[] encrypt(Tr34KeyMaterial keyBlock) throws Exception {
+        Tr34EntropyService entropy = Tr34EntropyService.getDefault();
+        SecureRandom random = entropy.getSecureRandom();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES", Tr34Provider.PROVIDER);
+        keyGenerator.init(128, random);
+        SecretKey contentKey = keyGenerator.generateKey();
+
+        byte[] iv = entropy.nextNonce(AES_BLOCK_SIZE);
+        Cipher contentCipher = Cipher.getInstance("AES/CBC/NoPadding", Tr34Provider.PROVIDER);
+        contentCipher.init(Cipher.ENCRYPT_MODE, contentKey, new IvParameterSpec(iv));
+
+        // PKCS #7 padding, always at least one byte
+        ByteBuffer clear = keyBlock.buffer();
+        int padding = AES_BLOCK_SIZE - clear.remaining() % AES_BLOCK_SIZE;
+        byte[] encrypted = new byte[clear.remaining() + padding];
+        byte[] scratch = new byte[AES_BLOCK_SIZE];
+        try {
+            int offset = 0;
+            while (clear.remaining() >= AES_BLOCK_SIZE) {
+                clear.get(scratch);
+                offset += contentCipher.update(scratch, 0, AES_BLOCK_SIZE, encrypted, offset);
+            }
+            int tail = clear.remaining();
+            clear.get(scratch, 0, tail);
+            Arrays.fill(scratch, tail, AES_BLOCK_SIZE, (byte) padding);
+            offset += contentCipher.doFinal(scratch, 0, AES_BLOCK_SIZE, encrypted, offset);
+            if (offset != encrypted.length) {
+                throw new Tr34Exception("Unexpected envelope length");
+            }
+        } finally {
+            Arrays.fill(scratch, (byte) 0);
+        }
+
+        Cipher keyCipher = Cipher.getInstance("RSA/NONE/OAEPPadding", Tr34Provider.PROVIDER);
+        keyCipher.init(Cipher.WRAP_MODE, publicKey, OAEP_PARAMETERS, random);
+        byte[] encryptedKey = keyCipher.wrap(contentKey);
+
+        KeyTransRecipientInfo recipient = new KeyTransRecipientInfo(recipientIdentifier, KEY_ENCRYPTION_ALGORITHM,
+                new DEROctetString(encryptedKey));
+        EncryptedContentInfo content = new EncryptedContentInfo(CMSObjectIdentifiers.data,
+                new AlgorithmIdentifier(CMSAlgorithm.AES128_CBC, new DEROctetString(iv)),
+                new DEROctetString(encrypted));
+        EnvelopedData ed = new EnvelopedData(null, new DERSet(new RecipientInfo(recipient)), content, (ASN1Set) null);
+        return ed.getEncoded(ASN1Encoding.DL);
+    }
+
+    private static AlgorithmIdentifier oaepAlgorithm() {
+        try {
+            return new JcaAlgorithmParametersConverter().getAlgorithmIdentifier(PKCSObjectIdentifiers.id_RSAES_OAEP,
+                    OAEP_PARAMETERS);
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of encoded key tokens so that a KRD retrying the same request receives the exact
+ * token previously issued instead of a newly encrypted and signed one.
+ * <p>
+ * Entries are keyed by the KRD IssuerAndSerialNumber, the KRD random nonce and a caller supplied
+ * key identifier. Entries expire after the configured window. When either the entry limit or the
+ * total encoded byte limit is exceeded the least recently used entries are evicted.
+ * <p>
+ * The key identifier must uniquely identify the symmetric key being transported, a cache hit
+ * returns the previously issued token without looking at the key.
+ */
+public final class Tr34ResponseCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long windowMillis;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, CompletableFuture<byte[]>> issuing = new HashMap<>();
+    private long totalBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maxEntries Maximum number of tokens held
+     * @param maxBytes Maximum sum of the encoded sizes of all held tokens
+     * @param windowMillis How long an issued token may be returned again
+     */
+    public Tr34ResponseCache(int maxEntries, long maxBytes, long windowMillis) {
+        if (maxEntries <= 0 || maxBytes <= 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("Cache limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.windowMillis = windowMillis;
+    }
+
+    static Key createKey(IssuerAndSerialNumber krdIssuerAndSerial, byte[] nonce, String keyId) {
+        try {
+            return new Key(krdIssuerAndSerial.getEncoded(), nonce, keyId);
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Returns the encoded token previously stored for the key or null if absent or expired.
+     */
+    synchronized byte[] get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        if (System.currentTimeMillis() - entry.createdMillis > windowMillis) {
+            remove(key, entry);
+            expirations++;
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.encoded;
+    }
+
+    /**
+     * Returns the live token for the key, or stores the one the issuer creates. Concurrent calls for
+     * a missing key wait for the first caller's issuer, which runs once. If it fails the waiting
+     * callers fail with the same exception.
+     */
+    byte[] computeIfAbsent(Key key, Supplier<byte[]> issuer) {
+        CompletableFuture<byte[]> future;
+        boolean issue;
+        synchronized (this) {
+            byte[] cached = get(key);
+            if (cached != null) {
+                return cached;
+            }
+            future = issuing.get(key);
+            issue = future == null;
+            if (issue) {
+                future = new CompletableFuture<>();
+                issuing.put(key, future);
+            }
+        }
+        if (!issue) {
+            return await(future);
+        }
+
+        byte[] encoded = null;
+        try {
+            encoded = issuer.get();
+            synchronized (this) {
+                putIfAbsent(key, encoded);
+            }
+            return encoded;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                issuing.remove(key);
+            }
+            if (encoded != null) {
+                future.complete(encoded);
+            } else {
+                future.completeExceptionally(new Tr34Exception("Issuing the token failed"));
+            }
+        }
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new Tr34Exception(e.getCause());
+        }
+    }
+
+    /**
+     * Stores the encoded token unless a live token is already present for the key, in which case
+     * the existing token is returned so that concurrent retries all observe the same response.
+     */
+    synchronized byte[] putIfAbsent(Key key, byte[] encoded) {
+        long now = System.currentTimeMillis();
+
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            if (now - existing.createdMillis <= windowMillis) {
+                return existing.encoded;
+            }
+            remove(key, existing);
+            expirations++;
+        }
+
+        if (encoded.length > maxBytes) {
+            return null;
+        }
+
+        entries.put(key, new Entry(encoded, now));
+        totalBytes += encoded.length;
+
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && it.hasNext()) {
+            Map.Entry<Key, Entry> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue().encoded.length;
+            if (now - eldest.getValue().createdMillis > windowMillis) {
+                expirations++;
+            } else {
+                evictions++;
+            }
+        }
+
+        return null;
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        totalBytes -= entry.encoded.length;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Number of live entries removed to respect the entry or byte limit.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Tr34ResponseCache{" +
+                "size=" + entries.size() +
+                ", totalBytes=" + totalBytes +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", expirations=" + expirations +
+                '}';
+    }
+
+    static final class Key {
+        private final byte[] krdIssuerAndSerial;
+        private final byte[] nonce;
+        private final String keyId;
+        private final int hash;
+
+        Key(byte[] krdIssuerAndSerial, byte[] nonce, String keyId) {
+            if (keyId == null) {
+                throw new NullPointerException("keyId");
+            }
+            this.krdIssuerAndSerial = krdIssuerAndSerial;
+            this.nonce = nonce;
+            this.keyId = keyId;
+            this.hash = 31 * (31 * Arrays.hashCode(krdIssuerAndSerial) + Arrays.hashCode(nonce)) + keyId.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash
+                    && keyId.equals(other.keyId)
+                    && Arrays.equals(nonce, other.nonce)
+                    && Arrays.equals(krdIssuerAndSerial, other.krdIssuerAndSerial);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] encoded;
+        final long createdMillis;
+
+        Entry(byte[] encoded, long createdMillis) {
+            this.encoded = encoded;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+package com.clover.tr34;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Drives the TR-34 lifecycle of many KRDs as explicit state machines on top of the single token
+ * primitives of {@link Tr34TokenFactory}.
+ * <p>
+ * Supported flows, each starting with one of the open methods:
+ * <pre>
+ * BIND           KRD credential token -&gt; KDH credential token, random token -&gt; two-pass key token
+ * KEY_TRANSPORT  random token -&gt; two-pass key token
+ * REBIND         random token -&gt; KDH rebind token
+ * UNBIND         random token -&gt; KDH unbind token
+ * </pre>
+ * Completed and failed sessions are removed immediately. Idle sessions are expired by a timing
+ * wheel advanced through {@link #expireIdleSessions()}, so the engine needs no timer per session.
+ * Per session state is a small object holding only references to the KRD chain and the pending
+ * key reference, clear keys are resolved through the {@link KeyResolver} only when the key token is
+ * built.
+ */
+public final class Tr34SessionEngine {
+
+    public enum Operation {
+        BIND, KEY_TRANSPORT, REBIND, UNBIND
+    }
+
+    public enum State {
+        AWAIT_KRD_CREDENTIAL, AWAIT_RANDOM_TOKEN
+    }
+
+    /**
+     * Provides clear symmetric keys by reference at the moment the key token is generated.
+     */
+    public interface KeyResolver {
+        byte[] resolve(String keyReference);
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final State[] STATES = State.values();
+
+    private final Tr34TokenFactory factory;
+    private final KeyResolver keyResolver;
+    private final List<X509Certificate> krdIssuerChain;
+    private final LongSupplier clock;
+
+    private final ConcurrentMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Tr34TimingWheel<Session> wheel;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * @param krdIssuerChain Certificates from the KRD CA up to the root, used to validate the KRD
+     * certificate received in a KRD credential token
+     * @param idleTimeoutMillis Sessions without activity for this long are discarded
+     * @param tickMillis Resolution of idle expiry
+     */
+    public Tr34SessionEngine(Tr34TokenFactory factory, KeyResolver keyResolver, List<X509Certificate> krdIssuerChain,
+                             long idleTimeoutMillis, long tickMillis) {
+        this(factory, keyResolver, krdIssuerChain, idleTimeoutMillis, tickMillis, System::currentTimeMillis);
+    }
+
+    Tr34SessionEngine(Tr34TokenFactory factory, KeyResolver keyResolver, List<X509Certificate> krdIssuerChain,
+                      long idleTimeoutMillis, long tickMillis, LongSupplier clock) {
+        this.factory = factory;
+        this.keyResolver = keyResolver;
+        this.krdIssuerChain = new ArrayList<>(krdIssuerChain);
+        this.clock = clock;
+        this.wheel = new Tr34TimingWheel<>(tickMillis, idleTimeoutMillis, clock.getAsLong());
+    }
+
+    /**
+     * Starts binding a new KRD, the next step is {@link #onKrdCredentialToken}.
+     *
+     * @param keyReference Key to transport once bound
+     */
+    public long openBind(String keyReference) {
+        return open(Operation.BIND, State.AWAIT_KRD_CREDENTIAL, null, keyReference);
+    }
+
+    /**
+     * Starts transporting a key to a bound KRD, the next step is {@link #onRandomToken}.
+     */
+    public long openKeyTransport(List<X509Certificate> krdChain, String keyReference) {
+        factory.verifyKrdChain(krdChain);
+        return open(Operation.KEY_TRANSPORT, State.AWAIT_RANDOM_TOKEN, krdChain, keyReference);
+    }
+
+    /**
+     * Starts rebinding a KRD to a new KDH certificate, the next step is {@link #onRandomToken}.
+     */
+    public long openRebind(List<X509Certificate> krdChain, X509Certificate newKdhCert) {
+        factory.verifyKrdChain(krdChain);
+        return open(Operation.REBIND, State.AWAIT_RANDOM_TOKEN, krdChain, newKdhCert);
+    }
+
+    /**
+     * Starts unbinding a KRD, the next step is {@link #onRandomToken}.
+     */
+    public long openUnbind(List<X509Certificate> krdChain) {
+        factory.verifyKrdChain(krdChain);
+        return open(Operation.UNBIND, State.AWAIT_RANDOM_TOKEN, krdChain, null);
+    }
+
+    private long open(Operation operation, State state, List<X509Certificate> krdChain, Object payload) {
+        Session session = new Session(nextId.getAndIncrement(), operation, state, krdChain, payload);
+        sessions.put(session.id, session);
+        synchronized (wheel) {
+            wheel.touch(session, clock.getAsLong());
+        }
+        return session.id;
+    }
+
+    /**
+     * Handles the KRD credential token of a bind session and returns the KDH credential token to send.
+     */
+    public Tr34KdhCredentialToken onKrdCredentialToken(long sessionId, Tr34KrdCredentialToken credentialToken) {
+        Session session = acquire(sessionId);
+        synchronized (session) {
+            try {
+                checkState(session, State.AWAIT_KRD_CREDENTIAL);
+
+                List<X509Certificate> krdChain = new ArrayList<>(krdIssuerChain.size() + 1);
+                krdChain.add(credentialToken.getKrdCertificate());
+                krdChain.addAll(krdIssuerChain);
+                factory.verifyKrdChain(krdChain);
+
+                Tr34KeyStoreData keyStoreData = factory.getKeyStoreData();
+                Tr34KdhCredentialToken response = factory.generateKdhCredentialToken(
+                        keyStoreData.getKdhRevocationList(),
+                        Tr34CryptoUtils.createHoursFromNowDate(24L * keyStoreData.nextCrlUpdateDays()));
+
+                session.krdChain = krdChain;
+                session.state = (byte) State.AWAIT_RANDOM_TOKEN.ordinal();
+                touch(session);
+                return response;
+            } catch (RuntimeException e) {
+                fail(session);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Handles the KRD random token and returns the final token of the session: a two-pass key
+     * token, KDH rebind token or KDH unbind token depending on the operation. The session is closed
+     * afterwards.
+     */
+    public Tr34Object onRandomToken(long sessionId, Tr34RandomToken randomToken) {
+        Session session = acquire(sessionId);
+        synchronized (session) {
+            try {
+                checkState(session, State.AWAIT_RANDOM_TOKEN);
+
+                // The KRD chain was verified when the session received it
+                X509Certificate krdCert = session.krdChain.get(0);
+                Tr34Object response;
+                switch (OPERATIONS[session.operation]) {
+                    case KEY_TRANSPORT:
+                        factory.checkBinding(krdCert);
+                        response = createKeyToken(session, randomToken);
+                        break;
+                    case BIND:
+                        // The session has just bound its KRD
+                        response = createKeyToken(session, randomToken);
+                        break;
+                    case REBIND:
+                        factory.checkBinding(krdCert);
+                        response = factory.createKdhRebindToken(randomToken, krdCert, (X509Certificate) session.payload);
+                        break;
+                    case UNBIND:
+                        factory.checkBinding(krdCert);
+                        response = factory.createKdhUnbindToken(randomToken, krdCert);
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+
+                close(session);
+                completed.incrementAndGet();
+                return response;
+            } catch (RuntimeException e) {
+                fail(session);
+                throw e;
+            }
+        }
+    }
+
+    private Tr34TwoPassKeyToken createKeyToken(Session session, Tr34RandomToken randomToken) {
+        byte[] key = keyResolver.resolve((String) session.payload);
+        try {
+            return factory.createTwoPassKeyToken(randomToken, session.krdChain.get(0), key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Returns the state of an open session or null if the session is unknown, finished or expired.
+     */
+    public State getState(long sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null ? null : STATES[session.state];
+    }
+
+    public Operation getOperation(long sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null ? null : OPERATIONS[session.operation];
+    }
+
+    /**
+     * Discards sessions idle for longer than the idle timeout. Call periodically, typically once per
+     * tick.
+     *
+     * @return Number of sessions expired
+     */
+    public int expireIdleSessions() {
+        synchronized (wheel) {
+            return wheel.advance(clock.getAsLong(), session -> {
+                sessions.remove(session.id, session);
+                session.closed = true;
+                expired.incrementAndGet();
+            });
+        }
+    }
+
+    public int getOpenSessionCount() {
+        return sessions.size();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    private Session acquire(long sessionId) {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            throw new Tr34Exception("Unknown or expired session: " + sessionId);
+        }
+        return session;
+    }
+
+    private static void checkState(Session session, State expected) {
+        if (session.closed) {
+            throw new Tr34Exception("Session closed: " + session.id);
+        }
+        if (session.state != expected.ordinal()) {
+            throw new Tr34Exception("Session " + session.id + " in state " + STATES[session.state]
+                    + ", expected " + expected);
+        }
+    }
+
+    private void touch(Session session) {
+        synchronized (wheel) {
+            if (!session.closed) {
+                wheel.touch(session, clock.getAsLong());
+            }
+        }
+    }
+
+    private void close(Session session) {
+        synchronized (wheel) {
+            session.closed = true;
+            wheel.remove(session);
+        }
+        sessions.remove(session.id, session);
+    }
+
+    private void fail(Session session) {
+        if (!session.closed) {
+            close(session);
+            failed.incrementAndGet();
+        }
+    }
+
+    private static final class Session extends Tr34TimingWheel.Node {
+        final long id;
+        final byte operation;
+        volatile byte state;
+        volatile boolean closed;
+        List<X509Certificate> krdChain;
+        final Object payload;
+
+        Session(long id, Operation operation, State state, List<X509Certificate> krdChain, Object payload) {
+            this.id = id;
+            this.operation = (byte) operation.ordinal();
+            this.state = (byte) state.ordinal();
+            this.krdChain = krdChain;
+            this.payload = payload;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+/**
+ * State carried between the steps of one KRD session, for example from the KRD credential token
+ * to the random token to the issued key token, so any KDH node can resume the session. The ticket
+ * holds the KRD certificate whose chain was already validated, the KDH identity chosen for the
+ * session, a reference to the pending key and optionally the KRD random nonce.
+ * <p>
+ * A ticket is only trustworthy after {@link Tr34SessionTicketCodec#open(byte[])} authenticated it.
+ * Encoding:
+ * <pre>
+ * SessionTicket ::= SEQUENCE {
+ *      version            INTEGER { v1(1) },
+ *      issuedAt           GeneralizedTime,
+ *      expiresAt          GeneralizedTime,
+ *      krdCert            Certificate,
+ *      kdhIssuerAndSerial IssuerAndSerialNumber,
+ *      keyReference       UTF8String,
+ *      randomNonce        [0] OCTET STRING OPTIONAL
+ * }
+ * </pre>
+ */
+public final class Tr34SessionTicket extends Tr34Object {
+
+    public static final long VERSION_1 = 1;
+
+    private final ASN1Sequence rootNode;
+    private final Date issuedAt;
+    private final Date expiresAt;
+    private final X509Certificate krdCert;
+    private final IssuerAndSerialNumber kdhIssuerAndSerial;
+    private final String keyReference;
+    private final ASN1OctetString randomNonce;
+
+    /**
+     * Only for use on tickets authenticated by {@link Tr34SessionTicketCodec}.
+     */
+    static Tr34SessionTicket decode(Object encoded) {
+        return new Tr34SessionTicket((ASN1Sequence) Tr34CryptoUtils.decodeToAsn1(encoded));
+    }
+
+    static Tr34SessionTicket create(X509Certificate validatedKrdCert, IssuerAndSerialNumber kdhIssuerAndSerial,
+                                    String keyReference, ASN1OctetString randomNonce, Date issuedAt, Date expiresAt) {
+        try {
+            ASN1EncodableVector v = new ASN1EncodableVector();
+            v.add(new ASN1Integer(VERSION_1));
+            v.add(new ASN1GeneralizedTime(issuedAt));
+            v.add(new ASN1GeneralizedTime(expiresAt));
+            v.add(ASN1Primitive.fromByteArray(validatedKrdCert.getEncoded()));
+            v.add(kdhIssuerAndSerial);
+            v.add(new DERUTF8String(keyReference));
+            if (randomNonce != null) {
+                v.add(new DERTaggedObject(false, 0, randomNonce));
+            }
+            return new Tr34SessionTicket(new DERSequence(v));
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private Tr34SessionTicket(ASN1Sequence asn1) {
+        if (asn1.size() != 6 && asn1.size() != 7) {
+            throw new Tr34Exception("Invalid session ticket content");
+        }
+
+        try {
+            long version = ASN1Integer.getInstance(asn1.getObjectAt(0)).longValueExact();
+            if (version != VERSION_1) {
+                throw new Tr34Exception("Unsupported session ticket version: " + version);
+            }
+
+            issuedAt = ASN1GeneralizedTime.getInstance(asn1.getObjectAt(1)).getDate();
+            expiresAt = ASN1GeneralizedTime.getInstance(asn1.getObjectAt(2)).getDate();
+            krdCert = Tr34CryptoUtils.parseCert(asn1.getObjectAt(3).toASN1Primitive().getEncoded());
+            kdhIssuerAndSerial = IssuerAndSerialNumber.getInstance(asn1.getObjectAt(4));
+            keyReference = DERUTF8String.getInstance(asn1.getObjectAt(5)).getString();
+
+            if (asn1.size() == 7) {
+                randomNonce = ASN1OctetString.getInstance((ASN1TaggedObject) asn1.getObjectAt(6), false);
+                if (randomNonce.getOctetsLength() < 8 || randomNonce.getOctetsLength() > 16) {
+                    throw new Tr34Exception("Random nonce must be 8 to 16 octets");
+                }
+            } else {
+                randomNonce = null;
+            }
+        } catch (Tr34Exception e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+
+        rootNode = asn1;
+    }
+
+    /**
+     * Returns a copy of this ticket carrying the nonce of the KRD random token, for sessions where
+     * the random token arrives before the key is ready to be sent.
+     */
+    public Tr34SessionTicket withRandomToken(Tr34RandomToken randomToken) {
+        return create(krdCert, kdhIssuerAndSerial, keyReference, randomToken.getRandomNumber(), issuedAt, expiresAt);
+    }
+
+    public Date getIssuedAt() {
+        return new Date(issuedAt.getTime());
+    }
+
+    public Date getExpiresAt() {
+        return new Date(expiresAt.getTime());
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt.getTime();
+    }
+
+    /**
+     * KRD certificate whose chain was validated when the session started.
+     */
+    public X509Certificate getKrdCert() {
+        return krdCert;
+    }
+
+    public IssuerAndSerialNumber getKdhIssuerAndSerial() {
+        return kdhIssuerAndSerial;
+    }
+
+    public String getKeyReference() {
+        return keyReference;
+    }
+
+    /**
+     * Nonce of the KRD random token or null if not yet received.
+     */
+    public ASN1OctetString getRandomNonce() {
+        return randomNonce;
+    }
+
+    /**
+     * Rebuilds the KRD random token carried by the ticket.
+     */
+    public Tr34RandomToken getRandomToken() {
+        if (randomNonce == null) {
+            throw new Tr34Exception("No random token in session ticket");
+        }
+        return Tr34RandomToken.create(randomNonce.getOctets());
+    }
+
+    @Override
+    public ASN1Primitive toASN1Primitive() {
+        return rootNode;
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.clover.tr34;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Seals {@link Tr34SessionTicket} instances for transport through untrusted parties, typically the
+ * KRD itself, and authenticates them on return. Every KDH node sharing the same two keys can open
+ * tickets sealed by any other node, so no shared session store is needed.
+ * <p>
+ * Tickets are encrypted with AES-CBC and then authenticated with HMAC-SHA256 over the header, IV and
+ * ciphertext (encrypt-then-MAC). Layout:
+ * <pre>
+ * version(1) | keyId(1) | iv(16) | ciphertext | mac(32)
+ * </pre>
+ * The key id lets a node reject tickets sealed under a retired key without attempting decryption.
+ * IVs are drawn from {@link Tr34EntropyService#getDefault()}.
+ */
+public final class Tr34SessionTicketCodec {
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 2;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+
+    private final byte keyId;
+    private final SecretKey encryptionKey;
+    private final SecretKey macKey;
+
+    /**
+     * @param keyId Identifies the key pair, change it whenever the keys are rotated
+     * @param encryptionKey AES key
+     * @param macKey HMAC-SHA256 key, must differ from the encryption key
+     */
+    public Tr34SessionTicketCodec(int keyId, SecretKey encryptionKey, SecretKey macKey) {
+        if (!"AES".equals(encryptionKey.getAlgorithm())) {
+            throw new IllegalArgumentException("Encryption key must be AES");
+        }
+        if (Arrays.equals(encryptionKey.getEncoded(), macKey.getEncoded())) {
+            throw new IllegalArgumentException("Encryption and MAC keys must differ");
+        }
+        this.keyId = (byte) keyId;
+        this.encryptionKey = encryptionKey;
+        this.macKey = macKey;
+    }
+
+    public byte[] seal(Tr34SessionTicket ticket) {
+        try {
+            byte[] plaintext = ticket.getEncoded();
+
+            byte[] iv = Tr34EntropyService.getDefault().nextNonce(IV_LENGTH);
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            int ciphertextLength = cipher.getOutputSize(plaintext.length);
+
+            byte[] out = new byte[HEADER_LENGTH + IV_LENGTH + ciphertextLength + MAC_LENGTH];
+            out[0] = FORMAT_VERSION;
+            out[1] = keyId;
+            System.arraycopy(iv, 0, out, HEADER_LENGTH, IV_LENGTH);
+            int written = cipher.doFinal(plaintext, 0, plaintext.length, out, HEADER_LENGTH + IV_LENGTH);
+            if (written != ciphertextLength) {
+                throw new Tr34Exception("Unexpected ciphertext length");
+            }
+
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(out, 0, HEADER_LENGTH + IV_LENGTH + ciphertextLength);
+            mac.doFinal(out, HEADER_LENGTH + IV_LENGTH + ciphertextLength);
+            return out;
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Authenticates and decrypts a sealed ticket.
+     *
+     * @throws SecurityException If the ticket was not sealed with this codec's keys, was modified or
+     * has expired
+     */
+    public Tr34SessionTicket open(byte[] sealed) {
+        if (sealed.length < HEADER_LENGTH + IV_LENGTH + 16 + MAC_LENGTH) {
+            throw new SecurityException("Session ticket too short");
+        }
+        if (sealed[0] != FORMAT_VERSION || sealed[1] != keyId) {
+            throw new SecurityException("Unknown session ticket format or key");
+        }
+
+        int macOffset = sealed.length - MAC_LENGTH;
+        byte[] plaintext;
+
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(sealed, 0, macOffset);
+            byte[] expected = mac.doFinal();
+            if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(sealed, macOffset, sealed.length))) {
+                throw new SecurityException("Session ticket authentication failed");
+            }
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(sealed, HEADER_LENGTH, IV_LENGTH));
+            plaintext = cipher.doFinal(sealed, HEADER_LENGTH + IV_LENGTH, macOffset - HEADER_LENGTH - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("Session ticket decryption failed", e);
+        }
+
+        Tr34SessionTicket ticket = Tr34SessionTicket.decode(plaintext);
+        if (ticket.isExpired()) {
+            throw new SecurityException("Session ticket expired");
+        }
+        return ticket;
+    }
+
+}
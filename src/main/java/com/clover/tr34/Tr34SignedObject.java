@@ -34,13 +34,17 @@ import java.security.cert.X509Certificate;
 public abstract class Tr34SignedObject extends Tr34Object {
 
     protected static SignedData createUnsignedSignedData(byte[] data, X509Certificate cert) throws Exception {
-        ASN1Set innerCerts;
+        return createUnsignedSignedData(data, certificateSet(cert));
+    }
+
+    protected static ASN1Set certificateSet(X509Certificate cert) throws Exception {
         if (cert == null) {
-            innerCerts = new DLSet();
-        } else {
-            innerCerts = new DLSet(new ASN1Encodable[] { ASN1Primitive.fromByteArray(cert.getEncoded()) });
+            return new DLSet();
         }
+        return new DLSet(new ASN1Encodable[] { ASN1Primitive.fromByteArray(cert.getEncoded()) });
+    }
 
+    protected static SignedData createUnsignedSignedData(byte[] data, ASN1Set innerCerts) {
         ASN1OctetString dataOctetString = new DEROctetString(data);
         ContentInfo innerCi = new ContentInfo(CMSObjectIdentifiers.data, dataOctetString);
         ASN1Set emptySet = new DLSet(new ASN1Encodable[0]);
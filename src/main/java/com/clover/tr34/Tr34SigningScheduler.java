@@ -0,0 +1,273 @@
+package com.clover.tr34;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Admission control in front of a {@link Tr34TokenFactory}. Private key operations are the scarce
+ * resource so requests are queued per {@link Priority} and run on a fixed number of workers.
+ * <p>
+ * Classes share the workers by weighted fair queuing: each class advances a virtual pass by the
+ * inverse of its weight every time one of its requests runs and the non-empty class with the lowest
+ * pass runs next. A request whose deadline would pass before its private key operation completes,
+ * based on a moving average of recent execution times, is dropped instead of run. Each class queue
+ * is bounded and submissions beyond the bound are rejected immediately.
+ */
+public final class Tr34SigningScheduler implements AutoCloseable {
+
+    public enum Priority {
+        /**
+         * Device injections with a waiting terminal.
+         */
+        INTERACTIVE,
+        /**
+         * Campaigns such as fleet rebinds which can tolerate delay.
+         */
+        BULK
+    }
+
+    private static final long STRIDE = 1L << 20;
+
+    private final Tr34TokenFactory factory;
+    private final int queueCapacity;
+    private final Lane[] lanes;
+    private final Thread[] workerThreads;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private long virtualTime;
+    private boolean closed;
+
+    // Exponentially weighted moving average of task execution time, guarded by lock
+    private long avgExecNanos;
+
+    /**
+     * @param factory Factory handed to every task
+     * @param workers Number of concurrent private key operations
+     * @param queueCapacity Maximum number of waiting requests per priority class
+     * @param interactiveWeight Share of the workers given to interactive requests when both classes wait
+     * @param bulkWeight Share of the workers given to bulk requests when both classes wait
+     */
+    public Tr34SigningScheduler(Tr34TokenFactory factory, int workers, int queueCapacity,
+                                int interactiveWeight, int bulkWeight) {
+        if (workers <= 0 || queueCapacity <= 0 || interactiveWeight <= 0 || bulkWeight <= 0) {
+            throw new IllegalArgumentException("Scheduler parameters must be positive");
+        }
+
+        this.factory = factory;
+        this.queueCapacity = queueCapacity;
+        this.lanes = new Lane[Priority.values().length];
+        this.lanes[Priority.INTERACTIVE.ordinal()] = new Lane(STRIDE / interactiveWeight);
+        this.lanes[Priority.BULK.ordinal()] = new Lane(STRIDE / bulkWeight);
+
+        this.workerThreads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            Thread t = new Thread(this::workLoop, "tr34-signer-" + i);
+            t.setDaemon(true);
+            workerThreads[i] = t;
+            t.start();
+        }
+    }
+
+    /**
+     * Queues a request. The returned future completes with the task result, or exceptionally with a
+     * {@link Tr34Exception} if the deadline could not be met.
+     *
+     * @param deadlineMillis Absolute time in epoch milliseconds by which the task must complete
+     * @throws RejectedExecutionException If the queue for the priority class is full or the
+     * scheduler is closed
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, long deadlineMillis,
+                                           Function<Tr34TokenFactory, T> task) {
+        long deadlineNanos = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(deadlineMillis - System.currentTimeMillis());
+        Request<T> request = new Request<>(task, deadlineNanos);
+        Lane lane = lanes[priority.ordinal()];
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new RejectedExecutionException("Scheduler closed");
+            }
+            if (lane.queue.size() >= queueCapacity) {
+                lane.rejected++;
+                throw new RejectedExecutionException(priority + " queue full");
+            }
+            if (lane.queue.isEmpty()) {
+                // An idle class does not accumulate credit while idle
+                lane.pass = Math.max(lane.pass, virtualTime);
+            }
+            lane.queue.add(request);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return request.future;
+    }
+
+    private void workLoop() {
+        while (true) {
+            Request<?> request;
+            Lane lane;
+
+            lock.lock();
+            try {
+                while (true) {
+                    lane = nextLane();
+                    if (lane != null) {
+                        break;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    notEmpty.awaitUninterruptibly();
+                }
+
+                request = lane.queue.poll();
+                virtualTime = lane.pass;
+                lane.pass += lane.stride;
+
+                // Compared as a difference, nanoTime may wrap
+                if (request.deadlineNanos - System.nanoTime() < avgExecNanos) {
+                    lane.dropped++;
+                    request.future.completeExceptionally(new Tr34Exception("Deadline cannot be met"));
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            request.run(factory);
+            long elapsed = System.nanoTime() - start;
+
+            lock.lock();
+            try {
+                avgExecNanos = avgExecNanos == 0 ? elapsed : avgExecNanos + (elapsed - avgExecNanos) / 8;
+                lane.completed++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Lane nextLane() {
+        Lane best = null;
+        for (Lane lane : lanes) {
+            if (!lane.queue.isEmpty() && (best == null || lane.pass < best.pass)) {
+                best = lane;
+            }
+        }
+        return best;
+    }
+
+    public long getCompletedCount(Priority priority) {
+        lock.lock();
+        try {
+            return lanes[priority.ordinal()].completed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests dropped because their deadline could not be met.
+     */
+    public long getDroppedCount(Priority priority) {
+        lock.lock();
+        try {
+            return lanes[priority.ordinal()].dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests rejected because the queue was full.
+     */
+    public long getRejectedCount(Priority priority) {
+        lock.lock();
+        try {
+            return lanes[priority.ordinal()].rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth(Priority priority) {
+        lock.lock();
+        try {
+            return lanes[priority.ordinal()].queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting requests and waits until the already queued requests have run and the workers
+     * have stopped. Called from a task it does not wait for its own worker. If interrupted it returns
+     * early with the interrupt status set, the workers still stop once the queues are empty.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Thread worker : workerThreads) {
+            if (worker == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Lane {
+        final long stride;
+        final ArrayDeque<Request<?>> queue = new ArrayDeque<>();
+        long pass;
+        long completed;
+        long dropped;
+        long rejected;
+
+        Lane(long stride) {
+            this.stride = stride;
+        }
+    }
+
+    private static final class Request<T> {
+        final Function<Tr34TokenFactory, T> task;
+        final long deadlineNanos;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Request(Function<Tr34TokenFactory, T> task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        void run(Tr34TokenFactory factory) {
+            try {
+                future.complete(task.apply(factory));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+}
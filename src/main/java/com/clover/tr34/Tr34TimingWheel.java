@@ -0,0 +1,126 @@
+package com.clover.tr34;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for expiring idle entries without a timer per entry. Entries are linked into
+ * the slot of the tick at which they expire, touching an entry relinks it, and advancing the wheel
+ * visits only the slots whose ticks have passed. All operations are O(1) except advancing which is
+ * proportional to the number of elapsed ticks plus the number of expired entries.
+ * <p>
+ * The timeout must fit within one rotation of the wheel. Not thread safe, callers synchronize.
+ */
+final class Tr34TimingWheel<T extends Tr34TimingWheel.Node> {
+
+    /**
+     * Intrusive list links, extended by the entry type to avoid a wrapper object per entry.
+     */
+    static class Node {
+        Node prev;
+        Node next;
+        long expiryTick = -1;
+    }
+
+    private final long tickMillis;
+    private final long timeoutTicks;
+    private final Node[] slots;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis Resolution of expiry
+     * @param timeoutMillis Idle time after which an entry expires
+     * @param nowMillis Current time
+     */
+    Tr34TimingWheel(long tickMillis, long timeoutMillis, long nowMillis) {
+        if (tickMillis <= 0 || timeoutMillis < tickMillis) {
+            throw new IllegalArgumentException("Invalid tick or timeout");
+        }
+        this.tickMillis = tickMillis;
+        this.timeoutTicks = (timeoutMillis + tickMillis - 1) / tickMillis;
+
+        int slotCount = Integer.highestOneBit((int) Math.min(1 << 30, timeoutTicks + 1)) << 1;
+        this.slots = new Node[slotCount];
+        this.mask = slotCount - 1;
+        for (int i = 0; i < slotCount; i++) {
+            Node sentinel = new Node();
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            slots[i] = sentinel;
+        }
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Schedules or reschedules the entry to expire one timeout from now.
+     */
+    void touch(T entry, long nowMillis) {
+        if (entry.expiryTick >= 0) {
+            unlink(entry);
+        } else {
+            size++;
+        }
+
+        entry.expiryTick = Math.max(currentTick, nowMillis / tickMillis) + timeoutTicks;
+        Node sentinel = slots[(int) (entry.expiryTick & mask)];
+        entry.prev = sentinel.prev;
+        entry.next = sentinel;
+        sentinel.prev.next = entry;
+        sentinel.prev = entry;
+    }
+
+    void remove(T entry) {
+        if (entry.expiryTick >= 0) {
+            unlink(entry);
+            entry.expiryTick = -1;
+            size--;
+        }
+    }
+
+    private static void unlink(Node entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    /**
+     * Advances the wheel to the given time, removing and reporting every entry which expired.
+     *
+     * @return Number of expired entries
+     */
+    @SuppressWarnings("unchecked")
+    int advance(long nowMillis, Consumer<T> onExpired) {
+        long targetTick = nowMillis / tickMillis;
+        int expired = 0;
+
+        // Never visit a slot more than once per advance
+        long firstTick = Math.max(currentTick + 1, targetTick - mask);
+        for (long tick = firstTick; tick <= targetTick; tick++) {
+            Node sentinel = slots[(int) (tick & mask)];
+            Node n = sentinel.next;
+            while (n != sentinel) {
+                Node next = n.next;
+                if (n.expiryTick <= targetTick) {
+                    unlink(n);
+                    n.expiryTick = -1;
+                    size--;
+                    expired++;
+                    onExpired.accept((T) n);
+                }
+                n = next;
+            }
+        }
+
+        if (targetTick > currentTick) {
+            currentTick = targetTick;
+        }
+        return expired;
+    }
+
+    int size() {
+        return size;
+    }
+
+}
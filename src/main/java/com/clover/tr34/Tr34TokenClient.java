@@ -17,6 +17,7 @@ import java.security.PrivateKey;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.Date;
 
 /**
  * This class handles some operations necessary for the receiver of various TR-34 tokens.
@@ -38,6 +39,30 @@ public class Tr34TokenClient {
         cmsVerify(twoPassKeyToken, tr34KeyStoreData.getKdhCert());
     }
 
+    /**
+     * Verifies a one-pass key token. Since there is no KRD nonce the signing time must be within
+     * the allowed clock skew of the current time and, when provided, strictly later than the signing
+     * time of the last one-pass key token accepted by this KRD to prevent replay.
+     *
+     * @param lastAcceptedSigningTime Signing time of the previously accepted token or null if none
+     * @param maxClockSkewMillis Maximum allowed difference between the signing time and now
+     */
+    public void verifyOnePassKeyToken(Tr34OnePassKeyToken onePassKeyToken, Date lastAcceptedSigningTime,
+                                      long maxClockSkewMillis) throws Exception {
+        // The signing time is only trusted once the signature over it verifies
+        cmsVerify(onePassKeyToken, tr34KeyStoreData.getKdhCert());
+
+        Date signingTime = onePassKeyToken.getSigningTime();
+
+        if (Math.abs(System.currentTimeMillis() - signingTime.getTime()) > maxClockSkewMillis) {
+            throw new SecurityException("Signing time outside allowed window: " + signingTime);
+        }
+
+        if (lastAcceptedSigningTime != null && !signingTime.after(lastAcceptedSigningTime)) {
+            throw new SecurityException("Signing time not after last accepted token");
+        }
+    }
+
     public void verifyKdhUnbindToken(Tr34KdhUnbindToken unbindToken, Tr34RandomToken request, X509Certificate krdCert)
             throws Exception {
         if (!request.getRandomNumber().equals(unbindToken.getRandomNonce())) {
@@ -146,4 +171,9 @@ public class Tr34TokenClient {
         return decrypt(enveloped, recipientPrivateKey);
     }
 
+    public Tr34KeyBlock decrypt(Tr34OnePassKeyToken response, PrivateKey recipientPrivateKey) throws CMSException {
+        CMSEnvelopedData enveloped = new CMSEnvelopedData(new ContentInfo(PKCSObjectIdentifiers.envelopedData, response.getEnvelopedData()));
+        return decrypt(enveloped, recipientPrivateKey);
+    }
+
 }
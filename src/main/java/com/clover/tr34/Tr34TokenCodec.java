@@ -0,0 +1,337 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Decodes inbound TR-34 messages of unknown type. PEM input is dispatched on its label, DER input is
+ * classified by a single walk over its outer structure, see {@link Shape}, and then decoded once by
+ * the matching token class. Types are identified by their PEM labels, see {@link Tr34PEMGenerator}.
+ * <p>
+ * {@link #createDefault()} knows every token of this library. Further types are added with
+ * {@link #register(String, Predicate, Function)}, shapes are matched against types in registration
+ * order. Registration is not thread safe, decoding is.
+ */
+public final class Tr34TokenCodec {
+
+    private final Map<String, Registration> registrations = new LinkedHashMap<>();
+
+    private static final class Registration {
+        final Predicate<Shape> matcher;
+        final Function<Object, ? extends Tr34Object> decoder;
+
+        Registration(Predicate<Shape> matcher, Function<Object, ? extends Tr34Object> decoder) {
+            this.matcher = matcher;
+            this.decoder = decoder;
+        }
+    }
+
+    /**
+     * Outer structure of a DER encoded message as far as needed to tell token types apart: the
+     * ContentInfo or attribute type and, for CMS signed data, the encapsulated content type, the
+     * presence of certificates and CRLs, the number of signers and the first signer's signed
+     * attribute types.
+     */
+    public static final class Shape {
+        private ASN1ObjectIdentifier contentType;
+        private ASN1ObjectIdentifier encapsulatedContentType;
+        private boolean certificates;
+        private boolean crls;
+        private int signerCount;
+        private final Set<ASN1ObjectIdentifier> signedAttributeTypes = new HashSet<>();
+
+        /**
+         * The first element of the outer sequence, signedData for CMS tokens and randomNonce for the
+         * random token.
+         */
+        public ASN1ObjectIdentifier getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Null unless the content is CMS signed data.
+         */
+        public ASN1ObjectIdentifier getEncapsulatedContentType() {
+            return encapsulatedContentType;
+        }
+
+        public boolean hasCertificates() {
+            return certificates;
+        }
+
+        public boolean hasCrls() {
+            return crls;
+        }
+
+        public int getSignerCount() {
+            return signerCount;
+        }
+
+        public boolean hasSignedAttribute(ASN1ObjectIdentifier type) {
+            return signedAttributeTypes.contains(type);
+        }
+
+        public Set<ASN1ObjectIdentifier> getSignedAttributeTypes() {
+            return Collections.unmodifiableSet(signedAttributeTypes);
+        }
+
+        boolean isSigned(ASN1ObjectIdentifier encapsulated) {
+            return CMSObjectIdentifiers.signedData.equals(contentType) && signerCount > 0
+                    && encapsulated.equals(encapsulatedContentType);
+        }
+    }
+
+    /**
+     * A codec with no types registered.
+     */
+    public Tr34TokenCodec() {
+    }
+
+    /**
+     * A codec for every token type of this library.
+     */
+    public static Tr34TokenCodec createDefault() {
+        return new Tr34TokenCodec()
+                .register(Tr34PEMGenerator.TR34_RANDOM_TOKEN,
+                        s -> Tr34ObjectIdentifiers.randomNonce.equals(s.getContentType()),
+                        Tr34RandomToken::decode)
+                .register(Tr34PEMGenerator.TR34_KDH_CREDENTIAL_TOKEN,
+                        s -> CMSObjectIdentifiers.signedData.equals(s.getContentType()) && s.getSignerCount() == 0
+                                && s.hasCrls(),
+                        Tr34KdhCredentialToken::decode)
+                .register(Tr34PEMGenerator.TR34_KRD_CREDENTIAL_TOKEN,
+                        s -> CMSObjectIdentifiers.signedData.equals(s.getContentType()) && s.getSignerCount() == 0,
+                        Tr34KrdCredentialToken::decode)
+                .register(Tr34PEMGenerator.TR34_TWO_PASS_KEY_TOKEN,
+                        s -> s.isSigned(CMSObjectIdentifiers.envelopedData)
+                                && s.hasSignedAttribute(Tr34ObjectIdentifiers.randomNonce),
+                        Tr34TwoPassKeyToken::decode)
+                .register(Tr34PEMGenerator.TR34_ONE_PASS_KEY_TOKEN,
+                        s -> s.isSigned(CMSObjectIdentifiers.envelopedData),
+                        Tr34OnePassKeyToken::decode)
+                .register(Tr34PEMGenerator.TR34_KDH_REBIND_TOKEN,
+                        s -> s.isSigned(CMSObjectIdentifiers.signedData)
+                                && s.hasSignedAttribute(Tr34ObjectIdentifiers.randomNonce),
+                        Tr34KdhRebindToken::decode)
+                .register(Tr34PEMGenerator.TR34_CA_REBIND_TOKEN,
+                        s -> s.isSigned(CMSObjectIdentifiers.signedData),
+                        Tr34CaRebindToken::decode)
+                .register(Tr34PEMGenerator.TR34_KDH_UNBIND_TOKEN,
+                        s -> s.isSigned(CMSObjectIdentifiers.data)
+                                && s.hasSignedAttribute(Tr34ObjectIdentifiers.randomNonce),
+                        Tr34KdhUnbindToken::decode)
+                .register(Tr34PEMGenerator.TR34_CA_UNBIND_TOKEN,
+                        s -> s.isSigned(CMSObjectIdentifiers.data),
+                        Tr34CaUnbindToken::decode);
+    }
+
+    /**
+     * Adds a token type, replacing any type registered with the same label.
+     *
+     * @param pemLabel Identifies the type, PEM input with this label skips classification
+     * @param matcher Recognizes DER input of this type, tested after the types registered earlier
+     * @param decoder Accepts DER as byte[] or ByteBuffer
+     */
+    public Tr34TokenCodec register(String pemLabel, Predicate<Shape> matcher,
+                                   Function<Object, ? extends Tr34Object> decoder) {
+        registrations.remove(pemLabel);
+        registrations.put(pemLabel, new Registration(matcher, decoder));
+        return this;
+    }
+
+    public List<String> getRegisteredLabels() {
+        return new ArrayList<>(registrations.keySet());
+    }
+
+    /**
+     * Returns the label of the registered type for a PEM String, DER byte[] or ByteBuffer, without
+     * decoding it. A ByteBuffer's position is not changed.
+     *
+     * @throws Tr34Exception If no registered type matches
+     */
+    public String classify(Object encoded) {
+        if (encoded instanceof String) {
+            PemObject pem = readPem((String) encoded);
+            if (registrations.containsKey(pem.getType())) {
+                return pem.getType();
+            }
+            return classifyDer(ByteBuffer.wrap(pem.getContent()));
+        } else if (encoded instanceof byte[]) {
+            return classifyDer(ByteBuffer.wrap((byte[]) encoded));
+        } else if (encoded instanceof ByteBuffer) {
+            return classifyDer((ByteBuffer) encoded);
+        }
+        throw new Tr34Exception("Unsupported encoding: " + (encoded == null ? null : encoded.getClass()));
+    }
+
+    /**
+     * Classifies and decodes a PEM String, DER byte[] or ByteBuffer. A ByteBuffer is advanced past the
+     * token.
+     *
+     * @throws Tr34Exception If no registered type matches or the token is malformed
+     */
+    public Tr34Object decode(Object encoded) {
+        if (encoded instanceof String) {
+            PemObject pem = readPem((String) encoded);
+            return decodeLabeled(pem.getType(), pem.getContent());
+        }
+        return registrations.get(classify(encoded)).decoder.apply(encoded);
+    }
+
+    /**
+     * Decodes the DER contents of a PEM object whose label was already read, e.g. by
+     * {@link Tr34PemStreamReader}. Unknown labels fall back to classifying the contents.
+     *
+     * @param der DER as byte[] or ByteBuffer, a ByteBuffer is advanced past the token
+     */
+    public Tr34Object decodeLabeled(String pemLabel, Object der) {
+        Registration registration = registrations.get(pemLabel);
+        if (registration == null) {
+            registration = registrations.get(classify(der));
+        }
+        return registration.decoder.apply(der);
+    }
+
+    /**
+     * Same as {@link #decode(Object)} but fails unless the token is of the expected class.
+     */
+    public <T extends Tr34Object> T decode(Object encoded, Class<T> expected) {
+        Tr34Object token = decode(encoded);
+        if (!expected.isInstance(token)) {
+            throw new Tr34Exception("Expected " + expected.getSimpleName() + " but got "
+                    + token.getClass().getSimpleName());
+        }
+        return expected.cast(token);
+    }
+
+    private static PemObject readPem(String pem) {
+        try (PemReader reader = new PemReader(new StringReader(pem))) {
+            PemObject object = reader.readPemObject();
+            if (object == null) {
+                throw new Tr34Exception("No PEM object found");
+            }
+            return object;
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private String classifyDer(ByteBuffer buffer) {
+        Shape shape;
+        try {
+            shape = new ShapeReader(buffer).read();
+        } catch (Tr34Exception e) {
+            throw new Tr34Exception("Unrecognized TR-34 message: " + e.getMessage(), e);
+        }
+
+        for (Map.Entry<String, Registration> entry : registrations.entrySet()) {
+            if (entry.getValue().matcher.test(shape)) {
+                return entry.getKey();
+            }
+        }
+        throw new Tr34Exception("Unrecognized TR-34 message, content type " + shape.getContentType());
+    }
+
+    /**
+     * Walks the outer DER structure, each element bounded by its enclosing one, only OIDs are
+     * materialized.
+     */
+    private static final class ShapeReader {
+        private final Tr34DerWalker der = new Tr34DerWalker();
+        private final int start;
+        private final int limit;
+
+        ShapeReader(ByteBuffer buffer) {
+            der.reset(buffer);
+            start = buffer.position();
+            limit = buffer.limit();
+        }
+
+        Shape read() {
+            Shape shape = new Shape();
+            int content = der.header(start, limit, Tr34DerWalker.TAG_SEQUENCE);
+            int end = content + der.length();
+
+            shape.contentType = oid(content, end);
+            int pos = der.skip(content, end, Tr34DerWalker.TAG_OID);
+            if (!CMSObjectIdentifiers.signedData.equals(shape.contentType) || pos >= end) {
+                return shape;
+            }
+
+            // SignedData: version, digest algorithms, encapsulated content
+            int explicit = der.header(pos, end, Tr34DerWalker.TAG_CONTEXT_0);
+            int signedData = der.header(explicit, explicit + der.length(), Tr34DerWalker.TAG_SEQUENCE);
+            int signedDataEnd = signedData + der.length();
+            pos = der.skip(signedData, signedDataEnd, Tr34DerWalker.TAG_INTEGER);
+            pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_SET);
+            int encapsulated = der.header(pos, signedDataEnd, Tr34DerWalker.TAG_SEQUENCE);
+            pos = encapsulated + der.length();
+            shape.encapsulatedContentType = oid(encapsulated, pos);
+
+            if (der.tagAt(pos, signedDataEnd) == Tr34DerWalker.TAG_CONTEXT_0) {
+                pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_CONTEXT_0);
+                shape.certificates = der.length() > 0;
+            }
+            if (der.tagAt(pos, signedDataEnd) == Tr34DerWalker.TAG_CONTEXT_1) {
+                pos = der.skip(pos, signedDataEnd, Tr34DerWalker.TAG_CONTEXT_1);
+                shape.crls = der.length() > 0;
+            }
+
+            int signerInfos = der.header(pos, signedDataEnd, Tr34DerWalker.TAG_SET);
+            int signerInfosEnd = signerInfos + der.length();
+            for (int signer = signerInfos; signer < signerInfosEnd;
+                 signer = der.skip(signer, signerInfosEnd, Tr34DerWalker.TAG_SEQUENCE)) {
+                if (shape.signerCount++ == 0) {
+                    readSignedAttributeTypes(signer, signerInfosEnd, shape);
+                }
+            }
+            return shape;
+        }
+
+        private void readSignedAttributeTypes(int signer, int limit, Shape shape) {
+            int pos = der.header(signer, limit, Tr34DerWalker.TAG_SEQUENCE);
+            int end = pos + der.length();
+            pos = der.skip(pos, end, Tr34DerWalker.TAG_INTEGER);
+            // Signer identifier, IssuerAndSerialNumber or [0] SubjectKeyIdentifier
+            pos = der.skipAny(pos, end);
+            pos = der.skip(pos, end, Tr34DerWalker.TAG_SEQUENCE);
+            if (der.tagAt(pos, end) != Tr34DerWalker.TAG_CONTEXT_0) {
+                return;
+            }
+
+            int attributes = der.header(pos, end, Tr34DerWalker.TAG_CONTEXT_0);
+            int attributesEnd = attributes + der.length();
+            for (int attribute = attributes; attribute < attributesEnd;
+                 attribute = der.skip(attribute, attributesEnd, Tr34DerWalker.TAG_SEQUENCE)) {
+                int type = der.header(attribute, attributesEnd, Tr34DerWalker.TAG_SEQUENCE);
+                shape.signedAttributeTypes.add(oid(type, type + der.length()));
+            }
+        }
+
+        private ASN1ObjectIdentifier oid(int pos, int limit) {
+            byte[] encoded = der.copyElement(pos, limit, Tr34DerWalker.TAG_OID);
+            try {
+                return (ASN1ObjectIdentifier) ASN1Primitive.fromByteArray(encoded);
+            } catch (IOException e) {
+                throw new Tr34Exception(e);
+            }
+        }
+    }
+
+}
@@ -1,9 +1,26 @@
 package com.clover.tr34;
 
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
 import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Function;
 
 
 /**
@@ -13,28 +30,201 @@ import java.util.List;
 public final class Tr34TokenFactory {
 
     private final Tr34KeyStoreData tr34KeyStoreData;
+    private Tr34ResponseCache responseCache;
+    private Tr34ChainCache chainCache;
+    private Tr34BindingRegistry bindingRegistry;
+    private Tr34AuditJournal auditJournal;
+    private Tr34EntropyService entropyService;
+    private Tr34RecipientCache recipientCache;
+    private volatile Tr34TwoPassKeyTokenTemplate twoPassKeyTokenTemplate;
 
     public Tr34TokenFactory(Tr34KeyStoreData keyStoreData) {
         this.tr34KeyStoreData = keyStoreData;
     }
 
+    /**
+     * Enables reuse of previously issued key tokens for retried requests, see
+     * {@link #generateTwoPassKeyToken(Tr34RandomToken, List, byte[], String)}.
+     */
+    public Tr34TokenFactory withResponseCache(Tr34ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
+
+    /**
+     * Skips validation of KRD chains which already validated. The cache must be for the same root
+     * certificate as the key store data.
+     */
+    public Tr34TokenFactory withChainCache(Tr34ChainCache chainCache) {
+        if (chainCache != null && !chainCache.getRootCert().equals(tr34KeyStoreData.getRootCert())) {
+            throw new IllegalArgumentException("Chain cache root mismatch");
+        }
+        this.chainCache = chainCache;
+        return this;
+    }
+
+    /**
+     * Refuses key, KDH rebind and KDH unbind tokens for KRDs which the registry does not record as
+     * bound to this factory's KDH. The registry is not updated by the factory, the caller records a
+     * binding change once the KRD confirmed it.
+     */
+    public Tr34TokenFactory withBindingRegistry(Tr34BindingRegistry bindingRegistry) {
+        this.bindingRegistry = bindingRegistry;
+        return this;
+    }
+
+    /**
+     * Records every issued token in the journal. Generation methods return only after the record is
+     * durable, concurrent callers share one disk flush through the journal's group commit.
+     */
+    public Tr34TokenFactory withAuditJournal(Tr34AuditJournal auditJournal) {
+        this.auditJournal = auditJournal;
+        return this;
+    }
+
+    /**
+     * Entropy for {@link #generateSymmetricKey(int)}, defaults to {@link Tr34EntropyService#getDefault()}.
+     */
+    public Tr34TokenFactory withEntropyService(Tr34EntropyService entropyService) {
+        this.entropyService = entropyService;
+        return this;
+    }
+
+    /**
+     * Reuses prepared envelope recipients for KRDs which received a key token before.
+     */
+    public Tr34TokenFactory withRecipientCache(Tr34RecipientCache recipientCache) {
+        this.recipientCache = recipientCache;
+        return this;
+    }
+
+    public Tr34KeyStoreData getKeyStoreData() {
+        return tr34KeyStoreData;
+    }
+
+    /**
+     * Generates a random key suitable for {@link #generateTwoPassKeyToken(Tr34RandomToken, List, Tr34KeyMaterial)},
+     * 16 bytes for AES or 24 bytes for TDES. TDES keys get odd parity in every byte. The caller
+     * closes the key once it is no longer needed.
+     * <p>
+     * The same HSM caveats as for the key token methods apply, production keys come from an HSM.
+     */
+    public Tr34KeyMaterial generateSymmetricKey(int length) {
+        // Validates the length
+        keyBlockHeader(length);
+
+        Tr34EntropyService entropy = entropyService != null ? entropyService : Tr34EntropyService.getDefault();
+        Tr34KeyMaterial key = entropy.generateKey(length);
+        if (length == 24) {
+            ByteBuffer bytes = key.buffer();
+            for (int i = 0; i < length; i++) {
+                int b = bytes.get(i) & 0xfe;
+                bytes.put(i, (byte) (b | (Integer.bitCount(b) & 1 ^ 1)));
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Issues a new KDH certificate signed by the KDH CA of the key store, for use with
+     * {@link #generateKdhRebindToken} or {@link #generateCaRebindToken}. The key pair is taken from
+     * the pool and the certificate has the same profile as the sample KDH certificates: digital
+     * signature key usage, no CA, and the KDH CA's key identifier.
+     * <p>
+     * The same HSM caveats as for the key token methods apply, production KDH keys are generated
+     * and kept in an HSM.
+     *
+     * @return The certificate and its private key
+     */
+    public Tr34ScdKeyStoreData issueKdhCertificate(X500Name subject, Date notAfter, Tr34KeyPairPool keyPairPool) {
+        Tr34ScdKeyStoreData ca = tr34KeyStoreData.getKdhCaKeyStoreData();
+        KeyPair keyPair = keyPairPool.take();
+
+        Tr34EntropyService entropy = entropyService != null ? entropyService : Tr34EntropyService.getDefault();
+        byte[] serial = new byte[16];
+        entropy.nextBytes(serial);
+
+        X509Certificate cert;
+        try {
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                    X500Name.getInstance(ca.cert.getSubjectX500Principal().getEncoded()),
+                    new BigInteger(1, serial), Tr34CryptoUtils.createHoursFromNowDate(-1), notAfter,
+                    subject, keyPair.getPublic())
+                    .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature))
+                    .addExtension(Extension.basicConstraints, true, new BasicConstraints(false))
+                    .addExtension(Extension.authorityKeyIdentifier, false,
+                            extensionUtils.createAuthorityKeyIdentifier(ca.cert.getPublicKey()));
+            ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA")
+                    .setProvider(Tr34Provider.PROVIDER).build(ca.privateKey);
+            cert = Tr34CryptoUtils.parseCert(builder.build(signer).getEncoded());
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+
+        Tr34KeyStoreData.verifyCertKeyMatch(cert, keyPair.getPrivate());
+        return new Tr34ScdKeyStoreData(cert, keyPair.getPrivate());
+    }
+
+    void checkBinding(X509Certificate krdCert) {
+        if (bindingRegistry != null) {
+            bindingRegistry.checkBound(krdCert, tr34KeyStoreData.getKdhCert());
+        }
+    }
+
+    private <T extends Tr34Object> T audit(Tr34AuditJournal.TokenType type, T token, X509Certificate krdCert,
+                                           X509Certificate kdhCert, String keyHeader) {
+        if (auditJournal != null) {
+            auditJournal.appendAndWait(Tr34AuditJournal.Record.create(type, token, krdCert, kdhCert, keyHeader));
+        }
+        return token;
+    }
+
+    void verifyKrdChain(List<X509Certificate> krdChain) {
+        if (chainCache != null) {
+            chainCache.verify(krdChain);
+        } else {
+            Tr34CryptoUtils.verifyCertificateChain(krdChain, tr34KeyStoreData.getRootCert());
+        }
+    }
+
     /**
      * Generates a KDH Credential Token for binding a KRD to a KDH or updating the CRL for a bound KRD.
      */
     public Tr34KdhCredentialToken generateKdhCredentialToken(List<Tr34KdhRevocation> revocationList,
                                                              Date crlNextUpdate) {
-        X509CRL crl = Tr34CryptoUtils.createCRL(tr34KeyStoreData.getKdhCaKeyStoreData().privateKey,
-                tr34KeyStoreData.getKdhCaKeyStoreData().cert, revocationList, crlNextUpdate);
-        return Tr34KdhCredentialToken.create(tr34KeyStoreData.getKdhCert(), crl);
+        Tr34ScdKeyStoreData kdhCa = tr34KeyStoreData.getKdhCaKeyStoreData();
+        return generateKdhCredentialToken(
+                Tr34CryptoUtils.createCRL(kdhCa.privateKey, kdhCa.cert, revocationList, crlNextUpdate));
+    }
+
+    /**
+     * Generates a KDH Credential Token carrying a CRL signed earlier by the KDH CA.
+     */
+    Tr34KdhCredentialToken generateKdhCredentialToken(X509CRL crl) {
+        return audit(Tr34AuditJournal.TokenType.KDH_CREDENTIAL,
+                Tr34KdhCredentialToken.create(tr34KeyStoreData.getKdhCert(), crl),
+                null, tr34KeyStoreData.getKdhCert(), null);
     }
 
     /**
      * Generates a KDH Unbind Token.
      */
     public Tr34KdhUnbindToken generateKdhUnbindToken(Tr34RandomToken randomToken, List<X509Certificate> krdChain) {
-        Tr34CryptoUtils.verifyCertificateChain(krdChain, tr34KeyStoreData.getRootCert());
+        verifyKrdChain(krdChain);
+        checkBinding(krdChain.get(0));
 
-        return Tr34KdhUnbindToken.create(randomToken, krdChain.get(0), tr34KeyStoreData.getKdhKeyStoreData());
+        return createKdhUnbindToken(randomToken, krdChain.get(0));
+    }
+
+    /**
+     * Same as {@link #generateKdhUnbindToken} for a KRD certificate whose chain and binding were
+     * already checked.
+     */
+    Tr34KdhUnbindToken createKdhUnbindToken(Tr34RandomToken randomToken, X509Certificate krdCert) {
+        return audit(Tr34AuditJournal.TokenType.KDH_UNBIND,
+                Tr34KdhUnbindToken.create(randomToken, krdCert, tr34KeyStoreData.getKdhKeyStoreData()),
+                krdCert, tr34KeyStoreData.getKdhCert(), null);
     }
 
     /**
@@ -42,19 +232,36 @@ public final class Tr34TokenFactory {
      */
     public Tr34KdhRebindToken generateKdhRebindToken(Tr34RandomToken randomToken, List<X509Certificate> krdChain,
                                                      X509Certificate newKdhCert) {
-        Tr34CryptoUtils.verifyCertificateChain(krdChain, tr34KeyStoreData.getRootCert());
+        verifyKrdChain(krdChain);
+        checkBinding(krdChain.get(0));
+
+        return createKdhRebindToken(randomToken, krdChain.get(0), newKdhCert);
+    }
 
-        return Tr34KdhRebindToken.create(randomToken, krdChain.get(0), newKdhCert,
-                tr34KeyStoreData.getKdhKeyStoreData());
+    /**
+     * Same as {@link #generateKdhRebindToken} for a KRD certificate whose chain and binding were
+     * already checked.
+     */
+    Tr34KdhRebindToken createKdhRebindToken(Tr34RandomToken randomToken, X509Certificate krdCert,
+                                            X509Certificate newKdhCert) {
+        return audit(Tr34AuditJournal.TokenType.KDH_REBIND,
+                Tr34KdhRebindToken.create(randomToken, krdCert, newKdhCert, tr34KeyStoreData.getKdhKeyStoreData()),
+                krdCert, newKdhCert, null);
     }
 
     /**
      * Generates a Higher Level Authority Unbind Token.
      */
     public Tr34CaUnbindToken generateCaUnbindToken(List<X509Certificate> krdChain, X509Certificate currentKdhCert) {
-        Tr34CryptoUtils.verifyCertificateChain(krdChain, tr34KeyStoreData.getRootCert());
+        return generateCaUnbindToken(krdChain, new Tr34CaUnbindToken.Prepared(currentKdhCert));
+    }
+
+    Tr34CaUnbindToken generateCaUnbindToken(List<X509Certificate> krdChain, Tr34CaUnbindToken.Prepared prepared) {
+        verifyKrdChain(krdChain);
 
-        return Tr34CaUnbindToken.create(krdChain.get(0), currentKdhCert, tr34KeyStoreData.getKrdCaKeyStoreData());
+        return audit(Tr34AuditJournal.TokenType.CA_UNBIND,
+                Tr34CaUnbindToken.create(krdChain.get(0), prepared, tr34KeyStoreData.getKrdCaKeyStoreData()),
+                krdChain.get(0), prepared.kdhCert, null);
     }
 
     /**
@@ -62,10 +269,15 @@ public final class Tr34TokenFactory {
      */
     public Tr34CaRebindToken generateCaRebindToken(List<X509Certificate> krdChain, X509Certificate currentKdhCert,
                                                    X509Certificate newKdhCert) {
-        Tr34CryptoUtils.verifyCertificateChain(krdChain, tr34KeyStoreData.getRootCert());
+        return generateCaRebindToken(krdChain, new Tr34CaRebindToken.Prepared(currentKdhCert, newKdhCert));
+    }
 
-        return Tr34CaRebindToken.create(krdChain.get(0), currentKdhCert, newKdhCert,
-                tr34KeyStoreData.getKrdCaKeyStoreData());
+    Tr34CaRebindToken generateCaRebindToken(List<X509Certificate> krdChain, Tr34CaRebindToken.Prepared prepared) {
+        verifyKrdChain(krdChain);
+
+        return audit(Tr34AuditJournal.TokenType.CA_REBIND,
+                Tr34CaRebindToken.create(krdChain.get(0), prepared, tr34KeyStoreData.getKrdCaKeyStoreData()),
+                krdChain.get(0), prepared.newKdhCert, null);
     }
 
     /**
@@ -79,25 +291,295 @@ public final class Tr34TokenFactory {
      */
     public Tr34TwoPassKeyToken generateTwoPassKeyToken(Tr34RandomToken randomToken, List<X509Certificate> krdChain,
                                                        byte[] symmetricKey) {
-        Tr34CryptoUtils.verifyCertificateChain(krdChain, tr34KeyStoreData.getRootCert());
+        try (Tr34KeyMaterial key = Tr34KeyMaterial.copyOf(symmetricKey)) {
+            return generateTwoPassKeyToken(randomToken, krdChain, key);
+        }
+    }
+
+    /**
+     * Same as {@link #generateTwoPassKeyToken(Tr34RandomToken, List, byte[])} with the key kept off
+     * the heap. The key is not closed, the caller closes it once it is no longer needed.
+     */
+    public Tr34TwoPassKeyToken generateTwoPassKeyToken(Tr34RandomToken randomToken, List<X509Certificate> krdChain,
+                                                       Tr34KeyMaterial symmetricKey) {
+        verifyKrdChain(krdChain);
+        checkBinding(krdChain.get(0));
+
+        return createTwoPassKeyToken(randomToken, krdChain.get(0), symmetricKey);
+    }
+
+    Tr34TwoPassKeyToken createTwoPassKeyToken(Tr34RandomToken randomToken, X509Certificate krdCert,
+                                              byte[] symmetricKey) {
+        try (Tr34KeyMaterial key = Tr34KeyMaterial.copyOf(symmetricKey)) {
+            return createTwoPassKeyToken(randomToken, krdCert, key);
+        }
+    }
 
-        String header;
-        if (symmetricKey.length == 16) {
-            header = Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk();
-        } else if (symmetricKey.length == 24) {
-            header = Tr34KeyBlockHeaderFactory.createHeaderForTdesTr31Kbk();
+    Tr34TwoPassKeyToken createTwoPassKeyToken(Tr34RandomToken randomToken, X509Certificate krdCert,
+                                              Tr34KeyMaterial symmetricKey) {
+        String header = keyBlockHeader(symmetricKey.getLength());
+        Tr34TwoPassKeyToken token = issueTwoPassKeyToken(randomToken, krdCert, symmetricKey, header);
+        return audit(Tr34AuditJournal.TokenType.TWO_PASS_KEY, token, krdCert, tr34KeyStoreData.getKdhCert(), header);
+    }
+
+    /**
+     * Encrypts and signs without auditing, the caller audits the token it hands out.
+     */
+    private Tr34TwoPassKeyToken issueTwoPassKeyToken(Tr34RandomToken randomToken, X509Certificate krdCert,
+                                                     Tr34KeyMaterial symmetricKey, String header) {
+        Tr34TwoPassKeyTokenTemplate template = twoPassKeyTokenTemplate();
+
+        // Generate a response
+        Tr34TwoPassKeyToken token;
+        try (Tr34KeyMaterial keyBlock = template.encodeKeyBlock(header, symmetricKey)) {
+            byte[] envelope = recipient(krdCert).encrypt(keyBlock);
+            token = Tr34TwoPassKeyToken.wrapEncoded(template.encode(new Date(), randomToken, header, envelope));
+        } catch (Tr34Exception e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+        return token;
+    }
+
+    /**
+     * Wire level variant of {@link #generateTwoPassKeyToken(Tr34RandomToken, List, Tr34KeyMaterial)}
+     * for gateways that receive and send DER. Reads the KRD random token and KRD credential token at
+     * the positions of the inbound buffers, advancing them, and writes the DER encoded two-pass key
+     * token at the position of the out buffer. The KRD chain is the credential token's certificate
+     * and the key store's KRD CA certificate.
+     * <p>
+     * The inbound tokens are read with a {@link Tr34DerReader} and the KRD certificate is interned in
+     * {@link Tr34CertificateCache#getDefault()}, no ASN.1 object trees are built for the request or the
+     * response. The same key and HSM caveats as for the other key token methods apply.
+     *
+     * @throws BufferOverflowException If the token does not fit, nothing is written
+     * @return Number of bytes written
+     */
+    public int generateTwoPassKeyToken(ByteBuffer randomToken, ByteBuffer krdCredentialToken,
+                                       Tr34KeyMaterial symmetricKey, ByteBuffer out) {
+        Tr34DerReader reader = new Tr34DerReader();
+        ByteBuffer nonce = reader.readRandomToken(randomToken).getNonce();
+        Tr34CertificateCache.Interned krdCert = readVerifiedKrdCert(reader, krdCredentialToken);
+        return encodeTwoPassKeyToken(nonce, krdCert, symmetricKey, out);
+    }
+
+    /**
+     * Same as {@link #generateTwoPassKeyToken(ByteBuffer, ByteBuffer, Tr34KeyMaterial, ByteBuffer)}
+     * with the key selected for the KRD once its chain and binding are verified. The key is closed.
+     */
+    int generateTwoPassKeyToken(ByteBuffer randomToken, ByteBuffer krdCredentialToken,
+                                Function<X509Certificate, Tr34KeyMaterial> keySupplier, ByteBuffer out) {
+        Tr34DerReader reader = new Tr34DerReader();
+        ByteBuffer nonce = reader.readRandomToken(randomToken).getNonce();
+        Tr34CertificateCache.Interned krdCert = readVerifiedKrdCert(reader, krdCredentialToken);
+        try (Tr34KeyMaterial symmetricKey = keySupplier.apply(krdCert.getCertificate())) {
+            return encodeTwoPassKeyToken(nonce, krdCert, symmetricKey, out);
+        }
+    }
+
+    private Tr34CertificateCache.Interned readVerifiedKrdCert(Tr34DerReader reader, ByteBuffer krdCredentialToken) {
+        reader.readKrdCredentialToken(krdCredentialToken);
+        byte[] krdCertDer = new byte[reader.getCertificateLength()];
+        reader.getCertificate().get(krdCertDer);
+        Tr34CertificateCache.Interned interned = Tr34CertificateCache.getDefault().intern(krdCertDer);
+
+        X509Certificate krdCert = interned.getCertificate();
+        verifyKrdChain(Arrays.asList(krdCert, tr34KeyStoreData.getKrdCaCert()));
+        checkBinding(krdCert);
+        return interned;
+    }
+
+    private int encodeTwoPassKeyToken(ByteBuffer nonce, Tr34CertificateCache.Interned krdCert,
+                                      Tr34KeyMaterial symmetricKey, ByteBuffer out) {
+        String header = keyBlockHeader(symmetricKey.getLength());
+        Tr34TwoPassKeyTokenTemplate template = twoPassKeyTokenTemplate();
+        int start = out.position();
+        int length;
+        try (Tr34KeyMaterial keyBlock = template.encodeKeyBlock(header, symmetricKey)) {
+            byte[] envelope = recipient(krdCert).encrypt(keyBlock);
+            length = template.encodeTo(out, new Date(), nonce, header, envelope);
+        } catch (Tr34Exception | BufferOverflowException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+
+        if (auditJournal != null) {
+            ByteBuffer token = out.duplicate();
+            token.limit(start + length).position(start);
+            auditJournal.appendAndWait(Tr34AuditJournal.Record.create(Tr34AuditJournal.TokenType.TWO_PASS_KEY,
+                    token, krdCert.getCertificate(), tr34KeyStoreData.getKdhCert(), header));
+        }
+        return length;
+    }
+
+    private Tr34RecipientContext recipient(X509Certificate krdCert) {
+        return recipientCache != null ? recipientCache.get(krdCert) : new Tr34RecipientContext(krdCert);
+    }
+
+    private Tr34RecipientContext recipient(Tr34CertificateCache.Interned krdCert) {
+        return recipientCache != null ? recipientCache.get(krdCert)
+                : new Tr34RecipientContext(krdCert.getCertificate());
+    }
+
+    private Tr34TwoPassKeyTokenTemplate twoPassKeyTokenTemplate() {
+        Tr34TwoPassKeyTokenTemplate template = twoPassKeyTokenTemplate;
+        if (template == null) {
+            // Racing threads may each build one, they are equivalent
+            template = new Tr34TwoPassKeyTokenTemplate(tr34KeyStoreData.getKdhKeyStoreData());
+            twoPassKeyTokenTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * Generates a one-pass key token for the KRD corresponding to the KRD cert parameter. Unlike the
+     * two-pass key token no KRD random token is needed, the token carries a signing time which the
+     * KRD uses to check freshness, see {@link Tr34TokenClient#verifyOnePassKeyToken}. The signing time
+     * has one second resolution so tokens for the same KRD must be issued at least a second apart.
+     * <p>
+     * The same key and HSM caveats as {@link #generateTwoPassKeyToken(Tr34RandomToken, List, byte[])}
+     * apply.
+     */
+    public Tr34OnePassKeyToken generateOnePassKeyToken(List<X509Certificate> krdChain, byte[] symmetricKey) {
+        try (Tr34KeyMaterial key = Tr34KeyMaterial.copyOf(symmetricKey)) {
+            return generateOnePassKeyToken(krdChain, key);
+        }
+    }
+
+    /**
+     * Same as {@link #generateOnePassKeyToken(List, byte[])} with the key kept off the heap. The key is
+     * not closed, the caller closes it once it is no longer needed.
+     */
+    public Tr34OnePassKeyToken generateOnePassKeyToken(List<X509Certificate> krdChain, Tr34KeyMaterial symmetricKey) {
+        verifyKrdChain(krdChain);
+        checkBinding(krdChain.get(0));
+        return createOnePassKeyToken(krdChain, symmetricKey);
+    }
+
+    /**
+     * Same as {@link #generateOnePassKeyToken(List, Tr34KeyMaterial)} with the key selected for the
+     * KRD once its chain and binding are verified. The key is closed.
+     */
+    Tr34OnePassKeyToken generateOnePassKeyToken(List<X509Certificate> krdChain,
+                                                Function<X509Certificate, Tr34KeyMaterial> keySupplier) {
+        verifyKrdChain(krdChain);
+        checkBinding(krdChain.get(0));
+        try (Tr34KeyMaterial symmetricKey = keySupplier.apply(krdChain.get(0))) {
+            return createOnePassKeyToken(krdChain, symmetricKey);
+        }
+    }
+
+    private Tr34OnePassKeyToken createOnePassKeyToken(List<X509Certificate> krdChain, Tr34KeyMaterial symmetricKey) {
+        String header = keyBlockHeader(symmetricKey.getLength());
+        Tr34OnePassKeyToken token;
+        try (Tr34KeyMaterial keyBlock = twoPassKeyTokenTemplate().encodeKeyBlock(header, symmetricKey)) {
+            byte[] envelope = recipient(krdChain.get(0)).encrypt(keyBlock);
+            token = Tr34OnePassKeyToken.create(new Date(), Tr34KeyBlock.createFullKeyHeader(header), envelope,
+                    tr34KeyStoreData.getKdhKeyStoreData());
+        } catch (Tr34Exception e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+
+        return audit(Tr34AuditJournal.TokenType.ONE_PASS_KEY, token, krdChain.get(0), tr34KeyStoreData.getKdhCert(),
+                header);
+    }
+
+    private static String keyBlockHeader(int keyLength) {
+        if (keyLength == 16) {
+            return Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk();
+        } else if (keyLength == 24) {
+            return Tr34KeyBlockHeaderFactory.createHeaderForTdesTr31Kbk();
         } else {
             throw new Tr34Exception("Only 128 bit AES or 192 TDES keys are supported");
         }
+    }
+
+    /**
+     * Same as {@link #generateTwoPassKeyToken(Tr34RandomToken, List, byte[])} but when a response
+     * cache is configured a retried request with the same KRD, random nonce and key identifier
+     * receives the exact token issued the first time, skipping encryption and signing. Concurrent
+     * requests for the same key wait for a single token to be issued and audited.
+     *
+     * @param keyId Uniquely identifies the symmetric key, never the key value itself
+     */
+    public Tr34TwoPassKeyToken generateTwoPassKeyToken(Tr34RandomToken randomToken, List<X509Certificate> krdChain,
+                                                       byte[] symmetricKey, String keyId) {
+        if (responseCache == null) {
+            return generateTwoPassKeyToken(randomToken, krdChain, symmetricKey);
+        }
 
-        X509Certificate kdhCert = tr34KeyStoreData.getKdhCert();
+        verifyKrdChain(krdChain);
+        checkBinding(krdChain.get(0));
 
-        // Create the key block
-        Tr34KeyBlock keyBlock = Tr34KeyBlock.create(header, symmetricKey, kdhCert);
+        Tr34ResponseCache.Key key = Tr34ResponseCache.createKey(
+                Tr34CryptoUtils.getIssuerAndSerialNumber(krdChain.get(0)),
+                randomToken.getRandomNumber().getOctets(), keyId);
 
-        // Generate a response
-        return Tr34TwoPassKeyToken.create(randomToken, krdChain.get(0), keyBlock,
-                tr34KeyStoreData.getKdhKeyStoreData());
+        // Concurrent retries wait for one token, only that one is audited
+        Tr34TwoPassKeyToken[] issued = new Tr34TwoPassKeyToken[1];
+        byte[] encoded = responseCache.computeIfAbsent(key, () -> {
+            issued[0] = createTwoPassKeyToken(randomToken, krdChain.get(0), symmetricKey);
+            return encode(issued[0]);
+        });
+        return issued[0] != null ? issued[0] : Tr34TwoPassKeyToken.decode(encoded);
+    }
+
+    /**
+     * Validates the KRD chain and records the result in a session ticket, which can be sealed with a
+     * {@link Tr34SessionTicketCodec} and handed back on a later step of the session to any node.
+     *
+     * @param keyReference Identifies the key to send once the session reaches the key token step
+     * @param ttlMillis How long the session may be resumed
+     */
+    public Tr34SessionTicket createSessionTicket(List<X509Certificate> krdChain, String keyReference, long ttlMillis) {
+        verifyKrdChain(krdChain);
+
+        long now = System.currentTimeMillis();
+        return Tr34SessionTicket.create(krdChain.get(0),
+                Tr34CryptoUtils.getIssuerAndSerialNumber(tr34KeyStoreData.getKdhCert()), keyReference, null,
+                new Date(now), new Date(now + ttlMillis));
+    }
+
+    /**
+     * Resumes a session, generating the two-pass key token for the KRD recorded in the ticket without
+     * validating its chain again. The ticket must carry the KRD random token, see
+     * {@link Tr34SessionTicket#withRandomToken(Tr34RandomToken)}.
+     */
+    public Tr34TwoPassKeyToken generateTwoPassKeyToken(Tr34SessionTicket ticket, byte[] symmetricKey) {
+        return generateTwoPassKeyToken(ticket.getRandomToken(), ticket, symmetricKey);
+    }
+
+    /**
+     * Resumes a session, generating the two-pass key token for the KRD recorded in the ticket without
+     * validating its chain again.
+     */
+    public Tr34TwoPassKeyToken generateTwoPassKeyToken(Tr34RandomToken randomToken, Tr34SessionTicket ticket,
+                                                       byte[] symmetricKey) {
+        checkSessionTicket(ticket);
+        checkBinding(ticket.getKrdCert());
+        return createTwoPassKeyToken(randomToken, ticket.getKrdCert(), symmetricKey);
+    }
+
+    private void checkSessionTicket(Tr34SessionTicket ticket) {
+        if (ticket.isExpired()) {
+            throw new SecurityException("Session ticket expired");
+        }
+        if (!ticket.getKdhIssuerAndSerial().equals(
+                Tr34CryptoUtils.getIssuerAndSerialNumber(tr34KeyStoreData.getKdhCert()))) {
+            throw new SecurityException("Session ticket issued for another KDH");
+        }
+    }
+
+    private static byte[] encode(Tr34Object token) {
+        try {
+            return token.getEncoded();
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
     }
 
 }
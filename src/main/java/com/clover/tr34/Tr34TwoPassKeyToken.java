@@ -22,37 +22,90 @@ import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSTypedData;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
-import org.bouncycastle.operator.jcajce.JcaAlgorithmParametersConverter;
 
-import javax.crypto.spec.OAEPParameterSpec;
-import javax.crypto.spec.PSource;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
-import java.security.spec.MGF1ParameterSpec;
 
 /**
  * See B.9 KTKDH – The KDH Key Token
  * <p>
  * Currently, this implementation only encrypts with ephemeral key type AES 128, the standard allows
  * for TDEA 168 but that is not implemented here.
+ * <p>
+ * See {@link Tr34OnePassKeyToken} for the one pass variant.
  */
 public class Tr34TwoPassKeyToken extends Tr34SignedObject {
 
-    private final ASN1Sequence rootNode;
-    private final SignedData signedData;
-    private final SignerInfo signerInfo;
-    private final EnvelopedData envelopedData;
-    private final ASN1OctetString randomNonce;
-    private final String keyBlockHeader;
+    // Set for tokens of the factory, whose fields are only decoded when first asked for
+    private final byte[] encoded;
+    private volatile Contents contents;
+
+    private static final class Contents {
+        final ASN1Sequence rootNode;
+        final SignedData signedData;
+        final SignerInfo signerInfo;
+        final EnvelopedData envelopedData;
+        final ASN1OctetString randomNonce;
+        final String keyBlockHeader;
+
+        Contents(ASN1Sequence rootAsn1) throws Exception {
+            CMSSignedData csd = new CMSSignedData(ContentInfo.getInstance(Tr34CryptoUtils.decodeToAsn1(rootAsn1)));
+            signedData = SignedData.getInstance(csd.toASN1Structure().getContent());
+
+            ASN1Set signerInfos = signedData.getSignerInfos();
+            if (signerInfos.size() != 1) {
+                throw new Tr34Exception("Invalid number of signer infos");
+            }
+
+            signerInfo = SignerInfo.getInstance(signerInfos.getObjectAt(0));
+            ASN1Set authenticatedAttrs = signerInfo.getAuthenticatedAttributes();
+
+            AttributeTable attrTable = new AttributeTable(authenticatedAttrs);
+            randomNonce = (ASN1OctetString) attrTable.get(Tr34ObjectIdentifiers.randomNonce).getAttributeValues()[0];
+            if (randomNonce.getOctetsLength() < 8 || randomNonce.getOctetsLength() > 16) {
+                throw new Tr34Exception("Random nonce must be 8 to 16 octets");
+            }
+
+            ASN1OctetString kbhOctets = (ASN1OctetString) attrTable.get(PKCSObjectIdentifiers.data).getAttributeValues()[0];
+            if (kbhOctets.getOctetsLength() != 16) {
+                throw new Tr34Exception("Key block header must be 16 octets");
+            }
+
+            keyBlockHeader = new String(kbhOctets.getOctets(), StandardCharsets.US_ASCII);
+
+            // Get inner EnvelopedData
+
+            ContentInfo ci = signedData.getEncapContentInfo();
+            if (!PKCSObjectIdentifiers.envelopedData.equals(ci.getContentType())) {
+                throw new Tr34Exception("Invalid encapsulated content info identifier");
+            }
+
+            ASN1OctetString enveloped = (ASN1OctetString) ci.getContent();
+            ASN1Sequence obj = ASN1Sequence.getInstance(enveloped.getOctets());
+            envelopedData = EnvelopedData.getInstance(obj);
+
+            this.rootNode = rootAsn1;
+        }
+    }
 
     public static Tr34TwoPassKeyToken decode(Object encoded) {
         try {
-            return new Tr34TwoPassKeyToken((ASN1Sequence) Tr34CryptoUtils.decodeToAsn1(encoded));
+            return new Tr34TwoPassKeyToken(new Contents((ASN1Sequence) Tr34CryptoUtils.decodeToAsn1(encoded)));
         } catch (Exception e) {
             throw new Tr34Exception(e);
         }
     }
 
+    /**
+     * Wraps DER written by {@link Tr34TwoPassKeyTokenTemplate}. Encoding the token copies the bytes,
+     * the CMS structure is only decoded when a field is first read.
+     */
+    static Tr34TwoPassKeyToken wrapEncoded(byte[] der) {
+        return new Tr34TwoPassKeyToken(der);
+    }
+
     private static ASN1Sequence generateKT_KDH(Tr34RandomToken request, X509Certificate krdCert,
                                                Tr34KeyBlock keyBlock, Tr34ScdKeyStoreData kdhKeyStore) throws Exception {
         // The KTKDH message includes an inner content of type EnvelopedData and an outer
@@ -75,10 +128,7 @@ public class Tr34TwoPassKeyToken extends Tr34SignedObject {
 
     protected static byte[] encryptForRecipient(X509Certificate recipientCert, byte[] dataToDecrypt) throws Exception {
         // Generate inner EnvelopedData
-        OAEPParameterSpec oaepParamSpec = new OAEPParameterSpec("SHA-256", "MGF1",
-                MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
-        JcaAlgorithmParametersConverter paramsConv = new JcaAlgorithmParametersConverter();
-        AlgorithmIdentifier algoId = paramsConv.getAlgorithmIdentifier(PKCSObjectIdentifiers.id_RSAES_OAEP, oaepParamSpec);
+        AlgorithmIdentifier algoId = Tr34RecipientContext.KEY_ENCRYPTION_ALGORITHM;
 
         JceKeyTransRecipientInfoGenerator recipInfo = new JceKeyTransRecipientInfoGenerator(recipientCert, algoId);
 
@@ -98,71 +148,70 @@ public class Tr34TwoPassKeyToken extends Tr34SignedObject {
                                       Tr34ScdKeyStoreData kdhKeyStore) {
         try {
             ASN1Sequence out = generateKT_KDH(request, krdCert, keyBlock, kdhKeyStore);
-            return new Tr34TwoPassKeyToken(out);
+            return new Tr34TwoPassKeyToken(new Contents(out));
         } catch (Exception e) {
             throw new Tr34Exception(e);
         }
     }
 
-    private Tr34TwoPassKeyToken(ASN1Sequence rootAsn1) throws Exception {
-        CMSSignedData csd = new CMSSignedData(ContentInfo.getInstance(Tr34CryptoUtils.decodeToAsn1(rootAsn1)));
-        signedData = SignedData.getInstance(csd.toASN1Structure().getContent());
-
-        ASN1Set signerInfos = signedData.getSignerInfos();
-        if (signerInfos.size() != 1) {
-            throw new Tr34Exception("Invalid number of signer infos");
-        }
-
-        signerInfo = SignerInfo.getInstance(signerInfos.getObjectAt(0));
-        ASN1Set authenticatedAttrs = signerInfo.getAuthenticatedAttributes();
-
-        AttributeTable attrTable = new AttributeTable(authenticatedAttrs);
-        randomNonce = (ASN1OctetString) attrTable.get(Tr34ObjectIdentifiers.randomNonce).getAttributeValues()[0];
-        if (randomNonce.getOctetsLength() < 8 || randomNonce.getOctetsLength() > 16) {
-            throw new Tr34Exception("Random nonce must be 8 to 16 octets");
-        }
-
-        ASN1OctetString kbhOctets = (ASN1OctetString) attrTable.get(PKCSObjectIdentifiers.data).getAttributeValues()[0];
-        if (kbhOctets.getOctetsLength() != 16) {
-            throw new Tr34Exception("Key block header must be 16 octets");
-        }
-
-        keyBlockHeader = new String(kbhOctets.getOctets(), StandardCharsets.US_ASCII);
+    private Tr34TwoPassKeyToken(Contents contents) {
+        this.encoded = null;
+        this.contents = contents;
+    }
 
-        // Get inner EnvelopedData
+    private Tr34TwoPassKeyToken(byte[] encoded) {
+        this.encoded = encoded;
+    }
 
-        ContentInfo ci = signedData.getEncapContentInfo();
-        if (!PKCSObjectIdentifiers.envelopedData.equals(ci.getContentType())) {
-            throw new Tr34Exception("Invalid encapsulated content info identifier");
+    private Contents contents() {
+        Contents decoded = contents;
+        if (decoded == null) {
+            try {
+                decoded = new Contents((ASN1Sequence) Tr34CryptoUtils.decodeToAsn1(encoded));
+            } catch (Tr34Exception e) {
+                throw e;
+            } catch (Exception e) {
+                throw new Tr34Exception(e);
+            }
+            contents = decoded;
         }
-
-        ASN1OctetString enveloped = (ASN1OctetString) ci.getContent();
-        ASN1Sequence obj = ASN1Sequence.getInstance(enveloped.getOctets());
-        envelopedData = EnvelopedData.getInstance(obj);
-
-        this.rootNode = rootAsn1;
+        return decoded;
     }
 
     public ASN1OctetString getRandomNonce() {
-        return randomNonce;
+        return contents().randomNonce;
     }
 
     public EnvelopedData getEnvelopedData() {
-        return envelopedData;
+        return contents().envelopedData;
     }
 
     @Override
     public SignerInfo getSignerInfo() {
-        return signerInfo;
+        return contents().signerInfo;
     }
 
     @Override
     public SignedData getSignedData() {
-        return signedData;
+        return contents().signedData;
     }
 
     @Override
     public ASN1Primitive toASN1Primitive() {
-        return rootNode;
+        return contents().rootNode;
+    }
+
+    @Override
+    public byte[] getEncoded() throws IOException {
+        return encoded != null ? encoded.clone() : super.getEncoded();
+    }
+
+    @Override
+    public void encodeTo(OutputStream output) throws IOException {
+        if (encoded != null) {
+            output.write(encoded);
+        } else {
+            super.encodeTo(output);
+        }
     }
 }
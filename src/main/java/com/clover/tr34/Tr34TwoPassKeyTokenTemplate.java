@@ -0,0 +1,392 @@
+package com.clover.tr34;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.cms.Time;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Pre-encoded form of the two-pass key token of one KDH identity.
+ * <p>
+ * Everything except the signing time, key block header, random nonce, envelope, message digest and
+ * signature is identical in every token a KDH issues. The constant parts are captured once from a
+ * reference token produced by {@link Tr34SignedObject#signCmsData} and written as byte runs, the
+ * variable parts are spliced in with their DER lengths. Signed attributes are sorted the way DER
+ * requires, so the output is byte for byte what {@link Tr34TwoPassKeyToken#create} produces for the
+ * same signing time and envelope. Thread safe.
+ */
+final class Tr34TwoPassKeyTokenTemplate {
+
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_SET = 0x31;
+    private static final int TAG_CONTEXT_0 = 0xa0;
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final byte[] SIGNED_DATA_OID = encode(CMSObjectIdentifiers.signedData);
+    private static final byte[] ENVELOPED_DATA_OID = encode(CMSObjectIdentifiers.envelopedData);
+    private static final byte[] RANDOM_NONCE_OID = encode(Tr34ObjectIdentifiers.randomNonce);
+
+    private final Tr34ScdKeyStoreData kdhKeyStore;
+
+    // SignedData
+    private final byte[] signedDataVersion;
+    private final byte[] digestAlgorithms;
+
+    // SignerInfo
+    private final byte[] signerInfoPrefix;
+    private final byte[] signatureAlgorithm;
+
+    // Constant signed attributes
+    private final byte[] contentTypeAttribute;
+    private final byte[] algorithmProtectionAttribute;
+    private final byte[] messageDigestPrefix;
+
+    // KeyBlock version and KDH IssuerAndSerialNumber
+    private final byte[] keyBlockPrefix;
+    private final byte[] keyHeaderPrefix;
+
+    Tr34TwoPassKeyTokenTemplate(Tr34ScdKeyStoreData kdhKeyStore) {
+        this.kdhKeyStore = kdhKeyStore;
+
+        try {
+            Tr34KeyBlock referenceKeyBlock = Tr34KeyBlock.create("0000000000000000", new byte[16], kdhKeyStore.cert);
+            ASN1Sequence keyBlock = (ASN1Sequence) referenceKeyBlock.toASN1Primitive();
+            keyBlockPrefix = concat(keyBlock.getObjectAt(0).toASN1Primitive().getEncoded(ASN1Encoding.DL),
+                    keyBlock.getObjectAt(1).toASN1Primitive().getEncoded(ASN1Encoding.DL));
+            byte[] keyHeader = referenceKeyBlock.getFullKeyHeader().getEncoded(ASN1Encoding.DL);
+            keyHeaderPrefix = Arrays.copyOf(keyHeader, keyHeader.length - 16);
+
+            ASN1EncodableVector attributes = new ASN1EncodableVector();
+            attributes.add(referenceKeyBlock.getFullKeyHeader());
+            attributes.add(Tr34RandomToken.create(new byte[16]));
+            byte[] reference = Tr34SignedObject.signCmsData(new AttributeTable(attributes),
+                    CMSObjectIdentifiers.envelopedData, new byte[1], kdhKeyStore).getEncoded();
+
+            ContentInfo contentInfo = ContentInfo.getInstance(ASN1Primitive.fromByteArray(reference));
+            SignedData signedData = SignedData.getInstance(contentInfo.getContent());
+            if (signedData.getCertificates() != null || signedData.getCRLs() != null
+                    || signedData.getSignerInfos().size() != 1) {
+                throw new Tr34Exception("Unsupported reference token layout");
+            }
+            signedDataVersion = signedData.getVersion().getEncoded();
+            digestAlgorithms = signedData.getDigestAlgorithms().getEncoded();
+
+            SignerInfo signerInfo = SignerInfo.getInstance(signedData.getSignerInfos().getObjectAt(0));
+            signerInfoPrefix = concat(signerInfo.getVersion().getEncoded(), signerInfo.getSID().getEncoded(),
+                    signerInfo.getDigestAlgorithm().getEncoded());
+            signatureAlgorithm = signerInfo.getDigestEncryptionAlgorithm().getEncoded();
+            if (signerInfo.getUnauthenticatedAttributes() != null) {
+                throw new Tr34Exception("Unsupported reference token layout");
+            }
+
+            byte[] contentType = null;
+            byte[] algorithmProtection = null;
+            byte[] messageDigest = null;
+            ASN1Set signedAttributes = signerInfo.getAuthenticatedAttributes();
+            for (ASN1Encodable encodable : signedAttributes) {
+                Attribute attribute = Attribute.getInstance(encodable);
+                ASN1ObjectIdentifier type = attribute.getAttrType();
+                byte[] encoded = attribute.getEncoded();
+                if (CMSAttributes.contentType.equals(type)) {
+                    contentType = encoded;
+                } else if (CMSAttributes.cmsAlgorithmProtect.equals(type)) {
+                    algorithmProtection = encoded;
+                } else if (CMSAttributes.messageDigest.equals(type)) {
+                    messageDigest = Arrays.copyOf(encoded, encoded.length - DIGEST_LENGTH);
+                } else if (!CMSAttributes.signingTime.equals(type) && !CMSObjectIdentifiers.data.equals(type)
+                        && !Tr34ObjectIdentifiers.randomNonce.equals(type)) {
+                    throw new Tr34Exception("Unsupported signed attribute: " + type);
+                }
+            }
+            if (contentType == null || messageDigest == null || signedAttributes.size() != (algorithmProtection == null ? 5 : 6)) {
+                throw new Tr34Exception("Unsupported reference token layout");
+            }
+            contentTypeAttribute = contentType;
+            algorithmProtectionAttribute = algorithmProtection;
+            messageDigestPrefix = messageDigest;
+        } catch (Tr34Exception e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    /**
+     * Encodes the same bytes as {@link Tr34KeyBlock#create} into new key material, the clear key is
+     * copied between direct buffers only. Callers close the result after use.
+     */
+    Tr34KeyMaterial encodeKeyBlock(String header, Tr34KeyMaterial symmetricKey) {
+        byte[] headerBytes = keyHeaderBytes(header);
+
+        int keyLength = tlvLength(symmetricKey.getLength());
+        int headerLength = keyHeaderPrefix.length + headerBytes.length;
+        int contentLength = keyBlockPrefix.length + keyLength + headerLength;
+
+        Tr34KeyMaterial keyBlock = Tr34KeyMaterial.allocate(tlvLength(contentLength));
+        ByteBuffer out = keyBlock.buffer();
+        putHeader(out, TAG_SEQUENCE, contentLength);
+        out.put(keyBlockPrefix);
+        putHeader(out, TAG_OCTET_STRING, symmetricKey.getLength());
+        out.put(symmetricKey.buffer());
+        out.put(keyHeaderPrefix);
+        out.put(headerBytes);
+        return keyBlock;
+    }
+
+    /**
+     * Encodes and signs a complete two-pass key token.
+     *
+     * @param keyHeader Key block header, the same as in the encrypted key block
+     * @param envelope DER encoded EnvelopedData holding the encrypted key block
+     */
+    byte[] encode(Date signingTime, Tr34RandomToken randomToken, String keyHeader, byte[] envelope) {
+        Parts parts = prepare(signingTime, encode(randomToken), keyHeader, envelope);
+        ByteBuffer out = ByteBuffer.allocate(parts.totalLength);
+        parts.writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Same as {@link #encode} but writes into the buffer at its position.
+     *
+     * @throws BufferOverflowException If the token does not fit, nothing is written
+     * @return Number of bytes written
+     */
+    int encodeTo(ByteBuffer out, Date signingTime, Tr34RandomToken randomToken, String keyHeader, byte[] envelope) {
+        return encodeTo(out, prepare(signingTime, encode(randomToken), keyHeader, envelope));
+    }
+
+    /**
+     * Same as {@link #encodeTo(ByteBuffer, Date, Tr34RandomToken, String, byte[])} with the random
+     * token given by its nonce, e.g. a view from {@link Tr34DerReader#getNonce()}. The nonce position
+     * is not changed.
+     */
+    int encodeTo(ByteBuffer out, Date signingTime, ByteBuffer nonce, String keyHeader, byte[] envelope) {
+        int nonceLength = nonce.remaining();
+        int setLength = tlvLength(nonceLength);
+        int contentLength = RANDOM_NONCE_OID.length + tlvLength(setLength);
+        ByteBuffer randomToken = ByteBuffer.allocate(tlvLength(contentLength));
+        putHeader(randomToken, TAG_SEQUENCE, contentLength);
+        randomToken.put(RANDOM_NONCE_OID);
+        putHeader(randomToken, TAG_SET, setLength);
+        putHeader(randomToken, TAG_OCTET_STRING, nonceLength);
+        randomToken.put(nonce.duplicate());
+
+        return encodeTo(out, prepare(signingTime, randomToken.array(), keyHeader, envelope));
+    }
+
+    private static int encodeTo(ByteBuffer out, Parts parts) {
+        if (out.remaining() < parts.totalLength) {
+            throw new BufferOverflowException();
+        }
+        parts.writeTo(out);
+        return parts.totalLength;
+    }
+
+    private Parts prepare(Date signingTime, byte[] randomToken, String keyHeader, byte[] envelope) {
+        try {
+            Parts p = new Parts();
+            p.envelope = envelope;
+
+            byte[] messageDigest = Arrays.copyOf(messageDigestPrefix, messageDigestPrefix.length + DIGEST_LENGTH);
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(envelope);
+            md.digest(messageDigest, messageDigestPrefix.length, DIGEST_LENGTH);
+
+            byte[][] attributes = algorithmProtectionAttribute == null ? new byte[5][] : new byte[6][];
+            attributes[0] = contentTypeAttribute;
+            attributes[1] = new Attribute(CMSAttributes.signingTime, new DERSet(new Time(signingTime)))
+                    .getEncoded(ASN1Encoding.DER);
+            attributes[2] = concat(keyHeaderPrefix, keyHeaderBytes(keyHeader));
+            attributes[3] = randomToken;
+            attributes[4] = messageDigest;
+            if (algorithmProtectionAttribute != null) {
+                attributes[5] = algorithmProtectionAttribute;
+            }
+            sortDer(attributes);
+            p.attributes = attributes;
+
+            int attributesLength = 0;
+            for (byte[] attribute : attributes) {
+                attributesLength += attribute.length;
+            }
+            p.attributesLength = attributesLength;
+
+            // The signature covers the attributes encoded as a SET rather than [0]
+            Signature signer = Signature.getInstance("SHA256withRSA", Tr34Provider.PROVIDER);
+            signer.initSign(kdhKeyStore.privateKey);
+            ByteBuffer setHeader = ByteBuffer.allocate(headerLength(attributesLength));
+            putHeader(setHeader, TAG_SET, attributesLength);
+            signer.update(setHeader.array());
+            for (byte[] attribute : attributes) {
+                signer.update(attribute);
+            }
+            p.signature = signer.sign();
+
+            p.signerInfoLength = signerInfoPrefix.length + tlvLength(attributesLength) + signatureAlgorithm.length
+                    + tlvLength(p.signature.length);
+            p.signerInfosLength = tlvLength(p.signerInfoLength);
+            p.envelopeOctetsLength = tlvLength(envelope.length);
+            p.encapContentLength = ENVELOPED_DATA_OID.length + tlvLength(p.envelopeOctetsLength);
+            p.signedDataLength = signedDataVersion.length + digestAlgorithms.length + tlvLength(p.encapContentLength)
+                    + tlvLength(p.signerInfosLength);
+            p.explicitLength = tlvLength(p.signedDataLength);
+            p.contentInfoLength = SIGNED_DATA_OID.length + tlvLength(p.explicitLength);
+            p.totalLength = tlvLength(p.contentInfoLength);
+            return p;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+    private final class Parts {
+        byte[] envelope;
+        byte[][] attributes;
+        byte[] signature;
+        int attributesLength;
+        int signerInfoLength;
+        int signerInfosLength;
+        int envelopeOctetsLength;
+        int encapContentLength;
+        int signedDataLength;
+        int explicitLength;
+        int contentInfoLength;
+        int totalLength;
+
+        void writeTo(ByteBuffer out) {
+            putHeader(out, TAG_SEQUENCE, contentInfoLength);
+            out.put(SIGNED_DATA_OID);
+            putHeader(out, TAG_CONTEXT_0, explicitLength);
+            putHeader(out, TAG_SEQUENCE, signedDataLength);
+            out.put(signedDataVersion);
+            out.put(digestAlgorithms);
+
+            putHeader(out, TAG_SEQUENCE, encapContentLength);
+            out.put(ENVELOPED_DATA_OID);
+            putHeader(out, TAG_CONTEXT_0, envelopeOctetsLength);
+            putHeader(out, TAG_OCTET_STRING, envelope.length);
+            out.put(envelope);
+
+            putHeader(out, TAG_SET, signerInfosLength);
+            putHeader(out, TAG_SEQUENCE, signerInfoLength);
+            out.put(signerInfoPrefix);
+            putHeader(out, TAG_CONTEXT_0, attributesLength);
+            for (byte[] attribute : attributes) {
+                out.put(attribute);
+            }
+            out.put(signatureAlgorithm);
+            putHeader(out, TAG_OCTET_STRING, signature.length);
+            out.put(signature);
+        }
+    }
+
+    private static byte[] keyHeaderBytes(String header) {
+        byte[] headerBytes = header.getBytes();
+        if (headerBytes.length != 16) {
+            throw new Tr34Exception("Key header must be 16 chars");
+        }
+        return headerBytes;
+    }
+
+    /**
+     * Orders SET OF elements by their encodings as DER requires, the same order
+     * {@link DERSet} produces.
+     */
+    private static void sortDer(byte[][] elements) {
+        for (int i = 1; i < elements.length; i++) {
+            byte[] e = elements[i];
+            int j = i - 1;
+            while (j >= 0 && compareUnsigned(elements[j], e) > 0) {
+                elements[j + 1] = elements[j];
+                j--;
+            }
+            elements[j + 1] = e;
+        }
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int headerLength(int contentLength) {
+        if (contentLength < 0x80) {
+            return 2;
+        } else if (contentLength < 0x100) {
+            return 3;
+        } else if (contentLength < 0x10000) {
+            return 4;
+        } else if (contentLength < 0x1000000) {
+            return 5;
+        }
+        return 6;
+    }
+
+    private static int tlvLength(int contentLength) {
+        return headerLength(contentLength) + contentLength;
+    }
+
+    private static void putHeader(ByteBuffer out, int tag, int contentLength) {
+        out.put((byte) tag);
+        int octets = headerLength(contentLength) - 2;
+        if (octets == 0) {
+            out.put((byte) contentLength);
+        } else {
+            out.put((byte) (0x80 | octets));
+            for (int shift = (octets - 1) * 8; shift >= 0; shift -= 8) {
+                out.put((byte) (contentLength >>> shift));
+            }
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, offset, part.length);
+            offset += part.length;
+        }
+        return out;
+    }
+
+    private static byte[] encode(ASN1Encodable encodable) {
+        try {
+            return encodable.toASN1Primitive().getEncoded(ASN1Encoding.DER);
+        } catch (IOException e) {
+            throw new Tr34Exception(e);
+        }
+    }
+
+}
@@ -3,19 +3,76 @@ package com.clover.tr34;
 import com.clover.tr34.samples.CloverSampleTr34KeyStoreData;
 import com.clover.tr34.samples.CloverSampleTr34Messages;
 
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cms.CMSSignedData;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.math.BigInteger;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -111,6 +168,1631 @@ public class Tr34CloverTest {
         assertEquals(newKeyBlock, decryptedKeyBlock);
     }
 
+    @Test
+    public void cloverGenerateOnePassKeyToken() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+
+        byte[] symmetricTdesKey = new byte[24];
+        new Random().nextBytes(symmetricTdesKey);
+        Tr34OnePassKeyToken resp = Tr34OnePassKeyToken.decode(Tr34PEMGenerator.encodeToPem(
+                factory.generateOnePassKeyToken(krd1Chain, symmetricTdesKey)));
+
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        client.verifyOnePassKeyToken(resp, null, 60_000L);
+
+        Tr34KeyBlock decryptedKeyBlock = client.decrypt(resp, krdPrivateKey);
+        String header = Tr34KeyBlockHeaderFactory.createHeaderForTdesTr31Kbk();
+        assertEquals(header, resp.getKeyBlockHeader());
+        assertEquals(Tr34KeyBlock.create(header, symmetricTdesKey, trustStore.getKdhCert()), decryptedKeyBlock);
+
+        // Replayed token must be rejected
+        try {
+            client.verifyOnePassKeyToken(resp, resp.getSigningTime(), 60_000L);
+            fail("Replay accepted");
+        } catch (SecurityException expected) {
+        }
+
+        // The signature is checked before the signing time it covers
+        Tr34TokenClient otherKdhClient = new Tr34TokenClient(CloverSampleTr34KeyStoreData.KDH_2);
+        try {
+            otherKdhClient.verifyOnePassKeyToken(resp, resp.getSigningTime(), 60_000L);
+            fail("Foreign token accepted");
+        } catch (Exception expected) {
+            assertFalse(String.valueOf(expected.getMessage()).contains("Signing time"));
+        }
+    }
+
+    @Test
+    public void cloverTwoPassKeyTokenResponseCache() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34ResponseCache cache = new Tr34ResponseCache(16, 64 * 1024, 60_000L);
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore).withResponseCache(cache);
+
+        Tr34RandomToken reqRandToken = Tr34RandomToken.createNewRandom();
+        byte[] symmetricAesKey = new byte[16];
+        new Random().nextBytes(symmetricAesKey);
+
+        Tr34TwoPassKeyToken first = factory.generateTwoPassKeyToken(reqRandToken, krd1Chain, symmetricAesKey, "tmk-1");
+        Tr34TwoPassKeyToken retry = factory.generateTwoPassKeyToken(reqRandToken, krd1Chain, symmetricAesKey, "tmk-1");
+        assertArrayEquals(first.getEncoded(), retry.getEncoded());
+        assertEquals(1L, cache.getHitCount());
+
+        // A new nonce is a new request
+        Tr34TwoPassKeyToken other = factory.generateTwoPassKeyToken(Tr34RandomToken.createNewRandom(), krd1Chain,
+                symmetricAesKey, "tmk-1");
+        assertFalse(Arrays.equals(first.getEncoded(), other.getEncoded()));
+        assertEquals(2, cache.size());
+
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        client.verifyTwoPassKeyTokenResponse(retry, reqRandToken);
+    }
+
+    @Test
+    public void cloverTwoPassKeyTokenResponseCacheConcurrentRetries() throws Exception {
+        Path file = Files.createTempDirectory("tr34-audit").resolve("audit");
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        byte[] key = new byte[16];
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (Tr34AuditJournal journal = new Tr34AuditJournal(file, 0, 1)) {
+            Tr34TokenFactory factory = new Tr34TokenFactory(trustStore).withAuditJournal(journal)
+                    .withResponseCache(new Tr34ResponseCache(16, 64 * 1024, 60_000L));
+            CountDownLatch start = new CountDownLatch(1);
+            List<CompletableFuture<byte[]>> retries = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                retries.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                        return factory.generateTwoPassKeyToken(randomToken, krd1Chain, key, "tmk-1").getEncoded();
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+            start.countDown();
+            for (CompletableFuture<byte[]> retry : retries) {
+                assertArrayEquals(retries.get(0).get(), retry.get());
+            }
+            // One token issued and audited
+            assertEquals(1L, journal.getRecordCount());
+        } finally {
+            executor.shutdown();
+            deleteDirectory(file.getParent());
+        }
+    }
+
+    @Test
+    public void cloverResponseCacheEviction() {
+        Tr34ResponseCache cache = new Tr34ResponseCache(2, 1024, 60_000L);
+        IssuerAndSerialNumber krdIssuerAndSerial = new IssuerAndSerialNumber(
+                new X500Name("CN=KRD"), BigInteger.ONE);
+
+        for (int i = 0; i < 3; i++) {
+            cache.putIfAbsent(Tr34ResponseCache.createKey(krdIssuerAndSerial, new byte[] { (byte) i }, "k"),
+                    new byte[100]);
+        }
+
+        assertEquals(2, cache.size());
+        assertEquals(1L, cache.getEvictionCount());
+        assertEquals(null, cache.get(Tr34ResponseCache.createKey(krdIssuerAndSerial, new byte[] { 0 }, "k")));
+        assertNotNull(cache.get(Tr34ResponseCache.createKey(krdIssuerAndSerial, new byte[] { 2 }, "k")));
+
+        // Byte limit
+        cache.putIfAbsent(Tr34ResponseCache.createKey(krdIssuerAndSerial, new byte[] { 3 }, "k"), new byte[1000]);
+        assertEquals(1, cache.size());
+        assertEquals(1000L, cache.getTotalBytes());
+    }
+
+    @Test
+    public void cloverSigningSchedulerClose() throws Exception {
+        Tr34TokenFactory factory = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1);
+        Tr34SigningScheduler scheduler = new Tr34SigningScheduler(factory, 1, 4, 4, 1);
+        CompletableFuture<Object> slow = scheduler.submit(Tr34SigningScheduler.Priority.BULK, Long.MAX_VALUE, f -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "slow";
+        });
+        // A far deadline must not overflow into an expired one
+        CompletableFuture<Object> queued = scheduler.submit(Tr34SigningScheduler.Priority.BULK, Long.MAX_VALUE,
+                f -> "queued");
+
+        scheduler.close();
+        assertTrue(slow.isDone() && queued.isDone());
+        assertEquals("queued", queued.get());
+        try {
+            scheduler.submit(Tr34SigningScheduler.Priority.INTERACTIVE, Long.MAX_VALUE, f -> null);
+            fail("Closed scheduler accepted a request");
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    @Test
+    public void cloverSigningSchedulerPriorityAndDeadline() throws Exception {
+        Tr34TokenFactory factory = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 60_000L;
+
+        try (Tr34SigningScheduler scheduler = new Tr34SigningScheduler(factory, 1, 3, 4, 1)) {
+            // Occupy the only worker
+            CompletableFuture<Object> blocker = scheduler.submit(Tr34SigningScheduler.Priority.BULK, deadline, f -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            });
+            while (scheduler.getQueueDepth(Tr34SigningScheduler.Priority.BULK) != 0) {
+                Thread.sleep(1);
+            }
+
+            List<CompletableFuture<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                String name = "bulk" + i;
+                futures.add(scheduler.submit(Tr34SigningScheduler.Priority.BULK, deadline, f -> order.add(name)));
+            }
+            try {
+                scheduler.submit(Tr34SigningScheduler.Priority.BULK, deadline, f -> null);
+                fail("Queue bound not enforced");
+            } catch (RejectedExecutionException expected) {
+            }
+
+            futures.add(scheduler.submit(Tr34SigningScheduler.Priority.INTERACTIVE, deadline,
+                    f -> order.add("interactive")));
+            CompletableFuture<Object> late = scheduler.submit(Tr34SigningScheduler.Priority.INTERACTIVE,
+                    System.currentTimeMillis() + 1, f -> order.add("late"));
+
+            Thread.sleep(10);
+            release.countDown();
+            blocker.get();
+            for (CompletableFuture<Object> future : futures) {
+                future.get();
+            }
+
+            try {
+                late.get();
+                fail("Expired request ran");
+            } catch (ExecutionException expected) {
+            }
+
+            assertEquals(Arrays.asList("interactive", "bulk0", "bulk1", "bulk2"), order);
+            assertEquals(1L, scheduler.getDroppedCount(Tr34SigningScheduler.Priority.INTERACTIVE));
+            assertEquals(1L, scheduler.getRejectedCount(Tr34SigningScheduler.Priority.BULK));
+        }
+    }
+
+    @Test
+    public void cloverMultiTenantFactory() throws Exception {
+        Tr34MultiTenantTokenFactory multiTenant = new Tr34MultiTenantTokenFactory(128);
+        multiTenant.register("acquirer-1", CloverSampleTr34KeyStoreData.KDH_1);
+        multiTenant.register("acquirer-2", CloverSampleTr34KeyStoreData.KDH_2);
+
+        IssuerAndSerialNumber kdh2 = Tr34CryptoUtils.getIssuerAndSerialNumber(
+                CloverSampleTr34KeyStoreData.KDH_2.getKdhCert());
+        assertEquals(multiTenant.forTenant("acquirer-2"), multiTenant.forKdh(kdh2));
+
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        Tr34KdhUnbindToken unbindToken = multiTenant.forTenant("acquirer-2").generateKdhUnbindToken(randomToken, krd1Chain);
+        new Tr34TokenClient(CloverSampleTr34KeyStoreData.KDH_2).verifyKdhUnbindToken(unbindToken, randomToken, krdCert);
+
+        // Both tenants share the root so the chain validated for one tenant is known to the other
+        multiTenant.forTenant("acquirer-1").generateKdhUnbindToken(randomToken, krd1Chain);
+
+        // Both tenants share the KDH CA so they share the CRL
+        Tr34KdhCredentialToken ct1 = multiTenant.getKdhCredentialToken("acquirer-1");
+        Tr34KdhCredentialToken ct2 = multiTenant.getKdhCredentialToken("acquirer-2");
+        assertEquals(ct1.getCMSSignedData().getCRLs().getMatches(Tr34CryptoUtils.ALL_CRL_SELECTOR),
+                ct2.getCMSSignedData().getCRLs().getMatches(Tr34CryptoUtils.ALL_CRL_SELECTOR));
+
+        multiTenant.unregister("acquirer-1");
+        try {
+            multiTenant.forTenant("acquirer-1");
+            fail("Tenant not removed");
+        } catch (Tr34Exception expected) {
+        }
+
+        // A tenant with its own revocation list gets its own CRL, issued and audited by its factory
+        Path auditFile = Files.createTempDirectory("tr34-audit").resolve("audit");
+        try (Tr34AuditJournal journal = new Tr34AuditJournal(auditFile, 0, 1)) {
+            multiTenant.register("acquirer-1", new RevocationListOverride(CloverSampleTr34KeyStoreData.KDH_1,
+                    Collections.emptyList())).withAuditJournal(journal);
+            Tr34KdhCredentialToken revoking = multiTenant.getKdhCredentialToken("acquirer-2");
+            Tr34KdhCredentialToken empty = multiTenant.getKdhCredentialToken("acquirer-1");
+            assertEquals(1, onlyCrl(revoking).getRevokedCertificates().size());
+            assertEquals(0, onlyCrl(empty).getRevokedCertificates().size());
+            assertEquals(1L, journal.getRecordCount());
+        }
+    }
+
+    private static X509CRLHolder onlyCrl(Tr34KdhCredentialToken credentialToken) {
+        Collection<X509CRLHolder> crls = credentialToken.getCMSSignedData().getCRLs()
+                .getMatches(Tr34CryptoUtils.ALL_CRL_SELECTOR);
+        assertEquals(1, crls.size());
+        return crls.iterator().next();
+    }
+
+    @Test
+    public void cloverLiveTokenFactorySwap() throws Exception {
+        Tr34LiveTokenFactory live = new Tr34LiveTokenFactory(CloverSampleTr34KeyStoreData.KDH_1,
+                keyStoreData -> new Tr34TokenFactory(keyStoreData)
+                        .withResponseCache(new Tr34ResponseCache(16, 64 * 1024, 60_000L)));
+
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // In-flight request pinned to the first identity
+        CompletableFuture<Tr34KdhUnbindToken> inFlight = CompletableFuture.supplyAsync(() -> live.execute(factory -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return factory.generateKdhUnbindToken(randomToken, krd1Chain);
+        }));
+        started.await();
+
+        long oldGeneration = live.swap(CloverSampleTr34KeyStoreData.KDH_2);
+        assertFalse(live.awaitDrained(oldGeneration, 1, TimeUnit.MILLISECONDS));
+        assertEquals(1, live.getDrainingCount());
+
+        Tr34KdhUnbindToken afterSwap = live.execute(factory -> factory.generateKdhUnbindToken(randomToken, krd1Chain));
+        live.getClient().verifyKdhUnbindToken(afterSwap, randomToken, krdCert);
+
+        release.countDown();
+        new Tr34TokenClient(CloverSampleTr34KeyStoreData.KDH_1).verifyKdhUnbindToken(inFlight.get(), randomToken, krdCert);
+        assertTrue(live.awaitDrained(oldGeneration, 10, TimeUnit.SECONDS));
+        assertEquals(0, live.getDrainingCount());
+
+        // Idle generations are not kept, whether or not anyone waits for them
+        for (int i = 0; i < 3; i++) {
+            live.swap(i % 2 == 0 ? CloverSampleTr34KeyStoreData.KDH_1 : CloverSampleTr34KeyStoreData.KDH_2);
+        }
+        assertEquals(0, live.getDrainingCount());
+        assertTrue(live.awaitDrained(oldGeneration + 1, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cloverResumeSessionFromTicket() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        KeyGenerator aesGen = KeyGenerator.getInstance("AES");
+        aesGen.init(128);
+        Tr34SessionTicketCodec codec = new Tr34SessionTicketCodec(1, aesGen.generateKey(),
+                new SecretKeySpec(new SecureRandom().generateSeed(32), "HmacSHA256"));
+
+        // Node A: credential token arrives, chain validated once
+        Tr34KrdCredentialToken credentialToken = Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem);
+        List<X509Certificate> chain = Arrays.asList(credentialToken.getKrdCertificate(), krd1Chain.get(1));
+        byte[] sealed = codec.seal(new Tr34TokenFactory(trustStore).createSessionTicket(chain, "tmk-7", 60_000L));
+
+        // Node B: random token arrives
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        sealed = codec.seal(codec.open(sealed).withRandomToken(randomToken));
+
+        // Node C: key token issued
+        Tr34SessionTicket ticket = codec.open(sealed);
+        assertEquals("tmk-7", ticket.getKeyReference());
+        byte[] symmetricAesKey = new byte[16];
+        Tr34TwoPassKeyToken token = new Tr34TokenFactory(trustStore).generateTwoPassKeyToken(ticket, symmetricAesKey);
+        new Tr34TokenClient(trustStore).verifyTwoPassKeyTokenResponse(token, randomToken);
+
+        // Tampering is detected
+        sealed[sealed.length / 2] ^= 1;
+        try {
+            codec.open(sealed);
+            fail("Tampered ticket accepted");
+        } catch (SecurityException expected) {
+        }
+
+        // A ticket for one KDH cannot be used by another
+        try {
+            new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_2).generateTwoPassKeyToken(ticket, symmetricAesKey);
+            fail("Ticket for other KDH accepted");
+        } catch (SecurityException expected) {
+        }
+    }
+
+    @Test
+    public void cloverSessionEngineLifecycles() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+        byte[] tmk = new byte[16];
+        new Random().nextBytes(tmk);
+        AtomicLong now = new AtomicLong(1_000_000L);
+
+        Tr34SessionEngine engine = new Tr34SessionEngine(new Tr34TokenFactory(trustStore), ref -> tmk.clone(),
+                krd1Chain.subList(1, krd1Chain.size()), 30_000L, 1_000L, now::get);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+
+        // Bind and transport a key
+        long bind = engine.openBind("tmk");
+        assertNotNull(engine.onKrdCredentialToken(bind, Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem)));
+        assertEquals(Tr34SessionEngine.State.AWAIT_RANDOM_TOKEN, engine.getState(bind));
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        Tr34TwoPassKeyToken keyToken = (Tr34TwoPassKeyToken) engine.onRandomToken(bind, randomToken);
+        client.verifyTwoPassKeyTokenResponse(keyToken, randomToken);
+        assertEquals(Tr34KeyBlock.create(Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk(), tmk,
+                trustStore.getKdhCert()), client.decrypt(keyToken, krdPrivateKey));
+        assertEquals(null, engine.getState(bind));
+
+        // Unbind
+        long unbind = engine.openUnbind(krd1Chain);
+        randomToken = Tr34RandomToken.createNewRandom();
+        client.verifyKdhUnbindToken((Tr34KdhUnbindToken) engine.onRandomToken(unbind, randomToken), randomToken, krdCert);
+
+        // Out of order step fails the session
+        long rebind = engine.openRebind(krd1Chain, Tr34CryptoUtils.parseCert(CloverSampleTr34KeyStoreData.TR34_KDH_2_Cert_Pem));
+        try {
+            engine.onKrdCredentialToken(rebind, Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem));
+            fail("Out of order step accepted");
+        } catch (Tr34Exception expected) {
+        }
+        assertEquals(null, engine.getState(rebind));
+        assertEquals(2L, engine.getCompletedCount());
+        assertEquals(1L, engine.getFailedCount());
+
+        // Idle sessions expire through the timing wheel
+        for (int i = 0; i < 200_000; i++) {
+            engine.openBind("tmk");
+        }
+        long touched = engine.openBind("tmk");
+        now.addAndGet(20_000L);
+        assertEquals(0, engine.expireIdleSessions());
+        engine.onKrdCredentialToken(touched, Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem));
+        now.addAndGet(20_000L);
+        assertEquals(200_000, engine.expireIdleSessions());
+        assertEquals(1, engine.getOpenSessionCount());
+        now.addAndGet(20_000L);
+        assertEquals(1, engine.expireIdleSessions());
+        assertEquals(0, engine.getOpenSessionCount());
+    }
+
+    @Test
+    public void cloverBindingRegistry() throws Exception {
+        Path dir = Files.createTempDirectory("tr34-registry");
+        Path file = dir.resolve("bindings");
+        X509Certificate kdh1Cert = CloverSampleTr34KeyStoreData.KDH_1.getKdhCert();
+        X509Certificate kdh2Cert = CloverSampleTr34KeyStoreData.KDH_2.getKdhCert();
+        IssuerAndSerialNumber kdh1 = Tr34CryptoUtils.getIssuerAndSerialNumber(kdh1Cert);
+        X500Name issuer = new X500Name("CN=Test KRD CA");
+
+        // Never closed, simulating a crash
+        Tr34BindingRegistry registry = new Tr34BindingRegistry(file, 10_000, 100_000);
+        assertEquals(16384, registry.getCapacity());
+        assertEquals(null, registry.lookup(krdCert));
+
+        registry.bind(krdCert, kdh1Cert);
+        for (int i = 0; i < 5000; i++) {
+            registry.bind(new IssuerAndSerialNumber(issuer, BigInteger.valueOf(i)), kdh1);
+        }
+        registry.unbind(new IssuerAndSerialNumber(issuer, BigInteger.valueOf(7)));
+
+        Tr34TokenFactory factory = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1)
+                .withBindingRegistry(registry);
+        factory.generateKdhUnbindToken(Tr34RandomToken.createNewRandom(), krd1Chain);
+
+        Tr34TokenFactory otherKdh = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_2)
+                .withBindingRegistry(registry);
+        try {
+            otherKdh.generateKdhUnbindToken(Tr34RandomToken.createNewRandom(), krd1Chain);
+            fail("Token issued by a KDH the KRD is not bound to");
+        } catch (SecurityException expected) {
+        }
+        Tr34SessionEngine engine = new Tr34SessionEngine(otherKdh, ref -> new byte[16],
+                krd1Chain.subList(1, krd1Chain.size()), 30_000L, 1_000L, System::currentTimeMillis);
+        long keyTransport = engine.openKeyTransport(krd1Chain, "tmk");
+        try {
+            engine.onRandomToken(keyTransport, Tr34RandomToken.createNewRandom());
+            fail("Key token issued by a KDH the KRD is not bound to");
+        } catch (SecurityException expected) {
+        }
+
+        // Wipe the mapped records without a checkpoint, a reopen must recover them from the journal
+        try (FileChannel raw = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            raw.write(ByteBuffer.allocate(4), 12);
+            raw.write(ByteBuffer.allocate(16384 * 80), 64);
+        }
+        try (FileChannel journal = FileChannel.open(dir.resolve("bindings.journal"), StandardOpenOption.APPEND)) {
+            journal.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        }
+
+        try (Tr34BindingRegistry reopened = new Tr34BindingRegistry(file, 1)) {
+            assertEquals(5001, reopened.size());
+            assertTrue(reopened.lookup(krdCert).isBoundTo(kdh1));
+            assertFalse(reopened.lookup(krdCert).isBoundTo(Tr34CryptoUtils.getIssuerAndSerialNumber(kdh2Cert)));
+            assertEquals(Tr34BindingRegistry.State.BOUND,
+                    reopened.lookup(new IssuerAndSerialNumber(issuer, BigInteger.valueOf(4999))).getState());
+            assertEquals(Tr34BindingRegistry.State.UNBOUND,
+                    reopened.lookup(new IssuerAndSerialNumber(issuer, BigInteger.valueOf(7))).getState());
+            assertEquals(null, reopened.lookup(new IssuerAndSerialNumber(issuer, BigInteger.valueOf(5000))));
+        }
+    }
+
+    @Test
+    public void cloverAuditJournal() throws Exception {
+        Path file = Files.createTempDirectory("tr34-audit").resolve("audit");
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+
+        Tr34TwoPassKeyToken keyToken;
+        try (Tr34AuditJournal journal = new Tr34AuditJournal(file, 5, 64)) {
+            Tr34TokenFactory factory = new Tr34TokenFactory(trustStore).withAuditJournal(journal);
+            keyToken = factory.generateTwoPassKeyToken(Tr34RandomToken.createNewRandom(), krd1Chain, new byte[16]);
+
+            List<CompletableFuture<Tr34KdhUnbindToken>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(CompletableFuture.supplyAsync(() ->
+                        factory.generateKdhUnbindToken(Tr34RandomToken.createNewRandom(), krd1Chain)));
+            }
+            for (CompletableFuture<Tr34KdhUnbindToken> future : futures) {
+                future.get();
+            }
+            assertEquals(65L, journal.getRecordCount());
+            assertTrue(journal.getBatchCount() <= journal.getRecordCount());
+        }
+
+        // A torn record at the end is dropped on reopen
+        Files.write(file, new byte[] {0, 120, 1, 2}, StandardOpenOption.APPEND);
+        try (Tr34AuditJournal journal = new Tr34AuditJournal(file, 0, 1)) {
+            journal.append(Tr34AuditJournal.Record.create(Tr34AuditJournal.TokenType.KDH_CREDENTIAL,
+                    Tr34RandomToken.createNewRandom(), null, trustStore.getKdhCert(), null)).get();
+        }
+
+        try (Tr34AuditJournal.Reader reader = new Tr34AuditJournal.Reader(file)) {
+            Tr34AuditJournal.Record first = reader.next();
+            assertEquals(Tr34AuditJournal.TokenType.TWO_PASS_KEY, first.getType());
+            assertArrayEquals(Tr34CryptoUtils.sha256(keyToken.getEncoded()), first.getTokenDigest());
+            assertArrayEquals(Tr34CryptoUtils.sha256(Tr34CryptoUtils.getIssuerAndSerialNumber(krdCert).getEncoded()),
+                    first.getKrdDigest());
+            assertEquals(Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk(), first.getKeyHeader());
+
+            int unbinds = 0;
+            Tr34AuditJournal.Record record;
+            while ((record = reader.next()) != null && record.getType() == Tr34AuditJournal.TokenType.KDH_UNBIND) {
+                unbinds++;
+            }
+            assertEquals(64, unbinds);
+            assertEquals(Tr34AuditJournal.TokenType.KDH_CREDENTIAL, record.getType());
+            assertArrayEquals(new byte[32], record.getKrdDigest());
+            assertEquals(null, reader.next());
+        }
+    }
+
+    @Test
+    public void cloverAuditJournalWriteFailure() throws Exception {
+        Path file = Files.createTempDirectory("tr34-audit").resolve("audit");
+        X509Certificate kdhCert = CloverSampleTr34KeyStoreData.KDH_1.getKdhCert();
+        List<Tr34RandomToken> tokens = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tokens.add(Tr34RandomToken.createNewRandom());
+        }
+
+        FailingFileChannel[] failing = new FailingFileChannel[1];
+        try (Tr34AuditJournal journal = new Tr34AuditJournal(file, 0, 1,
+                channel -> failing[0] = new FailingFileChannel(channel))) {
+            journal.appendAndWait(Tr34AuditJournal.Record.create(Tr34AuditJournal.TokenType.KDH_CREDENTIAL,
+                    tokens.get(0), null, kdhCert, null));
+
+            // Half of the batch reaches the file before the write fails, it must not stay there
+            failing[0].failWrites = true;
+            try {
+                journal.appendAndWait(Tr34AuditJournal.Record.create(Tr34AuditJournal.TokenType.KDH_CREDENTIAL,
+                        tokens.get(1), null, kdhCert, null));
+                fail("Write failure not reported");
+            } catch (Tr34Exception expected) {
+            }
+            failing[0].failWrites = false;
+            journal.appendAndWait(Tr34AuditJournal.Record.create(Tr34AuditJournal.TokenType.KDH_CREDENTIAL,
+                    tokens.get(2), null, kdhCert, null));
+
+            // Once a failed batch cannot be rolled back every later record fails
+            failing[0].failWrites = true;
+            failing[0].failTruncate = true;
+            for (int i = 0; i < 2; i++) {
+                try {
+                    journal.appendAndWait(Tr34AuditJournal.Record.create(Tr34AuditJournal.TokenType.KDH_CREDENTIAL,
+                            tokens.get(3), null, kdhCert, null));
+                    fail("Write failure not reported");
+                } catch (Tr34Exception expected) {
+                }
+                failing[0].failWrites = false;
+            }
+        }
+
+        // Reopening drops the torn tail of the last batch only
+        new Tr34AuditJournal(file, 0, 1).close();
+        try (Tr34AuditJournal.Reader reader = new Tr34AuditJournal.Reader(file)) {
+            assertArrayEquals(Tr34CryptoUtils.sha256(tokens.get(0).getEncoded()), reader.next().getTokenDigest());
+            assertArrayEquals(Tr34CryptoUtils.sha256(tokens.get(2).getEncoded()), reader.next().getTokenDigest());
+            assertEquals(null, reader.next());
+        }
+    }
+
+    @Test
+    public void cloverCertificateRepository() throws Exception {
+        Path file = Files.createTempDirectory("tr34-certs").resolve("certs");
+        Tr34TokenFactory factory = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1);
+        IssuerAndSerialNumber krdIsn = Tr34CryptoUtils.getIssuerAndSerialNumber(krdCert);
+
+        try (Tr34CertificateRepository repository = new Tr34CertificateRepository(file, 1000)) {
+            X509Certificate leaf = repository.add(krd1Chain);
+            assertArrayEquals(krdCert.getEncoded(), leaf.getEncoded());
+            repository.add(krd1Chain);
+            repository.add(Collections.singletonList(krd1Chain.get(1)));
+            assertEquals(2, repository.size());
+            assertEquals(null, repository.get(Tr34CryptoUtils.getIssuerAndSerialNumber(
+                    CloverSampleTr34KeyStoreData.KDH_1.getKdhCert())));
+        }
+
+        try (Tr34CertificateRepository repository = new Tr34CertificateRepository(file, 1)) {
+            List<X509Certificate> chain = repository.getChain(krdIsn);
+            assertEquals(krd1Chain, chain);
+            assertEquals(krdCert.getSubjectX500Principal(), chain.get(0).getSubjectX500Principal());
+            assertEquals(krd1Chain.get(1), repository.getByFingerprint(Tr34CryptoUtils.sha256Fingerprint(krd1Chain.get(1))));
+
+            // Views feed the factory directly
+            Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+            Tr34KdhUnbindToken unbindToken = factory.generateKdhUnbindToken(randomToken, chain);
+            new Tr34TokenClient(CloverSampleTr34KeyStoreData.KDH_1).verifyKdhUnbindToken(unbindToken, randomToken, krdCert);
+        }
+    }
+
+    @Test
+    public void cloverByteBufferEncodeDecode() throws Exception {
+        Tr34TokenFactory factory = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1);
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        List<Tr34Object> tokens = Arrays.asList(
+                randomToken,
+                factory.generateTwoPassKeyToken(randomToken, krd1Chain, new byte[16]),
+                factory.generateKdhCredentialToken(Collections.emptyList(), Tr34CryptoUtils.createHoursFromNowDate(24)),
+                Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem),
+                factory.generateKdhUnbindToken(randomToken, krd1Chain),
+                factory.generateKdhRebindToken(randomToken, krd1Chain, CloverSampleTr34KeyStoreData.KDH_2.getKdhCert()));
+
+        for (ByteBuffer buffer : Arrays.asList(ByteBuffer.allocate(32 * 1024), ByteBuffer.allocateDirect(32 * 1024))) {
+            int total = 0;
+            for (Tr34Object token : tokens) {
+                assertEquals(token.getEncoded().length, token.getEncodedLength());
+                token.encodeTo(buffer);
+                total += token.getEncodedLength();
+                assertEquals(total, buffer.position());
+            }
+
+            buffer.flip();
+            assertArrayEquals(tokens.get(0).getEncoded(), Tr34RandomToken.decode(buffer).getEncoded());
+            assertArrayEquals(tokens.get(1).getEncoded(), Tr34TwoPassKeyToken.decode(buffer).getEncoded());
+            assertArrayEquals(tokens.get(2).getEncoded(), Tr34KdhCredentialToken.decode(buffer).getEncoded());
+            assertArrayEquals(tokens.get(3).getEncoded(), Tr34KrdCredentialToken.decode(buffer).getEncoded());
+            assertArrayEquals(tokens.get(4).getEncoded(), Tr34KdhUnbindToken.decode(buffer).getEncoded());
+            assertArrayEquals(tokens.get(5).getEncoded(), Tr34KdhRebindToken.decode(buffer).getEncoded());
+            assertFalse(buffer.hasRemaining());
+        }
+
+        ByteBuffer small = ByteBuffer.allocate(tokens.get(1).getEncodedLength() - 1);
+        try {
+            tokens.get(1).encodeTo(small);
+            fail("Encoded into a buffer too small");
+        } catch (BufferOverflowException expected) {
+            assertEquals(0, small.position());
+        }
+    }
+
+    @Test
+    public void cloverDerReader() throws Exception {
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        Tr34KrdCredentialToken krdToken = Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(randomToken.getEncodedLength() + krdToken.getEncodedLength());
+        randomToken.encodeTo(buffer);
+        krdToken.encodeTo(buffer);
+        buffer.flip();
+
+        Tr34DerReader reader = new Tr34DerReader();
+        reader.readRandomToken(buffer);
+        assertEquals(ByteBuffer.wrap(randomToken.getRandomNumber().getOctets()), reader.getNonce());
+
+        reader.readKrdCredentialToken(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(ByteBuffer.wrap(krdToken.getKrdCertificate().getEncoded()), reader.getCertificate());
+        IssuerAndSerialNumber isn = Tr34CryptoUtils.getIssuerAndSerialNumber(krdToken.getKrdCertificate());
+        assertEquals(isn, reader.getIssuerAndSerialNumber());
+        assertArrayEquals(Tr34CryptoUtils.sha256(isn.getEncoded()), reader.digestIssuerAndSerialNumber());
+
+        // Same rejections as the full decoders
+        Tr34KdhCredentialToken kdhToken = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1)
+                .generateKdhCredentialToken(Collections.emptyList(), Tr34CryptoUtils.createHoursFromNowDate(24));
+        try {
+            reader.readKrdCredentialToken(ByteBuffer.wrap(kdhToken.getEncoded()));
+            fail("KDH credential token accepted");
+        } catch (Tr34Exception expected) {
+        }
+
+        byte[] shortNonce = Tr34RandomToken.create(new byte[4]).getEncoded();
+        try {
+            reader.readRandomToken(ByteBuffer.wrap(shortNonce));
+            fail("Short nonce accepted");
+        } catch (Tr34Exception expected) {
+        }
+
+        byte[] truncated = Arrays.copyOf(randomToken.getEncoded(), randomToken.getEncodedLength() - 1);
+        try {
+            reader.readRandomToken(ByteBuffer.wrap(truncated));
+            fail("Truncated token accepted");
+        } catch (Tr34Exception expected) {
+        }
+    }
+
+    @Test
+    public void cloverTwoPassKeyTokenTemplate() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TwoPassKeyTokenTemplate template = new Tr34TwoPassKeyTokenTemplate(trustStore.getKdhKeyStoreData());
+        X509Certificate krdCert = krd1Chain.get(0);
+        String header = Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk();
+        byte[] key = new byte[16];
+        new Random().nextBytes(key);
+
+        Tr34KeyBlock keyBlock = Tr34KeyBlock.create(header, key, trustStore.getKdhCert());
+        try (Tr34KeyMaterial keyMaterial = Tr34KeyMaterial.copyOf(key);
+             Tr34KeyMaterial encodedKeyBlock = template.encodeKeyBlock(header, keyMaterial)) {
+            assertEquals(ByteBuffer.wrap(keyBlock.getEncoded()), encodedKeyBlock.buffer());
+        }
+
+        // Nonce length changes the DER order of the signed attributes
+        for (int nonceLength : new int[] { 16, 8 }) {
+            byte[] nonce = new byte[nonceLength];
+            new Random().nextBytes(nonce);
+            Tr34RandomToken randomToken = Tr34RandomToken.create(nonce);
+            Tr34TwoPassKeyToken reference = Tr34TwoPassKeyToken.create(randomToken, krdCert, keyBlock,
+                    trustStore.getKdhKeyStoreData());
+
+            Date signingTime = Time.getInstance(new AttributeTable(reference.getSignerInfo().getAuthenticatedAttributes())
+                    .get(CMSAttributes.signingTime).getAttrValues().getObjectAt(0)).getDate();
+            byte[] envelope = ASN1OctetString.getInstance(
+                    reference.getSignedData().getEncapContentInfo().getContent()).getOctets();
+
+            byte[] encoded = template.encode(signingTime, randomToken, header, envelope);
+            assertArrayEquals(reference.getEncoded(), encoded);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length + 4);
+            buffer.position(4);
+            assertEquals(encoded.length, template.encodeTo(buffer, signingTime, randomToken, header, envelope));
+            buffer.flip().position(4);
+            assertEquals(ByteBuffer.wrap(encoded), buffer);
+        }
+
+        // Factory output still verifies and decrypts
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        Tr34TwoPassKeyToken token = new Tr34TokenFactory(trustStore).generateTwoPassKeyToken(randomToken, krd1Chain, key);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        client.verifyTwoPassKeyTokenResponse(token, randomToken);
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+        assertEquals(keyBlock, client.decrypt(token, krdPrivateKey));
+
+        // Factory tokens are encoded from their bytes, decoding them gives the same encoding
+        Tr34TwoPassKeyToken lazy = new Tr34TokenFactory(trustStore).generateTwoPassKeyToken(randomToken, krd1Chain, key);
+        ByteBuffer buffer = ByteBuffer.allocate(lazy.getEncodedLength());
+        lazy.encodeTo(buffer);
+        assertArrayEquals(lazy.getEncoded(), buffer.array());
+        assertArrayEquals(lazy.getEncoded(), Tr34TwoPassKeyToken.decode(lazy.getEncoded()).getEncoded());
+        assertEquals(randomToken.getRandomNumber(), lazy.getRandomNonce());
+    }
+
+    /**
+     * Opt-in, run with -Dtr34.benchmark=true. Compares the bytes allocated per two-pass key token by
+     * the BouncyCastle CMS path and by the factory's template path, both including key block encoding,
+     * envelope encryption and signing.
+     */
+    @Test
+    public void cloverTwoPassKeyTokenAllocation() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("tr34.benchmark"));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        X509Certificate krdCert = krd1Chain.get(0);
+        String header = Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk();
+        byte[] key = new byte[16];
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+
+        Callable<byte[]> cms = () -> Tr34TwoPassKeyToken.create(randomToken, krdCert,
+                Tr34KeyBlock.create(header, key, trustStore.getKdhCert()), trustStore.getKdhKeyStoreData()).getEncoded();
+        Callable<byte[]> template = () -> factory.createTwoPassKeyToken(randomToken, krdCert, key).getEncoded();
+
+        int iterations = 500;
+        long[] bytesPerToken = new long[2];
+        long[] nanosPerToken = new long[2];
+        List<Callable<byte[]>> paths = Arrays.asList(cms, template);
+        for (int p = 0; p < paths.size(); p++) {
+            for (int i = 0; i < iterations; i++) {
+                paths.get(p).call();
+            }
+            long thread = Thread.currentThread().getId();
+            long allocated = allocations.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                paths.get(p).call();
+            }
+            nanosPerToken[p] = (System.nanoTime() - start) / iterations;
+            bytesPerToken[p] = (allocations.getThreadAllocatedBytes(thread) - allocated) / iterations;
+        }
+        System.out.printf("Two-pass key token, CMS: %d bytes %d us, template: %d bytes %d us%n",
+                bytesPerToken[0], nanosPerToken[0] / 1000, bytesPerToken[1], nanosPerToken[1] / 1000);
+        assertTrue(bytesPerToken[1] < bytesPerToken[0]);
+    }
+
+    @Test
+    public void cloverKeyMaterial() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+
+        byte[] tdesKey = new byte[24];
+        new Random().nextBytes(tdesKey);
+        ByteBuffer hsmExport = ByteBuffer.allocateDirect(tdesKey.length);
+        hsmExport.put(tdesKey).flip();
+
+        Tr34KeyMaterial key = Tr34KeyMaterial.copyOf(hsmExport);
+        ByteBuffer view = key.buffer();
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        Tr34TwoPassKeyToken twoPass = factory.generateTwoPassKeyToken(randomToken, krd1Chain, key);
+        Tr34OnePassKeyToken onePass = factory.generateOnePassKeyToken(krd1Chain, key);
+        assertFalse(key.isDestroyed());
+        key.close();
+        key.close();
+
+        // Zeroed on close
+        assertTrue(key.isDestroyed());
+        assertEquals(ByteBuffer.wrap(new byte[24]), view);
+        try {
+            key.buffer();
+            fail("Destroyed key material readable");
+        } catch (Tr34Exception expected) {
+        }
+
+        Tr34KeyBlock expected = Tr34KeyBlock.create(Tr34KeyBlockHeaderFactory.createHeaderForTdesTr31Kbk(), tdesKey,
+                trustStore.getKdhCert());
+        client.verifyTwoPassKeyTokenResponse(twoPass, randomToken);
+        assertEquals(expected, client.decrypt(twoPass, krdPrivateKey));
+        assertEquals(expected, client.decrypt(onePass, krdPrivateKey));
+
+        // Larger than a pool slot
+        try (Tr34KeyMaterial large = Tr34KeyMaterial.copyOf(new byte[Tr34KeyMaterial.SLOT_SIZE + 1])) {
+            assertEquals(Tr34KeyMaterial.SLOT_SIZE + 1, large.buffer().remaining());
+        }
+    }
+
+    @Test
+    public void cloverEntropyService() throws Exception {
+        Tr34EntropyService entropy = new Tr34EntropyService(3, 0, 64);
+        assertEquals(4, entropy.getStripeCount());
+
+        // Prefetched nonces from concurrent threads never repeat
+        List<CompletableFuture<List<ByteBuffer>>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                List<ByteBuffer> nonces = new ArrayList<>();
+                for (int i = 0; i < 500; i++) {
+                    nonces.add(ByteBuffer.wrap(entropy.nextNonce(16)));
+                }
+                return nonces;
+            }));
+        }
+        Set<ByteBuffer> unique = new HashSet<>();
+        for (CompletableFuture<List<ByteBuffer>> future : futures) {
+            unique.addAll(future.get());
+        }
+        assertEquals(2000, unique.size());
+
+        entropy.reseed();
+        assertEquals(4, entropy.getReseedCount());
+        assertEquals(100, entropy.nextNonce(100).length);
+
+        Tr34EntropyService reseeding = new Tr34EntropyService(1, 1, 0);
+        reseeding.nextNonce(16);
+        Thread.sleep(5);
+        reseeding.nextNonce(16);
+        assertTrue(reseeding.getReseedCount() > 0);
+
+        // Generated keys work end to end, TDES keys have odd parity
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore).withEntropyService(entropy);
+        try (Tr34KeyMaterial tdesKey = factory.generateSymmetricKey(24);
+             Tr34KeyMaterial aesKey = factory.generateSymmetricKey(16)) {
+            ByteBuffer bytes = tdesKey.buffer();
+            while (bytes.hasRemaining()) {
+                assertEquals(1, Integer.bitCount(bytes.get() & 0xff) & 1);
+            }
+            assertEquals(16, aesKey.getLength());
+
+            Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+            Tr34TwoPassKeyToken token = factory.generateTwoPassKeyToken(randomToken, krd1Chain, tdesKey);
+            new Tr34TokenClient(trustStore).verifyTwoPassKeyTokenResponse(token, randomToken);
+        }
+        try {
+            factory.generateSymmetricKey(32);
+            fail("Unsupported key length accepted");
+        } catch (Tr34Exception expected) {
+        }
+    }
+
+    @Test
+    public void cloverRecipientCache() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34RecipientCache cache = new Tr34RecipientCache(1);
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore).withRecipientCache(cache);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+
+        byte[] key = new byte[16];
+        new Random().nextBytes(key);
+        Tr34KeyBlock expected = Tr34KeyBlock.create(Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk(), key,
+                trustStore.getKdhCert());
+        for (int i = 0; i < 3; i++) {
+            Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+            Tr34TwoPassKeyToken token = factory.generateTwoPassKeyToken(randomToken, krd1Chain, key);
+            client.verifyTwoPassKeyTokenResponse(token, randomToken);
+            assertEquals(expected, client.decrypt(token, krdPrivateKey));
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+
+        // Evicted by another recipient
+        cache.get(trustStore.getKdhCert());
+        assertEquals(1, cache.size());
+        cache.get(krd1Chain.get(0));
+        assertEquals(3, cache.getMissCount());
+
+        // Another instance of the certificate finds the entry of the interned one
+        X509Certificate copy = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(krd1Chain.get(0).getEncoded()));
+        assertTrue(cache.get(copy) == cache.get(krd1Chain.get(0)));
+        assertEquals(3, cache.getMissCount());
+
+        // Still one entry after the certificate cache evicted the interned instance
+        Tr34CertificateCache previous = Tr34CertificateCache.getDefault();
+        Tr34CertificateCache.setDefault(new Tr34CertificateCache(1));
+        try {
+            Tr34RecipientContext context = cache.get(krd1Chain.get(0));
+            Tr34CertificateCache.getDefault().intern(trustStore.getKdhCert());
+            assertTrue(context == cache.get(copy));
+            assertEquals(1, cache.size());
+            assertEquals(3, cache.getMissCount());
+        } finally {
+            Tr34CertificateCache.setDefault(previous);
+        }
+    }
+
+    @Test
+    public void cloverCertificateCache() throws Exception {
+        Tr34CertificateCache previous = Tr34CertificateCache.getDefault();
+        Tr34CertificateCache cache = new Tr34CertificateCache(2);
+        Tr34CertificateCache.setDefault(cache);
+        try {
+            X509Certificate pemCert = Tr34CryptoUtils.parseCert(CloverSampleTr34KeyStoreData.TR34_KDH_2_Cert_Pem);
+            X509Certificate derCert = Tr34CryptoUtils.parseCert(pemCert.getEncoded());
+            assertTrue(pemCert == derCert);
+            assertEquals(1, cache.getMissCount());
+            assertEquals(1, cache.getHitCount());
+
+            // Rebind tokens share the interned new KDH certificate
+            Tr34TokenFactory factory = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1);
+            byte[] encoded = factory.generateKdhRebindToken(Tr34RandomToken.createNewRandom(), krd1Chain, pemCert)
+                    .getEncoded();
+            assertTrue(pemCert == Tr34KdhRebindToken.decode(encoded).getNewKdhCert());
+            assertTrue(pemCert == Tr34KdhRebindToken.decode(encoded).getNewKdhCert());
+
+            // Trailing bytes would give the same certificate another fingerprint
+            byte[] trailing = Arrays.copyOf(pemCert.getEncoded(), pemCert.getEncoded().length + 2);
+            try {
+                Tr34CryptoUtils.parseCert(trailing);
+                fail("Trailing data accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+
+            Tr34CertificateCache.Interned interned = cache.intern(pemCert);
+            assertTrue(pemCert == interned.getCertificate());
+            assertEquals(ByteBuffer.wrap(pemCert.getEncoded()), interned.getEncoded());
+            assertArrayEquals(Tr34CryptoUtils.sha256Fingerprint(pemCert), interned.getFingerprint());
+            assertEquals(Tr34CryptoUtils.getIssuerAndSerialNumber(pemCert), interned.getIssuerAndSerialNumber());
+            assertEquals(pemCert.getPublicKey(), interned.getPublicKey());
+
+            // Bounded, evicted certificates parse again
+            cache.intern(krd1Chain.get(0));
+            cache.intern(krd1Chain.get(1));
+            assertEquals(2, cache.size());
+            assertFalse(pemCert == Tr34CryptoUtils.parseCert(CloverSampleTr34KeyStoreData.TR34_KDH_2_Cert_Pem));
+        } finally {
+            Tr34CertificateCache.setDefault(previous);
+        }
+    }
+
+    @Test
+    public void cloverWireTwoPassKeyToken() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+        ByteBuffer randomTokenIn = ByteBuffer.wrap(randomToken.getEncoded());
+        ByteBuffer credentialIn = ByteBuffer.wrap(
+                Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem).getEncoded());
+
+        byte[] key = new byte[16];
+        new Random().nextBytes(key);
+        ByteBuffer out = ByteBuffer.allocateDirect(4096);
+        out.position(10);
+        int length;
+        try (Tr34KeyMaterial keyMaterial = Tr34KeyMaterial.copyOf(key)) {
+            length = factory.generateTwoPassKeyToken(randomTokenIn, credentialIn, keyMaterial, out);
+
+            // Too small, nothing written
+            ByteBuffer small = ByteBuffer.allocate(length - 1);
+            try {
+                factory.generateTwoPassKeyToken(ByteBuffer.wrap(randomToken.getEncoded()),
+                        ByteBuffer.wrap(Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem).getEncoded()),
+                        keyMaterial, small);
+                fail("Token written to a small buffer");
+            } catch (BufferOverflowException expected) {
+                assertEquals(0, small.position());
+            }
+        }
+        assertFalse(randomTokenIn.hasRemaining());
+        assertFalse(credentialIn.hasRemaining());
+        assertEquals(10 + length, out.position());
+
+        out.flip().position(10);
+        Tr34TwoPassKeyToken token = Tr34TwoPassKeyToken.decode(out);
+        client.verifyTwoPassKeyTokenResponse(token, randomToken);
+        assertEquals(Tr34KeyBlock.create(Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk(), key,
+                trustStore.getKdhCert()), client.decrypt(token, krdPrivateKey));
+    }
+
+    @Test
+    public void cloverTokenCodec() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        X509Certificate kdh1Cert = trustStore.getKdhCert();
+        X509Certificate kdh2Cert = Tr34CryptoUtils.parseCert(CloverSampleTr34KeyStoreData.TR34_KDH_2_Cert_Pem);
+        Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+
+        List<Tr34Object> tokens = Arrays.asList(
+                randomToken,
+                Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem),
+                factory.generateKdhCredentialToken(Collections.emptyList(), Tr34CryptoUtils.createHoursFromNowDate(24)),
+                factory.generateTwoPassKeyToken(randomToken, krd1Chain, new byte[16]),
+                factory.generateOnePassKeyToken(krd1Chain, new byte[16]),
+                factory.generateKdhRebindToken(randomToken, krd1Chain, kdh2Cert),
+                factory.generateKdhUnbindToken(randomToken, krd1Chain),
+                factory.generateCaRebindToken(krd1Chain, kdh1Cert, kdh2Cert),
+                factory.generateCaUnbindToken(krd1Chain, kdh1Cert));
+
+        Tr34TokenCodec codec = Tr34TokenCodec.createDefault();
+        assertEquals(9, codec.getRegisteredLabels().size());
+        for (Tr34Object token : tokens) {
+            String label = new Tr34PEMGenerator(token).generate().getType();
+            byte[] der = token.getEncoded();
+
+            assertEquals(label, codec.classify(der));
+            assertEquals(token.getClass(), codec.decode(der).getClass());
+            assertEquals(token.getClass(), codec.decode(Tr34PEMGenerator.encodeToPem(token)).getClass());
+
+            ByteBuffer buffer = ByteBuffer.allocate(der.length + 1);
+            buffer.put(der).put((byte) 0).flip();
+            assertEquals(label, codec.classify(buffer));
+            assertEquals(0, buffer.position());
+            assertArrayEquals(der, codec.decode(buffer).getEncoded());
+            assertEquals(der.length, buffer.position());
+        }
+
+        // Unknown PEM labels fall back to the DER contents
+        String pem = Tr34PEMGenerator.encodeToPem(randomToken).replace(Tr34PEMGenerator.TR34_RANDOM_TOKEN, "NONCE");
+        assertTrue(codec.decode(pem, Tr34RandomToken.class).getRandomNumber()
+                .equals(randomToken.getRandomNumber()));
+        try {
+            codec.decode(tokens.get(1).getEncoded(), Tr34RandomToken.class);
+            fail("Wrong class accepted");
+        } catch (Tr34Exception expected) {
+        }
+
+        // Custom types are matched in registration order
+        Tr34TokenCodec custom = new Tr34TokenCodec()
+                .register("NONCE", s -> Tr34ObjectIdentifiers.randomNonce.equals(s.getContentType()),
+                        Tr34RandomToken::decode);
+        assertEquals("NONCE", custom.classify(randomToken.getEncoded()));
+        try {
+            custom.classify(tokens.get(1).getEncoded());
+            fail("Unregistered type accepted");
+        } catch (Tr34Exception expected) {
+        }
+        try {
+            codec.classify(new byte[] { 0x30, 0x05, 0x06, 0x03 });
+            fail("Truncated message accepted");
+        } catch (Tr34Exception expected) {
+        }
+
+        // Elements must fit in their enclosing element, not just in the buffer
+        byte[] nonceOid = Tr34ObjectIdentifiers.randomNonce.getEncoded();
+        byte[] overrun = new byte[2 + nonceOid.length];
+        overrun[0] = 0x30;
+        overrun[1] = 2;
+        System.arraycopy(nonceOid, 0, overrun, 2, nonceOid.length);
+        try {
+            custom.classify(overrun);
+            fail("Element past its enclosing element accepted");
+        } catch (Tr34Exception expected) {
+        }
+    }
+
+    @Test
+    public void cloverPemStreamReader() throws Exception {
+        List<Tr34Object> tokens = new ArrayList<>();
+        StringBuilder bulk = new StringBuilder("Exported tokens\n");
+        for (int i = 0; i < 200; i++) {
+            Tr34Object token = i % 4 == 0 ? Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem)
+                    : Tr34RandomToken.createNewRandom();
+            tokens.add(token);
+            String pem = Tr34PEMGenerator.encodeToPem(token);
+            bulk.append(i % 2 == 0 ? pem : pem.replace("\n", "\r\n")).append("# token ").append(i).append('\n');
+        }
+
+        Path file = Files.createTempFile("tr34", ".pem");
+        try {
+            Files.write(file, bulk.toString().getBytes(StandardCharsets.US_ASCII));
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                 Tr34PemStreamReader reader = new Tr34PemStreamReader(channel)) {
+                for (Tr34Object token : tokens) {
+                    Tr34PemStreamReader.Block block = reader.next();
+                    assertEquals(new Tr34PEMGenerator(token).generate().getType(), block.getLabel());
+                    assertEquals(ByteBuffer.wrap(token.getEncoded()), block.getContents());
+                    block.release();
+                }
+                assertEquals(null, reader.next());
+                assertEquals(tokens.size(), reader.getBlockCount());
+            }
+
+            List<Tr34Object> decoded = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try (Tr34PemStreamReader reader = new Tr34PemStreamReader(Files.newInputStream(file))) {
+                assertEquals(tokens.size(), reader.decodeAll(Tr34TokenCodec.createDefault(), executor, 16, decoded::add));
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(tokens.size(), decoded.size());
+            for (int i = 0; i < tokens.size(); i++) {
+                assertArrayEquals(tokens.get(i).getEncoded(), decoded.get(i).getEncoded());
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        // A body that was not wrapped decodes like a wrapped one
+        Tr34Object krdToken = Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem);
+        String body = Base64.getEncoder().encodeToString(krdToken.getEncoded());
+        assertTrue(body.length() > 1024);
+        String label = new Tr34PEMGenerator(krdToken).generate().getType();
+        String unwrapped = "-----BEGIN " + label + "-----\r\n" + body + "\r\n-----END " + label + "-----\r\n";
+        try (Tr34PemStreamReader reader = new Tr34PemStreamReader(
+                new ByteArrayInputStream(unwrapped.getBytes(StandardCharsets.US_ASCII)))) {
+            assertEquals(ByteBuffer.wrap(krdToken.getEncoded()), reader.next().getContents());
+            assertEquals(null, reader.next());
+        }
+
+        String pem = Tr34PEMGenerator.encodeToPem(Tr34RandomToken.createNewRandom());
+        char[] longHeader = new char[2000];
+        Arrays.fill(longHeader, 'A');
+        for (String malformed : Arrays.asList(pem.replace("-----END", "-----END X"),
+                pem.replaceFirst("\n", "\nComment: " + new String(longHeader) + "\n"),
+                pem.substring(0, pem.indexOf("-----END")), pem.replaceFirst("\n[A-Za-z0-9]", "\n!"))) {
+            try (Tr34PemStreamReader reader = new Tr34PemStreamReader(
+                    new ByteArrayInputStream(malformed.getBytes(StandardCharsets.US_ASCII)))) {
+                reader.next();
+                fail("Malformed PEM accepted");
+            } catch (Tr34Exception expected) {
+            }
+        }
+    }
+
+    @Test
+    public void cloverPemStreamWriter() throws Exception {
+        Tr34TokenFactory factory = new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1);
+        List<Tr34Object> tokens = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+            Tr34Object token = i % 5 == 0 ? factory.generateTwoPassKeyToken(randomToken, krd1Chain, new byte[16])
+                    : randomToken;
+            tokens.add(token);
+            expected.append(Tr34PEMGenerator.encodeToPem(token));
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (Tr34PemStreamWriter writer = new Tr34PemStreamWriter(stream)) {
+            for (Tr34Object token : tokens) {
+                writer.write(token);
+            }
+            assertEquals(tokens.size(), writer.getObjectCount());
+        }
+        assertEquals(expected.toString(), new String(stream.toByteArray(), StandardCharsets.US_ASCII));
+
+        Path file = Files.createTempFile("tr34", ".pem");
+        try {
+            try (Tr34PemStreamWriter writer = new Tr34PemStreamWriter(
+                    FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                for (Tr34Object token : tokens) {
+                    writer.write(token);
+                }
+            }
+            try (Tr34PemStreamReader reader = new Tr34PemStreamReader(FileChannel.open(file, StandardOpenOption.READ))) {
+                for (Tr34Object token : tokens) {
+                    Tr34PemStreamReader.Block block = reader.next();
+                    assertEquals(ByteBuffer.wrap(token.getEncoded()), block.getContents());
+                    block.release();
+                }
+                assertEquals(null, reader.next());
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        for (Tr34Object token : tokens.subList(0, 2)) {
+            String pem = Tr34PEMGenerator.encodeToPem(token);
+            int length = Tr34PemStreamWriter.getPemLength(token);
+            assertEquals(pem.length(), length);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length + 2);
+            buffer.put((byte) '#');
+            assertEquals(length, Tr34PemStreamWriter.encodeTo(token, buffer));
+            assertEquals(length + 1, buffer.position());
+            byte[] written = new byte[length];
+            ((ByteBuffer) buffer.position(1)).get(written);
+            assertEquals(pem, new String(written, StandardCharsets.US_ASCII));
+
+            try {
+                Tr34PemStreamWriter.encodeTo(token, ByteBuffer.allocate(length - 1));
+                fail("Short buffer accepted");
+            } catch (BufferOverflowException expectedOverflow) {
+            }
+        }
+    }
+
+    @Test
+    public void cloverBatchProcessorResume() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+        byte[] credential = Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem).getEncoded();
+
+        List<Tr34RandomToken> randomTokens = new ArrayList<>();
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+            randomTokens.add(randomToken);
+            requests.write(randomToken.getEncoded());
+            requests.write(credential);
+        }
+
+        Path dir = Files.createTempDirectory("tr34batch");
+        Path input = dir.resolve("requests.der");
+        Path output = dir.resolve("tokens.out");
+        Files.write(input, requests.toByteArray());
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            // Crash in the third chunk, the first two stay committed
+            AtomicLong keys = new AtomicLong();
+            Tr34BatchProcessor crashing = new Tr34BatchProcessor(factory, executor, record -> {
+                if (record == 7) {
+                    throw new IllegalStateException("HSM unavailable");
+                }
+                keys.incrementAndGet();
+                return Tr34KeyMaterial.copyOf(batchKey(record));
+            }).withChunkSize(3).withMapWindowSize(4096);
+            try {
+                crashing.process(input, output);
+                fail("Failure not reported");
+            } catch (Tr34Exception expected) {
+                assertTrue(expected.getMessage().contains("record 7"));
+            }
+
+            keys.set(0);
+            Tr34BatchProcessor.Result result = new Tr34BatchProcessor(factory, executor, record -> {
+                keys.incrementAndGet();
+                return Tr34KeyMaterial.copyOf(batchKey(record));
+            }).withChunkSize(3).withMapWindowSize(4096).process(input, output);
+            assertEquals(10, result.getRecordCount());
+            assertEquals(6, result.getResumedRecordCount());
+            assertEquals(4, keys.get());
+            assertEquals(Files.size(output), result.getOutputLength());
+            assertEquals(80, Files.size(Tr34BatchProcessor.indexFile(output)));
+
+            try (FileChannel out = FileChannel.open(output, StandardOpenOption.READ);
+                 FileChannel index = FileChannel.open(Tr34BatchProcessor.indexFile(output), StandardOpenOption.READ)) {
+                for (int i = 0; i < randomTokens.size(); i++) {
+                    Tr34TwoPassKeyToken token = Tr34TwoPassKeyToken.decode(Tr34BatchProcessor.readRecord(out, index, i));
+                    client.verifyTwoPassKeyTokenResponse(token, randomTokens.get(i));
+                    assertEquals(Tr34KeyBlock.create(Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk(),
+                            batchKey(i), trustStore.getKdhCert()), client.decrypt(token, krdPrivateKey));
+                }
+            }
+
+            // Complete, nothing left to do
+            Tr34BatchProcessor processor = new Tr34BatchProcessor(factory, executor,
+                    record -> Tr34KeyMaterial.copyOf(batchKey(record)));
+            assertEquals(10, processor.process(input, output).getResumedRecordCount());
+
+            // Another input of the same size must not resume partway through it
+            byte[] other = requests.toByteArray();
+            other[other.length - credential.length - 3] ^= 1;
+            Files.write(input, other);
+            try {
+                processor.process(input, output);
+                fail("Checkpoint of another input accepted");
+            } catch (Tr34Exception expected) {
+                assertTrue(expected.getMessage().contains("different input"));
+            }
+        } finally {
+            executor.shutdown();
+            for (Path file : Arrays.asList(input, output, Tr34BatchProcessor.indexFile(output),
+                    Tr34BatchProcessor.checkpointFile(output))) {
+                Files.deleteIfExists(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static byte[] batchKey(long record) {
+        byte[] key = new byte[16];
+        Arrays.fill(key, (byte) (record + 1));
+        return key;
+    }
+
+    @Test
+    public void cloverKdhServerLoopback() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        PrivateKey krdPrivateKey = Tr34CryptoUtils.parsePrivateKey(CloverSampleTr34KeyStoreData.TR34_KRD_1_PrivateKey_Pem);
+        Tr34KrdCredentialToken credential = Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem);
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        byte[] key = new byte[16];
+        new Random().nextBytes(key);
+
+        // Key tokens over the default routes
+        try {
+            new Tr34KdhServer(factory).start(loopback);
+            fail("Default routes started without a key supplier");
+        } catch (IllegalStateException expected) {
+        }
+        List<X509Certificate> keyRecipients = Collections.synchronizedList(new ArrayList<>());
+        try (Tr34KdhServer server = new Tr34KdhServer(factory).withWorkers(2)
+                .withKeySupplier(krd -> {
+                    keyRecipients.add(krd);
+                    return Tr34KeyMaterial.copyOf(key);
+                })) {
+            InetSocketAddress address = server.start(loopback);
+            List<Tr34RandomToken> randomTokens = new ArrayList<>();
+            List<SocketChannel> channels = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+                randomTokens.add(randomToken);
+                SocketChannel channel = SocketChannel.open(address);
+                channels.add(channel);
+                writeFrame(channel, Tr34KdhServer.encodeRequest(randomToken, credential));
+            }
+            Tr34KeyBlock expectedKeyBlock = Tr34KeyBlock.create(Tr34KeyBlockHeaderFactory.createHeaderForAesTr31Kbk(),
+                    key, trustStore.getKdhCert());
+            for (int i = 0; i < channels.size(); i++) {
+                ByteBuffer response = readFrame(channels.get(i));
+                assertEquals(Tr34KdhServer.STATUS_OK, response.get());
+                Tr34TwoPassKeyToken token = Tr34TwoPassKeyToken.decode(response);
+                client.verifyTwoPassKeyTokenResponse(token, randomTokens.get(i));
+                assertEquals(expectedKeyBlock, client.decrypt(token, krdPrivateKey));
+            }
+
+            SocketChannel channel = channels.get(0);
+            writeFrame(channel, Tr34KdhServer.encodeRequest(credential));
+            ByteBuffer response = readFrame(channel);
+            assertEquals(Tr34KdhServer.STATUS_OK, response.get());
+            assertEquals(expectedKeyBlock, client.decrypt(Tr34OnePassKeyToken.decode(response), krdPrivateKey));
+            assertEquals(channels.size() + 1, keyRecipients.size());
+            for (X509Certificate recipient : keyRecipients) {
+                assertEquals(krdCert, recipient);
+            }
+
+            // No route for KDH tokens, the connection stays usable
+            writeFrame(channel, Tr34KdhServer.encodeRequest(
+                    factory.generateKdhUnbindToken(randomTokens.get(0), krd1Chain)));
+            response = readFrame(channel);
+            assertEquals(Tr34KdhServer.STATUS_ERROR, response.get());
+            assertEquals("Request failed", StandardCharsets.UTF_8.decode(response).toString());
+            assertEquals(1, server.getErrorCount());
+
+            // Oversized frames close the connection
+            writeFrame(channel, (ByteBuffer) ByteBuffer.allocate(4).putInt(1 << 20).flip());
+            assertEquals(null, readFrame(channel));
+            for (SocketChannel c : channels) {
+                c.close();
+            }
+        }
+
+        // Many concurrent terminals against a cheap route, one more than allowed is refused
+        assertConcurrentTerminals(factory, 200);
+
+        // Requests beyond the pending limit are answered busy
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (Tr34KdhServer server = new Tr34KdhServer(factory).withWorkers(1).withMaxPendingRequests(1)
+                .withKeySupplier(krd -> Tr34KeyMaterial.copyOf(key))
+                .withHandler(Tr34PEMGenerator.TR34_RANDOM_TOKEN, request -> {
+                    entered.countDown();
+                    release.await();
+                    return request;
+                })) {
+            InetSocketAddress address = server.start(loopback);
+            try (SocketChannel first = SocketChannel.open(address);
+                 SocketChannel second = SocketChannel.open(address)) {
+                writeFrame(first, Tr34KdhServer.encodeRequest(Tr34RandomToken.createNewRandom()));
+                assertTrue(entered.await(10, TimeUnit.SECONDS));
+                writeFrame(second, Tr34KdhServer.encodeRequest(Tr34RandomToken.createNewRandom()));
+                assertEquals(Tr34KdhServer.STATUS_BUSY, readFrame(second).get());
+                release.countDown();
+                assertEquals(Tr34KdhServer.STATUS_OK, readFrame(first).get());
+                assertEquals(1, server.getBusyCount());
+            }
+        }
+    }
+
+    /**
+     * Opt-in, run with -Dtr34.loadTest=true. Each terminal holds two file descriptors, the open file
+     * limit must allow a few thousand more than the default 1024.
+     */
+    @Test
+    public void cloverKdhServerLoad() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("tr34.loadTest"));
+        assertConcurrentTerminals(new Tr34TokenFactory(CloverSampleTr34KeyStoreData.KDH_1), 3000);
+    }
+
+    /**
+     * Serves the terminals concurrently up to the connection limit, one more is refused.
+     */
+    private static void assertConcurrentTerminals(Tr34TokenFactory factory, int terminals) throws Exception {
+        try (Tr34KdhServer server = new Tr34KdhServer(factory).withMaxConnections(terminals)
+                .withKeySupplier(krd -> Tr34KeyMaterial.copyOf(new byte[16]))
+                .withHandler(Tr34PEMGenerator.TR34_RANDOM_TOKEN, request -> request)) {
+            InetSocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            List<SocketChannel> channels = new ArrayList<>();
+            List<ByteBuffer> requests = new ArrayList<>();
+            try {
+                for (int i = 0; i < terminals; i++) {
+                    SocketChannel channel = SocketChannel.open(address);
+                    channels.add(channel);
+                    ByteBuffer request = Tr34KdhServer.encodeRequest(Tr34RandomToken.createNewRandom());
+                    requests.add(request.duplicate());
+                    writeFrame(channel, request);
+                }
+                try (SocketChannel refused = SocketChannel.open(address)) {
+                    assertEquals(null, readFrame(refused));
+                }
+                for (int i = 0; i < terminals; i++) {
+                    ByteBuffer response = readFrame(channels.get(i));
+                    assertEquals(Tr34KdhServer.STATUS_OK, response.get());
+                    assertEquals(((ByteBuffer) requests.get(i).position(4)).slice(), response);
+                }
+                assertEquals(terminals, server.getConnectionCount());
+                assertEquals(terminals, server.getResponseCount());
+                assertEquals(1, server.getRefusedCount());
+            } finally {
+                for (SocketChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static void writeFrame(SocketChannel channel, ByteBuffer frame) throws Exception {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Reads a response frame, null if the server closed the connection.
+     */
+    private static ByteBuffer readFrame(SocketChannel channel) throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) {
+                return null;
+            }
+        }
+        ByteBuffer frame = ByteBuffer.allocate(header.getInt(0));
+        while (frame.hasRemaining()) {
+            if (channel.read(frame) < 0) {
+                return null;
+            }
+        }
+        frame.flip();
+        return frame;
+    }
+
+    @Test
+    public void cloverCampaignEngineResume() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+        Tr34TokenClient client = new Tr34TokenClient(trustStore);
+        X509Certificate oldKdhCert = trustStore.getKdhCert();
+        X509Certificate newKdhCert = Tr34CryptoUtils.parseCert(CloverSampleTr34KeyStoreData.TR34_KDH_2_Cert_Pem);
+        List<X509Certificate> devices = Collections.nCopies(10, krdCert);
+
+        Path dir = Files.createTempDirectory("tr34campaign");
+        Tr34SigningScheduler scheduler = new Tr34SigningScheduler(factory, 2, 16, 4, 1);
+        try {
+            // The device list fails while the third chunk is read, the first two stay committed
+            Iterable<X509Certificate> failing = () -> new Iterator<X509Certificate>() {
+                int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < devices.size();
+                }
+
+                @Override
+                public X509Certificate next() {
+                    if (next == 7) {
+                        throw new IllegalStateException("Device list unavailable");
+                    }
+                    return devices.get(next++);
+                }
+            };
+            try {
+                Tr34CampaignEngine.rebind(factory, oldKdhCert, newKdhCert).withShards(4).withChunkSize(3)
+                        .run(failing, dir);
+                fail("Failure not reported");
+            } catch (IllegalStateException expected) {
+            }
+
+            Tr34CampaignEngine.Result result = Tr34CampaignEngine.rebind(factory, oldKdhCert, newKdhCert)
+                    .withShards(4).withChunkSize(3).withScheduler(scheduler)
+                    .run(devices, dir);
+            assertEquals(10, result.getDeviceCount());
+            assertEquals(6, result.getResumedDeviceCount());
+            // Counted just after each future completes
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (scheduler.getCompletedCount(Tr34SigningScheduler.Priority.BULK) < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(4, scheduler.getCompletedCount(Tr34SigningScheduler.Priority.BULK));
+
+            int tokens = 0;
+            for (int shard = 0; shard < 4; shard++) {
+                ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(Tr34CampaignEngine.shardFile(dir, shard)));
+                int shardTokens = 0;
+                while (records.hasRemaining()) {
+                    ByteBuffer der = records.duplicate();
+                    der.limit(records.position() + 4 + records.getInt());
+                    records.position(der.limit());
+                    der.position(der.position() + 4);
+                    Tr34CaRebindToken token = Tr34CaRebindToken.decode(der);
+                    client.verifyCaRebindToken(token, krdCert, oldKdhCert);
+                    assertEquals(newKdhCert, token.getNewKdhCert());
+                    shardTokens++;
+                }
+                // Devices 0 to 9 round robin over 4 shards
+                assertEquals(shard < 2 ? 3 : 2, shardTokens);
+                tokens += shardTokens;
+            }
+            assertEquals(10, tokens);
+
+            // Another campaign must not resume from this checkpoint
+            try {
+                Tr34CampaignEngine.unbind(factory, oldKdhCert).withShards(4).run(devices, dir);
+                fail("Foreign checkpoint accepted");
+            } catch (Tr34Exception expected) {
+            }
+
+            // Nor the same campaign on another device list
+            List<X509Certificate> otherDevices = new ArrayList<>(devices);
+            otherDevices.set(3, newKdhCert);
+            for (List<X509Certificate> list : Arrays.asList(otherDevices, devices.subList(0, 9))) {
+                try {
+                    Tr34CampaignEngine.rebind(factory, oldKdhCert, newKdhCert).withShards(4).run(list, dir);
+                    fail("Checkpoint of another device list accepted");
+                } catch (Tr34Exception expected) {
+                }
+            }
+        } finally {
+            scheduler.close();
+            deleteDirectory(dir);
+        }
+
+        // Unbind campaign held to 50 tokens per second
+        Path unbindDir = Files.createTempDirectory("tr34campaign");
+        try {
+            long start = System.nanoTime();
+            Tr34CampaignEngine.Result result = Tr34CampaignEngine.unbind(factory, oldKdhCert)
+                    .withShards(1).withMaxTokensPerSecond(50)
+                    .run(devices.subList(0, 6), unbindDir);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            assertEquals(6, result.getDeviceCount());
+
+            ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(Tr34CampaignEngine.shardFile(unbindDir, 0)));
+            int length = records.getInt();
+            records.limit(4 + length);
+            client.verifyCaUnbindToken(Tr34CaUnbindToken.decode(records), krdCert, oldKdhCert);
+        } finally {
+            deleteDirectory(unbindDir);
+        }
+    }
+
+    @Test
+    public void cloverKeyPairPoolKdhRotation() throws Exception {
+        Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
+        Tr34TokenFactory factory = new Tr34TokenFactory(trustStore);
+
+        try (Tr34KeyPairPool pool = new Tr34KeyPairPool(2048, 2)) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (pool.getAvailableCount() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, pool.getAvailableCount());
+
+            X500Name subject = new X500Name("C=US, O=Clover, OU=deviceos, CN=TEST Clover TR34 KDH 3");
+            Tr34ScdKeyStoreData newKdh = factory.issueKdhCertificate(subject,
+                    Tr34CryptoUtils.createHoursFromNowDate(24 * 365), pool);
+            assertEquals(0, pool.getMissCount());
+            assertEquals(0, pool.getSelfTestFailureCount());
+
+            X509Certificate newKdhCert = newKdh.cert;
+            assertEquals(subject, X500Name.getInstance(newKdhCert.getSubjectX500Principal().getEncoded()));
+            assertTrue(newKdhCert.getKeyUsage()[0]);
+            assertEquals(-1, newKdhCert.getBasicConstraints());
+            // Backdated so KRDs with a clock slightly behind accept it at once
+            newKdhCert.checkValidity(new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(30)));
+            List<X509Certificate> chain = new ArrayList<>();
+            chain.add(newKdhCert);
+            chain.addAll(trustStore.getKdhIssuerChain());
+            Tr34CryptoUtils.verifyCertificateChain(chain, trustStore.getRootCert());
+
+            Tr34RandomToken randomToken = Tr34RandomToken.createNewRandom();
+            Tr34KdhRebindToken rebindToken = factory.generateKdhRebindToken(randomToken, krd1Chain, newKdhCert);
+            new Tr34TokenClient(trustStore).verifyKdhRebindToken(rebindToken, randomToken, krdCert);
+            assertEquals(newKdhCert, rebindToken.getNewKdhCert());
+
+            // Certificates issued from the pool never share a key
+            Tr34ScdKeyStoreData otherKdh = factory.issueKdhCertificate(subject,
+                    Tr34CryptoUtils.createHoursFromNowDate(24), pool);
+            assertFalse(otherKdh.cert.getPublicKey().equals(newKdhCert.getPublicKey()));
+            assertFalse(otherKdh.cert.getSerialNumber().equals(newKdhCert.getSerialNumber()));
+        }
+
+        try {
+            new Tr34KeyPairPool(1024, 1);
+            fail("Weak key size accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
     @Test
     public void cloverGenerateRebindToken() throws Exception {
         Tr34KeyStoreData trustStore = CloverSampleTr34KeyStoreData.KDH_1;
@@ -162,4 +1844,172 @@ public class Tr34CloverTest {
         Tr34KrdCredentialToken ct = Tr34KrdCredentialToken.decode(CloverSampleTr34Messages.CT_KRD_Pem);
     }
 
+    /**
+     * Delegates to a file channel, optionally writing half of a buffer and then failing.
+     */
+    private static final class FailingFileChannel extends FileChannel {
+        private final FileChannel delegate;
+        volatile boolean failWrites;
+        volatile boolean failTruncate;
+
+        FailingFileChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failWrites) {
+                ByteBuffer half = src.duplicate();
+                half.limit(half.position() + half.remaining() / 2);
+                int written = delegate.write(half);
+                src.position(src.position() + written);
+                throw new IOException("Injected write failure");
+            }
+            return delegate.write(src);
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate) {
+                throw new IOException("Injected truncate failure");
+            }
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Key store data of a delegate with another KDH revocation list.
+     */
+    private static final class RevocationListOverride extends Tr34KeyStoreData {
+        private final Tr34KeyStoreData delegate;
+        private final List<Tr34KdhRevocation> revocationList;
+
+        RevocationListOverride(Tr34KeyStoreData delegate, List<Tr34KdhRevocation> revocationList) {
+            this.delegate = delegate;
+            this.revocationList = revocationList;
+        }
+
+        @Override
+        public X509Certificate getRootCert() {
+            return delegate.getRootCert();
+        }
+
+        @Override
+        public X509Certificate getKdhCert() {
+            return delegate.getKdhCert();
+        }
+
+        @Override
+        public X509Certificate getKrdCaCert() {
+            return delegate.getKrdCaCert();
+        }
+
+        @Override
+        public Tr34ScdKeyStoreData getKdhKeyStoreData() {
+            return delegate.getKdhKeyStoreData();
+        }
+
+        @Override
+        public Tr34ScdKeyStoreData getKdhCaKeyStoreData() {
+            return delegate.getKdhCaKeyStoreData();
+        }
+
+        @Override
+        public Tr34ScdKeyStoreData getKrdCaKeyStoreData() {
+            return delegate.getKrdCaKeyStoreData();
+        }
+
+        @Override
+        public List<Tr34KdhRevocation> getKdhRevocationList() {
+            return revocationList;
+        }
+
+        @Override
+        public List<X509Certificate> getKdhIssuerChain() {
+            return delegate.getKdhIssuerChain();
+        }
+
+        @Override
+        public int nextCrlUpdateDays() {
+            return delegate.nextCrlUpdateDays();
+        }
+    }
+
 }